@@ -24,6 +24,9 @@
  
 package com.zidsoft.zdlib.android;
 
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.os.Handler;
 import android.support.v4.app.Fragment;
 import android.support.v4.app.FragmentManager;
 
@@ -39,10 +42,37 @@ import com.zidsoft.zdlib.app.ZDApplication;
  */
 public class NoConnectivityMsgFragment extends MsgFragment {
 
+	/**
+	 * Whether a display message request is already posted and not yet run.
+	 */
+	private static final AtomicBoolean m_displayPending = new AtomicBoolean(false);
+	
+	private static final Runnable m_displayRunnable = new Runnable() {
+		
+		@Override
+		public void run() {
+			m_displayPending.set(false);
+			displayMessage();
+		}
+	};
+	
 	public static String getDialogTag() {
 		return NoConnectivityMsgFragment.class.getSimpleName() + ".DialogTag";
 	}
 	
+	/**
+	 * Post a request to display the message on the given handler. Requests
+	 * posted while an earlier request is still pending are coalesced into the
+	 * pending request so that a burst of failed service calls results in a 
+	 * single display attempt. May be called from any thread.
+	 * @param handler handler for the UI thread
+	 */
+	public static void postDisplayMessage(final Handler handler) {
+		if (m_displayPending.compareAndSet(false, true)) {
+			handler.post(m_displayRunnable);
+		}
+	}
+	
 	public static void displayMessage() {
 		final ZDFragmentActivity activity = ZDApplication.getInstance()
 				.getCurrentActivity();
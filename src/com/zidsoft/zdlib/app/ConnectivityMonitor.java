@@ -0,0 +1,152 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2013 Zidsoft LLC
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.zidsoft.zdlib.app;
+
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+
+/**
+ * Connectivity monitor that caches the connectivity state and updates it
+ * from connectivity change broadcasts rather than querying 
+ * {@link ConnectivityManager} on every check.
+ * 
+ * @author faridz
+ *
+ */
+public class ConnectivityMonitor implements IConnectivityMonitor {
+	private static final int[] NETWORK_TYPES = {
+		ConnectivityManager.TYPE_WIFI,
+		ConnectivityManager.TYPE_MOBILE,
+		ConnectivityManager.TYPE_WIMAX,
+		ConnectivityManager.TYPE_ETHERNET};
+	
+	private final Context m_context;
+	private volatile boolean m_connected;
+	private final Set<PropertyChangeListener> m_setListener = 
+			new CopyOnWriteArraySet<PropertyChangeListener>();
+	
+	private final BroadcastReceiver m_receiver = new BroadcastReceiver() {
+		
+		@Override
+		public void onReceive(final Context context, final Intent intent) {
+			setConnected(intent.getBooleanExtra(
+					ConnectivityManager.EXTRA_NO_CONNECTIVITY, false) ? false :
+						queryConnected(m_context));
+			onNetworkChanged();
+		}
+	};
+	
+	public ConnectivityMonitor(final Context context) {
+		m_context = context.getApplicationContext();
+	}
+	
+	/**
+	 * Start listening for connectivity changes. Usually called from the UI
+	 * thread in application onCreate.
+	 */
+	public void start() {
+		m_connected = queryConnected(m_context);
+		m_context.registerReceiver(m_receiver, 
+				new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+	}
+	
+	public void stop() {
+		m_context.unregisterReceiver(m_receiver);
+	}
+	
+	@Override
+	public boolean isConnected() {
+		return m_connected;
+	}
+	
+	/**
+	 * Update the connectivity state and notify listeners if the state changed.
+	 * @param connected
+	 */
+	protected void setConnected(final boolean connected) {
+		final boolean oldValue = m_connected;
+		m_connected = connected;
+		if (oldValue != connected) {
+			for (final PropertyChangeListener listener : m_setListener) {
+				listener.propertyChange(new PropertyChangeEvent(this, CONNECTED, 
+						oldValue, connected));
+			}
+		}
+	}
+	
+	/**
+	 * Notify listeners of a network change.
+	 */
+	protected void onNetworkChanged() {
+		for (final PropertyChangeListener listener : m_setListener) {
+			listener.propertyChange(new PropertyChangeEvent(this, NETWORK,
+					null, m_connected));
+		}
+	}
+	
+	@Override
+	public void addConnectivityListener(final PropertyChangeListener listener) {
+		m_setListener.add(listener);
+	}
+	
+	@Override
+	public void removeConnectivityListener(final PropertyChangeListener listener) {
+		m_setListener.remove(listener);
+	}
+	
+	/**
+	 * Query {@link ConnectivityManager} for the current connectivity state.
+	 * @param context
+	 * @return true if any of the supported network types is connected
+	 */
+	public static boolean queryConnected(final Context context) {
+		boolean state = false;
+		try {
+			final ConnectivityManager cm = (ConnectivityManager)  
+					context.getSystemService(Context.CONNECTIVITY_SERVICE);
+			for (final int networkType : NETWORK_TYPES) {
+				final NetworkInfo networkInfo = cm.getNetworkInfo(networkType);
+				if (networkInfo != null &&
+					networkInfo.getState() == NetworkInfo.State.CONNECTED) {
+					state = true;
+					break;
+				}
+			}
+		} catch(Exception e) {
+			e.printStackTrace();
+			state = false;
+		}
+		return state;
+	}
+}
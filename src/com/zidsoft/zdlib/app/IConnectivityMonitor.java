@@ -0,0 +1,60 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2013 Zidsoft LLC
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.zidsoft.zdlib.app;
+
+import java.beans.PropertyChangeListener;
+
+/**
+ * Network connectivity monitor interface. Implementations keep the current
+ * connectivity state up to date from connectivity events so that checking
+ * the state is cheap enough to do on every service call.
+ * 
+ * @author faridz
+ *
+ */
+public interface IConnectivityMonitor {
+	/**
+	 * Name of the property change event sent to listeners when connectivity
+	 * state changes. Old and new values are the previous and current state.
+	 */
+	public static final String CONNECTED = IConnectivityMonitor.class.getSimpleName()
+			+ ".Connected";
+	/**
+	 * Name of the property change event sent to listeners on every network
+	 * change, including a switch between networks that leaves the device
+	 * connected. The new value is the current connectivity state.
+	 */
+	public static final String NETWORK = IConnectivityMonitor.class.getSimpleName()
+			+ ".Network";
+	
+	/**
+	 * Get the last known connectivity state.
+	 * @return true if connected to a network
+	 */
+	boolean isConnected();
+	
+	void addConnectivityListener(final PropertyChangeListener listener);
+	void removeConnectivityListener(final PropertyChangeListener listener);
+}
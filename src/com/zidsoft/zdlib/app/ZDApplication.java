@@ -24,22 +24,63 @@
  
 package com.zidsoft.zdlib.app;
 
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 import android.app.Application;
-import android.content.Context;
-import android.net.ConnectivityManager;
-import android.net.NetworkInfo;
 import android.os.Build;
+import android.util.Log;
 
 import com.zidsoft.zdlib.android.ZDFragmentActivity;
+import com.zidsoft.zdlib.service.HttpConnectionPool;
+import com.zidsoft.zdlib.service.HttpDnsCache;
+import com.zidsoft.zdlib.service.HttpEndpointBalancer;
+import com.zidsoft.zdlib.service.ServiceCall;
+import com.zidsoft.zdlib.service.ServiceCallJournal;
 
 public abstract class ZDApplication extends Application {
+	private static final String TAG = ZDApplication.class.getSimpleName();
+	private static final int WARM_UP_TIMEOUT_MILLIS = 10*1000;	// 10 seconds
 	protected static ZDApplication m_application;
 	protected ZDFragmentActivity m_currentActivity;
+	private static volatile IConnectivityMonitor m_connectivityMonitor;
+	private HttpEndpointBalancer m_endpointBalancer;
+	private boolean m_endpointBalancerCreated;
 	
 	@Override
 	public void onCreate() {
 		super.onCreate();
 		m_application = this;
+		if (m_connectivityMonitor == null) {
+			final ConnectivityMonitor monitor = new ConnectivityMonitor(this);
+			monitor.start();
+			setConnectivityMonitor(monitor);
+		}
+		m_connectivityMonitor.addConnectivityListener(new PropertyChangeListener() {
+			
+			@Override
+			public void propertyChange(final PropertyChangeEvent event) {
+				if (IConnectivityMonitor.NETWORK.equals(event.getPropertyName())) {
+					// cached addresses may not be reachable from the new network
+					HttpDnsCache.getInstance().invalidate();
+				} else if (Boolean.TRUE.equals(event.getNewValue())) {
+					// opening and scanning the journal is disk I/O; this
+					// runs on the UI thread
+					ServiceCall.executeInBackground(new Runnable() {
+						
+						@Override
+						public void run() {
+							ServiceCallJournal.replayIfPending();
+						}
+					});
+				}
+			}
+		});
 	}
 	
 	public static ZDApplication getInstance() {
@@ -63,29 +104,102 @@ public abstract class ZDApplication extends Application {
 	 */
 	public abstract String getServerBaseUrl();
 	
-	public boolean isConnectedToNetwork() {
-		boolean state = false;
-		try {
-			final int[] networkTypes = {
-					ConnectivityManager.TYPE_WIFI,
-					ConnectivityManager.TYPE_MOBILE,
-					ConnectivityManager.TYPE_WIMAX,
-					ConnectivityManager.TYPE_ETHERNET};
-			final ConnectivityManager cm = (ConnectivityManager)  
-					getSystemService(Context.CONNECTIVITY_SERVICE);
-			for (final int networkType : networkTypes) {
-				final NetworkInfo networkInfo = cm.getNetworkInfo(networkType);
-				if (networkInfo != null &&
-					networkInfo.getState() == NetworkInfo.State.CONNECTED) {
-					state = true;
-					break;
-				}
+	/**
+	 * Get the equivalent server base urls that service calls are balanced
+	 * across. Override to return more than one url to enable balancing.
+	 * @return server base urls
+	 */
+	public String[] getServerBaseUrls() {
+		return new String[] { getServerBaseUrl() };
+	}
+	
+	/**
+	 * Get the balancer for the {@link #getServerBaseUrls()}.
+	 * @return balancer or null if there is only one server base url
+	 */
+	public synchronized HttpEndpointBalancer getEndpointBalancer() {
+		if (!m_endpointBalancerCreated) {
+			final String[] baseUrls = getServerBaseUrls();
+			if (baseUrls.length > 1) {
+				m_endpointBalancer = new HttpEndpointBalancer(baseUrls);
 			}
-		} catch(Exception e) {
-			e.printStackTrace();
-			state = false;
+			m_endpointBalancerCreated = true;
+		}
+		return m_endpointBalancer;
+	}
+	
+	/**
+	 * Warm up service calls in the background, typically from
+	 * {@link #onCreate()}: starts the service call pool threads, resolves and
+	 * caches the host addresses of the server base urls and the given urls,
+	 * and parks pooled connections to them so the first service call does not
+	 * wait for name resolution, connect and handshake. The cached addresses
+	 * are used by {@link com.zidsoft.zdlib.service.NioHttpTransport} only.
+	 * Does nothing if the device is not connected.
+	 * @param connectionsPerHost number of connections to park per host
+	 * @param urls urls of additional hosts to warm up
+	 */
+	public void warmUp(final int connectionsPerHost, final String... urls) {
+		ServiceCall.prestartCoreThreads();
+		if (!isConnectedToNetwork()) {
+			return;
 		}
-		return state;
+		final List<String> hosts = new ArrayList<String>();
+		hosts.addAll(Arrays.asList(getServerBaseUrls()));
+		hosts.addAll(Arrays.asList(urls));
+		final Thread thread = new Thread(new Runnable() {
+			
+			@Override
+			public void run() {
+				final List<URL> warmUrls = new ArrayList<URL>(hosts.size());
+				for (final String host : hosts) {
+					try {
+						final URL url = new URL(host);
+						HttpDnsCache.getInstance().prefetch(url.getHost());
+						warmUrls.add(url);
+					} catch (MalformedURLException e) {
+						Log.w(TAG, "Cannot warm up " + host, e);
+					}
+				}
+				for (final URL url : warmUrls) {
+					HttpConnectionPool.getInstance().prewarm(url, connectionsPerHost,
+							WARM_UP_TIMEOUT_MILLIS);
+				}
+			}
+		}, ZDApplication.class.getSimpleName() + ".warmUp");
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.start();
+	}
+	
+	/**
+	 * Get the connectivity monitor used for network connectivity checks.
+	 * @return connectivity monitor or null if the application has not been
+	 * created and no monitor was set.
+	 */
+	public static IConnectivityMonitor getConnectivityMonitor() {
+		return m_connectivityMonitor;
+	}
+	
+	/**
+	 * Replace the connectivity monitor, for example with a fake monitor in
+	 * tests. Set before the application is created to prevent the default
+	 * monitor from being installed.
+	 * @param monitor
+	 */
+	public static void setConnectivityMonitor(final IConnectivityMonitor monitor) {
+		m_connectivityMonitor = monitor;
+	}
+	
+	/**
+	 * Determine whether the device is connected to a network. Returns the state
+	 * cached by the connectivity monitor, if any.
+	 * @return true if connected
+	 * @see #getConnectivityMonitor()
+	 */
+	public boolean isConnectedToNetwork() {
+		final IConnectivityMonitor monitor = m_connectivityMonitor;
+		return monitor != null ? monitor.isConnected() :
+			ConnectivityMonitor.queryConnected(this);
 	}
 	
 	/**
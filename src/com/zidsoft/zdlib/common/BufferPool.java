@@ -0,0 +1,313 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2013 Zidsoft LLC
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.zidsoft.zdlib.common;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shared pool of byte buffers in power of two size classes. Each thread keeps
+ * a small, byte bounded cache of released buffers per size class; buffers
+ * that do not fit in the thread cache go to a bounded global pool shared by
+ * all threads.
+ * Heap buffers are pooled as byte arrays and direct buffers as
+ * {@link ByteBuffer}s. Requests larger than the largest size class are
+ * allocated and not pooled.
+ * <p>Only buffers acquired from the pool may be released to it. The pool
+ * does not track the buffers it issued, so releasing any other buffer of a
+ * size class size adds it to the pool.</p>
+ *
+ * @author faridz
+ *
+ */
+public class BufferPool {
+	/**
+	 * Smallest size class: 4 KB.
+	 */
+	private static final int MIN_SHIFT = 12;
+	/**
+	 * Largest size class: 1 MB.
+	 */
+	private static final int MAX_SHIFT = 20;
+	private static final int CLASS_COUNT = MAX_SHIFT - MIN_SHIFT + 1;
+	/**
+	 * Number of buffers per size class kept in each thread cache.
+	 */
+	private static final int THREAD_CACHE_SIZE = 2;
+	/**
+	 * Maximum bytes kept in each thread cache, for each kind of buffer.
+	 */
+	private static final int MAX_THREAD_CACHE_BYTES = 256*1024;
+	/**
+	 * Maximum bytes per size class kept in the global pool.
+	 */
+	private static final int MAX_GLOBAL_BYTES_PER_CLASS = 1024*1024;
+
+	public static final int MAX_POOLED_SIZE = 1 << MAX_SHIFT;
+
+	/**
+	 * Buffers released by one thread, by size class.
+	 */
+	private static class ThreadCache<T> {
+		final List<ArrayList<T>> classes = new ArrayList<ArrayList<T>>(CLASS_COUNT);
+		int bytes = 0;
+
+		ThreadCache() {
+			for (int i = 0; i < CLASS_COUNT; ++i) {
+				classes.add(new ArrayList<T>(THREAD_CACHE_SIZE));
+			}
+		}
+	}
+
+	/**
+	 * Pool of one kind of buffer.
+	 */
+	private static abstract class Arena<T> {
+		final List<Queue<T>> global = new ArrayList<Queue<T>>(CLASS_COUNT);
+		final AtomicInteger[] globalCount = new AtomicInteger[CLASS_COUNT];
+		final ThreadLocal<ThreadCache<T>> threadCache = new ThreadLocal<ThreadCache<T>>() {
+
+			@Override
+			protected ThreadCache<T> initialValue() {
+				return new ThreadCache<T>();
+			}
+		};
+		final AtomicLong hitCount = new AtomicLong();
+		final AtomicLong missCount = new AtomicLong();
+		final AtomicInteger borrowedCount = new AtomicInteger();
+		final AtomicLong globalBytes = new AtomicLong();
+
+		Arena() {
+			for (int i = 0; i < CLASS_COUNT; ++i) {
+				global.add(new ConcurrentLinkedQueue<T>());
+				globalCount[i] = new AtomicInteger();
+			}
+		}
+
+		abstract T allocate(int size);
+		abstract int capacity(T buffer);
+
+		T acquire(final int minSize) {
+			final int sizeClass = getSizeClass(minSize);
+			if (sizeClass < 0) {
+				missCount.incrementAndGet();
+				return allocate(minSize);
+			}
+			borrowedCount.incrementAndGet();
+			final ThreadCache<T> cache = threadCache.get();
+			final ArrayList<T> cached = cache.classes.get(sizeClass);
+			if (!cached.isEmpty()) {
+				hitCount.incrementAndGet();
+				final T buffer = cached.remove(cached.size() - 1);
+				cache.bytes -= capacity(buffer);
+				return buffer;
+			}
+			final T buffer = global.get(sizeClass).poll();
+			if (buffer != null) {
+				globalCount[sizeClass].decrementAndGet();
+				globalBytes.addAndGet(-capacity(buffer));
+				hitCount.incrementAndGet();
+				return buffer;
+			}
+			missCount.incrementAndGet();
+			return allocate(1 << (sizeClass + MIN_SHIFT));
+		}
+
+		void release(final T buffer) {
+			final int size = capacity(buffer);
+			final int sizeClass = getSizeClass(size);
+			if (sizeClass < 0 || (1 << (sizeClass + MIN_SHIFT)) != size) {
+				// not allocated by the pool
+				return;
+			}
+			borrowedCount.decrementAndGet();
+			final ThreadCache<T> cache = threadCache.get();
+			final ArrayList<T> cached = cache.classes.get(sizeClass);
+			if (cached.size() < THREAD_CACHE_SIZE &&
+					cache.bytes + size <= MAX_THREAD_CACHE_BYTES) {
+				cached.add(buffer);
+				cache.bytes += size;
+				return;
+			}
+			// overflow to the global pool
+			if ((globalCount[sizeClass].get() + 1)*size <= MAX_GLOBAL_BYTES_PER_CLASS) {
+				globalCount[sizeClass].incrementAndGet();
+				globalBytes.addAndGet(size);
+				global.get(sizeClass).offer(buffer);
+			}
+		}
+	}
+
+	private static final Arena<byte[]> m_heap = new Arena<byte[]>() {
+
+		@Override
+		byte[] allocate(final int size) {
+			return new byte[size];
+		}
+
+		@Override
+		int capacity(final byte[] buffer) {
+			return buffer.length;
+		}
+	};
+
+	private static final Arena<ByteBuffer> m_direct = new Arena<ByteBuffer>() {
+
+		@Override
+		ByteBuffer allocate(final int size) {
+			return ByteBuffer.allocateDirect(size);
+		}
+
+		@Override
+		int capacity(final ByteBuffer buffer) {
+			return buffer.capacity();
+		}
+	};
+
+	private static final Arena<ByteBuffer> m_heapBuffers = new Arena<ByteBuffer>() {
+
+		@Override
+		ByteBuffer allocate(final int size) {
+			return ByteBuffer.allocate(size);
+		}
+
+		@Override
+		int capacity(final ByteBuffer buffer) {
+			return buffer.capacity();
+		}
+	};
+
+	private BufferPool() {}
+
+	/**
+	 * Get the size class index for the given size.
+	 * @param size
+	 * @return size class index or -1 if the size is larger than the largest
+	 * size class
+	 */
+	private static int getSizeClass(final int size) {
+		if (size > MAX_POOLED_SIZE) {
+			return -1;
+		}
+		int sizeClass = 0;
+		while ((1 << (sizeClass + MIN_SHIFT)) < size) {
+			++sizeClass;
+		}
+		return sizeClass;
+	}
+
+	/**
+	 * Borrow a byte array of at least the given size. Return it with
+	 * {@link #release(byte[])}.
+	 * @param minSize
+	 * @return byte array, possibly larger than requested
+	 */
+	public static byte[] acquire(final int minSize) {
+		return m_heap.acquire(minSize);
+	}
+
+	/**
+	 * Return a byte array borrowed with {@link #acquire(int)}. The array must
+	 * not be used after it is released, and must not be released twice.
+	 * @param buffer
+	 */
+	public static void release(final byte[] buffer) {
+		if (buffer != null) {
+			m_heap.release(buffer);
+		}
+	}
+
+	/**
+	 * Borrow a cleared byte buffer of at least the given capacity. Return it
+	 * with {@link #release(ByteBuffer)}.
+	 * @param minSize
+	 * @param direct true for a direct buffer, false for a heap buffer
+	 * @return byte buffer, possibly larger than requested
+	 */
+	public static ByteBuffer acquireBuffer(final int minSize, final boolean direct) {
+		final ByteBuffer buffer = (direct ? m_direct : m_heapBuffers).acquire(minSize);
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Return a byte buffer borrowed with {@link #acquireBuffer(int, boolean)}.
+	 * The buffer must not be used after it is released, and must not be
+	 * released twice.
+	 * @param buffer
+	 */
+	public static void release(final ByteBuffer buffer) {
+		if (buffer != null) {
+			(buffer.isDirect() ? m_direct : m_heapBuffers).release(buffer);
+		}
+	}
+
+	/**
+	 * Pool occupancy snapshot.
+	 */
+	public static class Stats {
+		/**
+		 * Number of pooled buffers currently borrowed.
+		 */
+		public final int borrowed;
+		/**
+		 * Bytes held by the global pool (thread caches are not included).
+		 */
+		public final long globalBytes;
+		public final long hitCount;
+		public final long missCount;
+
+		Stats(final Arena<?> arena) {
+			this.borrowed = arena.borrowedCount.get();
+			this.globalBytes = arena.globalBytes.get();
+			this.hitCount = arena.hitCount.get();
+			this.missCount = arena.missCount.get();
+		}
+
+		@Override
+		public String toString() {
+			return "borrowed=" + borrowed + " globalBytes=" + globalBytes +
+					" hits=" + hitCount + " misses=" + missCount;
+		}
+	}
+
+	public static Stats getHeapStats() {
+		return new Stats(m_heap);
+	}
+
+	/**
+	 * Get the occupancy of the byte buffer pool.
+	 * @param direct true for direct buffers, false for heap buffers
+	 * @return
+	 */
+	public static Stats getBufferStats(final boolean direct) {
+		return new Stats(direct ? m_direct : m_heapBuffers);
+	}
+}
@@ -0,0 +1,138 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2013 Zidsoft LLC
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.zidsoft.zdlib.common;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Pool of {@link Inflater} and {@link Deflater} objects. Each instance holds
+ * native zlib memory that is only released by end() or finalization, so 
+ * reusing instances avoids native memory churn when many small streams are
+ * compressed or decompressed.
+ * 
+ * @author faridz
+ *
+ */
+public class ZipPool {
+	/**
+	 * Maximum number of idle instances kept per kind.
+	 */
+	private static final int MAX_POOLED = 8;
+	
+	private static class Pool<T> {
+		final Queue<T> idle = new ConcurrentLinkedQueue<T>();
+		final AtomicInteger count = new AtomicInteger();
+		
+		T poll() {
+			final T item = idle.poll();
+			if (item != null) {
+				count.decrementAndGet();
+			}
+			return item;
+		}
+		
+		boolean offer(final T item) {
+			if (count.incrementAndGet() > MAX_POOLED) {
+				count.decrementAndGet();
+				return false;
+			}
+			idle.offer(item);
+			return true;
+		}
+	}
+	
+	private static final Pool<Inflater> m_inflaters = new Pool<Inflater>();
+	private static final Pool<Inflater> m_inflatersNoWrap = new Pool<Inflater>();
+	private static final ConcurrentHashMap<Integer, Pool<Deflater>> m_mapDeflaters = 
+			new ConcurrentHashMap<Integer, Pool<Deflater>>();
+	
+	private ZipPool() {}
+	
+	/**
+	 * Obtain an inflater. Return it with {@link #recycle(Inflater, boolean)}
+	 * when done.
+	 * @param nowrap true for raw deflate data without the zlib header
+	 * @return
+	 */
+	public static Inflater obtainInflater(final boolean nowrap) {
+		final Inflater inflater = (nowrap ? m_inflatersNoWrap : m_inflaters).poll();
+		return inflater != null ? inflater : new Inflater(nowrap);
+	}
+	
+	/**
+	 * Return an inflater obtained with {@link #obtainInflater(boolean)}. The
+	 * inflater must not be used after it is recycled.
+	 * @param inflater
+	 * @param nowrap same value the inflater was obtained with
+	 */
+	public static void recycle(final Inflater inflater, final boolean nowrap) {
+		inflater.reset();
+		if (!(nowrap ? m_inflatersNoWrap : m_inflaters).offer(inflater)) {
+			inflater.end();
+		}
+	}
+	
+	private static Pool<Deflater> getDeflaterPool(final int level, 
+			final boolean nowrap) {
+		final Integer key = Integer.valueOf(level*2 + (nowrap ? 1 : 0));
+		Pool<Deflater> pool = m_mapDeflaters.get(key);
+		if (pool == null) {
+			m_mapDeflaters.putIfAbsent(key, new Pool<Deflater>());
+			pool = m_mapDeflaters.get(key);
+		}
+		return pool;
+	}
+	
+	/**
+	 * Obtain a deflater. Return it with {@link #recycle(Deflater, int, boolean)}
+	 * when done.
+	 * @param level compression level
+	 * @param nowrap true for raw deflate data without the zlib header
+	 * @return
+	 */
+	public static Deflater obtainDeflater(final int level, final boolean nowrap) {
+		final Deflater deflater = getDeflaterPool(level, nowrap).poll();
+		return deflater != null ? deflater : new Deflater(level, nowrap);
+	}
+	
+	/**
+	 * Return a deflater obtained with {@link #obtainDeflater(int, boolean)}.
+	 * @param deflater
+	 * @param level same value the deflater was obtained with
+	 * @param nowrap same value the deflater was obtained with
+	 */
+	public static void recycle(final Deflater deflater, final int level,
+			final boolean nowrap) {
+		deflater.reset();
+		if (!getDeflaterPool(level, nowrap).offer(deflater)) {
+			deflater.end();
+		}
+	}
+}
@@ -38,6 +38,7 @@ import com.zidsoft.zdlib.android.MsgFragment;
 import com.zidsoft.zdlib.android.MsgInfo;
 import com.zidsoft.zdlib.android.MsgType;
 import com.zidsoft.zdlib.app.ZDApplication;
+import com.zidsoft.zdlib.service.ServerPushChannel;
 import com.zidsoft.zdlib.service.ServiceCallCommand;
 import com.zidsoft.zdlib.service.ServiceCallCommand.State;
 import com.zidsoft.zdlib.util.ObjectUtils;
@@ -181,6 +182,53 @@ public class Model {
 	 */
 	private Map<String, MsgInfo> m_mapLastMessage = new HashMap<String, MsgInfo>();
 	
+	/**
+	 * Map of command names and commands subscribed to server push messages.
+	 */
+	private final Map<String, Enum<?>> m_mapPushCommand = new HashMap<String, Enum<?>>();
+	
+	private final PropertyChangeListener m_pushListener = new PropertyChangeListener() {
+		
+		@Override
+		public void propertyChange(final PropertyChangeEvent event) {
+			final ServerPushChannel.Message message =
+					(ServerPushChannel.Message) event.getNewValue();
+			final Enum<?> command = m_mapPushCommand.get(message.key);
+			if (command != null) {
+				onPushMessage(command, message);
+			}
+		}
+	};
+	
+	/**
+	 * Subscribe the model to the push messages for the command, keyed by the
+	 * command name. Messages are received in the UI thread.
+	 * @param channel
+	 * @param command
+	 */
+	public void subscribePush(final ServerPushChannel channel, final Enum<?> command) {
+		m_mapPushCommand.put(command.name(), command);
+		channel.subscribe(command.name(), m_pushListener);
+	}
+	
+	public void unsubscribePush(final ServerPushChannel channel, final Enum<?> command) {
+		channel.unsubscribe(command.name(), m_pushListener);
+		m_mapPushCommand.remove(command.name());
+	}
+	
+	/**
+	 * Handle a push message for a subscribed command. Notifies the model
+	 * change listeners with the command as the source of a
+	 * {@link ServerPushChannel#MESSAGE} property change. Override to refresh
+	 * the model instead, for example by executing the command.
+	 * @param command
+	 * @param message
+	 */
+	protected void onPushMessage(final Enum<?> command,
+			final ServerPushChannel.Message message) {
+		notifyModelChangeListeners(command, ServerPushChannel.MESSAGE, null, message);
+	}
+	
     public void addModelChangeListener(final PropertyChangeListener listener) {
     	if (m_setModelChangeListener.add(listener)) {
 	    	// notify listener if any missed command state notifications
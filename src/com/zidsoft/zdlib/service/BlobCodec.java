@@ -0,0 +1,372 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2013 Zidsoft LLC
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.zidsoft.zdlib.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.zidsoft.zdlib.common.BufferPool;
+import com.zidsoft.zdlib.common.ZipPool;
+
+/**
+ * Compression codec of database columns written by {@link BlobCompression}.
+ * The codec id is recorded in the column header, so a codec must keep its
+ * id and format once columns are written with it. Codecs other than the
+ * built in ones are registered with {@link #register(BlobCodec)} before
+ * columns are read.
+ *
+ * @author faridz
+ *
+ */
+public abstract class BlobCodec {
+	public static final int ID_DEFLATE = 0;
+	public static final int ID_LZ = 1;
+	/**
+	 * Ids are stored in the low bits of the header codec byte.
+	 */
+	public static final int MAX_ID = 0x3f;
+
+	/**
+	 * zlib deflate at the default level.
+	 */
+	public static final BlobCodec DEFLATE = deflate(Deflater.DEFAULT_COMPRESSION);
+	/**
+	 * Byte oriented LZ77 in the LZ4 block format. Compresses less than
+	 * deflate but encodes and decodes several times faster.
+	 */
+	public static final BlobCodec LZ = new Lz();
+
+	private static final BlobCodec[] m_codecs = new BlobCodec[MAX_ID + 1];
+	static {
+		register(DEFLATE);
+		register(LZ);
+	}
+
+	private final int m_id;
+
+	protected BlobCodec(final int id) {
+		if (id < 0 || id > MAX_ID) {
+			throw new IllegalArgumentException("Invalid codec id " + id);
+		}
+		m_id = id;
+	}
+
+	public int getId() {
+		return m_id;
+	}
+
+	/**
+	 * Get zlib deflate at a compression level.
+	 * @param level 1 (fastest) to 9 (smallest) or
+	 * {@link Deflater#DEFAULT_COMPRESSION}
+	 * @return
+	 */
+	public static BlobCodec deflate(final int level) {
+		return new Deflate(level);
+	}
+
+	/**
+	 * Register a codec for decoding the columns written with it.
+	 * @param codec
+	 */
+	public static synchronized void register(final BlobCodec codec) {
+		m_codecs[codec.getId()] = codec;
+	}
+
+	/**
+	 * Get the codec registered for the id.
+	 * @param id
+	 * @return
+	 * @throws IOException if no codec is registered for the id
+	 */
+	public static synchronized BlobCodec get(final int id) throws IOException {
+		final BlobCodec codec = id <= MAX_ID ? m_codecs[id] : null;
+		if (codec == null) {
+			throw new IOException("Unsupported blob codec " + id);
+		}
+		return codec;
+	}
+
+	/**
+	 * Compress the data.
+	 * @param data
+	 * @param offset
+	 * @param length
+	 * @param dictionary preset dictionary or null
+	 * @param out
+	 * @throws IOException
+	 */
+	public abstract void encode(byte[] data, int offset, int length,
+			byte[] dictionary, ByteArrayOutputStream out) throws IOException;
+
+	/**
+	 * Decompress the data.
+	 * @param blob
+	 * @param offset
+	 * @param length
+	 * @param dictionary preset dictionary the data was compressed with or
+	 * null
+	 * @param out receives the decompressed data
+	 * @param outLength original length of the data
+	 * @throws IOException if the data is corrupt or does not have the
+	 * original length
+	 */
+	public abstract void decode(byte[] blob, int offset, int length,
+			byte[] dictionary, byte[] out, int outLength) throws IOException;
+
+	private static class Deflate extends BlobCodec {
+		private final int m_level;
+
+		Deflate(final int level) {
+			super(ID_DEFLATE);
+			m_level = level;
+		}
+
+		@Override
+		public void encode(final byte[] data, final int offset, final int length,
+				final byte[] dictionary, final ByteArrayOutputStream out) {
+			final Deflater deflater = ZipPool.obtainDeflater(m_level, false);
+			final byte[] buffer = BufferPool.acquire(Math.max(length/2, 64));
+			try {
+				if (dictionary != null) {
+					deflater.setDictionary(dictionary);
+				}
+				deflater.setInput(data, offset, length);
+				deflater.finish();
+				while (!deflater.finished()) {
+					out.write(buffer, 0, deflater.deflate(buffer));
+				}
+			} finally {
+				BufferPool.release(buffer);
+				ZipPool.recycle(deflater, m_level, false);
+			}
+		}
+
+		@Override
+		public void decode(final byte[] blob, final int offset, final int length,
+				final byte[] dictionary, final byte[] out, final int outLength)
+				throws IOException {
+			final Inflater inflater = ZipPool.obtainInflater(false);
+			try {
+				inflater.setInput(blob, offset, length);
+				int decoded = 0;
+				while (!inflater.finished()) {
+					final int inflated = inflater.inflate(out, decoded, outLength - decoded);
+					if (inflated == 0 && !inflater.finished()) {
+						if (inflater.needsDictionary()) {
+							if (dictionary == null) {
+								throw new IOException("Missing blob dictionary");
+							}
+							inflater.setDictionary(dictionary);
+						} else if (inflater.needsInput()) {
+							throw new EOFException("Truncated compressed blob");
+						} else if (decoded == outLength) {
+							throw new IOException("Blob longer than its recorded length");
+						}
+					}
+					decoded += inflated;
+				}
+				if (decoded != outLength) {
+					throw new IOException("Blob shorter than its recorded length");
+				}
+			} catch (DataFormatException e) {
+				throw new IOException(e.getMessage());
+			} finally {
+				ZipPool.recycle(inflater, false);
+			}
+		}
+	}
+
+	/**
+	 * LZ4 block format: sequences of a token, literals and a match copied
+	 * from up to 64 KB back. A dictionary is treated as data preceding the
+	 * block, so matches can refer to it.
+	 */
+	private static class Lz extends BlobCodec {
+		private static final int MIN_MATCH = 4;
+		private static final int LAST_LITERALS = 5;
+		private static final int MF_LIMIT = 12;
+		private static final int MAX_OFFSET = 0xffff;
+		private static final int HASH_BITS = 12;
+
+		private static final ThreadLocal<int[]> m_hashTable = new ThreadLocal<int[]>() {
+
+			@Override
+			protected int[] initialValue() {
+				return new int[1 << HASH_BITS];
+			}
+		};
+
+		Lz() {
+			super(ID_LZ);
+		}
+
+		private static int readInt(final byte[] b, final int i) {
+			return (b[i] & 0xff) | ((b[i + 1] & 0xff) << 8) |
+					((b[i + 2] & 0xff) << 16) | ((b[i + 3] & 0xff) << 24);
+		}
+
+		private static int hash(final int value) {
+			return (value*-1640531535) >>> (32 - HASH_BITS);
+		}
+
+		private static void writeLength(final ByteArrayOutputStream out, int length) {
+			for (; length >= 0xff; length -= 0xff) {
+				out.write(0xff);
+			}
+			out.write(length);
+		}
+
+		private static void writeLiterals(final ByteArrayOutputStream out,
+				final byte[] src, final int anchor, final int literals,
+				final int matchToken) {
+			out.write((Math.min(literals, 15) << 4) | matchToken);
+			if (literals >= 15) {
+				writeLength(out, literals - 15);
+			}
+			out.write(src, anchor, literals);
+		}
+
+		@Override
+		public void encode(final byte[] data, final int offset, final int length,
+				final byte[] dictionary, final ByteArrayOutputStream out) {
+			// the dictionary, at most one window of it, precedes the data
+			final int dictLength = dictionary == null ? 0 :
+				Math.min(dictionary.length, MAX_OFFSET);
+			final int end = dictLength + length;
+			final byte[] src = BufferPool.acquire(end);
+			final int[] table = m_hashTable.get();
+			try {
+				if (dictLength > 0) {
+					System.arraycopy(dictionary, dictionary.length - dictLength,
+							src, 0, dictLength);
+				}
+				System.arraycopy(data, offset, src, dictLength, length);
+				Arrays.fill(table, -1);
+				for (int i = 0; i + MIN_MATCH <= dictLength; ++i) {
+					table[hash(readInt(src, i))] = i;
+				}
+				int anchor = dictLength;
+				final int matchLimit = end - LAST_LITERALS;
+				for (int i = dictLength; i < end - MF_LIMIT; ) {
+					final int value = readInt(src, i);
+					final int h = hash(value);
+					final int ref = table[h];
+					table[h] = i;
+					if (ref < 0 || i - ref > MAX_OFFSET || readInt(src, ref) != value) {
+						++i;
+						continue;
+					}
+					int matchLength = MIN_MATCH;
+					while (i + matchLength < matchLimit &&
+							src[ref + matchLength] == src[i + matchLength]) {
+						++matchLength;
+					}
+					final int extra = matchLength - MIN_MATCH;
+					writeLiterals(out, src, anchor, i - anchor, Math.min(extra, 15));
+					out.write((i - ref) & 0xff);
+					out.write((i - ref) >>> 8);
+					if (extra >= 15) {
+						writeLength(out, extra - 15);
+					}
+					i += matchLength;
+					anchor = i;
+				}
+				writeLiterals(out, src, anchor, end - anchor, 0);
+			} finally {
+				BufferPool.release(src);
+			}
+		}
+
+		@Override
+		public void decode(final byte[] blob, final int offset, final int length,
+				final byte[] dictionary, final byte[] out, final int outLength)
+				throws IOException {
+			final int end = offset + length;
+			int ip = offset;
+			int op = 0;
+			try {
+				while (ip < end) {
+					final int token = blob[ip++] & 0xff;
+					int literals = token >>> 4;
+					if (literals == 15) {
+						int b;
+						do {
+							b = blob[ip++] & 0xff;
+							literals += b;
+						} while (b == 0xff);
+					}
+					if (op + literals > outLength || ip + literals > end) {
+						throw new IOException("Corrupt compressed blob");
+					}
+					System.arraycopy(blob, ip, out, op, literals);
+					ip += literals;
+					op += literals;
+					if (ip == end) {
+						break;
+					}
+					final int matchOffset = (blob[ip] & 0xff) | ((blob[ip + 1] & 0xff) << 8);
+					ip += 2;
+					int matchLength = token & 0x0f;
+					if (matchLength == 15) {
+						int b;
+						do {
+							b = blob[ip++] & 0xff;
+							matchLength += b;
+						} while (b == 0xff);
+					}
+					matchLength += MIN_MATCH;
+					if (matchOffset == 0 || op + matchLength > outLength) {
+						throw new IOException("Corrupt compressed blob");
+					}
+					int ref = op - matchOffset;
+					if (ref < 0) {
+						// match starts in the dictionary
+						if (dictionary == null || -ref > dictionary.length) {
+							throw new IOException("Missing blob dictionary");
+						}
+						for (; ref < 0 && matchLength > 0; ++ref, --matchLength) {
+							out[op++] = dictionary[dictionary.length + ref];
+						}
+					}
+					// byte by byte: the match may overlap the output
+					for (; matchLength > 0; --matchLength) {
+						out[op++] = out[ref++];
+					}
+				}
+			} catch (ArrayIndexOutOfBoundsException e) {
+				throw new IOException("Corrupt compressed blob");
+			}
+			if (op != outLength) {
+				throw new IOException("Blob shorter than its recorded length");
+			}
+		}
+	}
+}
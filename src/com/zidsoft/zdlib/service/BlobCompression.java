@@ -0,0 +1,375 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2013 Zidsoft LLC
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.zidsoft.zdlib.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import com.zidsoft.zdlib.common.BufferPool;
+import com.zidsoft.zdlib.common.ZipPool;
+
+/**
+ * Encoding and decoding of compressed database columns. A compressed column
+ * holds the compressed data preceded by a header:
+ * <pre>
+ * byte  MAGIC
+ * byte  codec id, with DICTIONARY set if a dictionary was used
+ * int   original length, big endian
+ * int   dictionary id, big endian, if DICTIONARY is set
+ * </pre>
+ * The magic byte is never the first byte of a zlib stream, so columns
+ * written without the header, which hold zlib data, are still decoded.
+ *
+ * @author faridz
+ *
+ */
+public class BlobCompression {
+	public static final String CHARSET_DEFAULT = "UTF-8";
+	static final int MAGIC = 0x5a;
+	static final int DICTIONARY = 0x80;
+	static final int HEADER_LENGTH = 6;
+	static final int DICTIONARY_HEADER_LENGTH = HEADER_LENGTH + 4;
+	/**
+	 * Expected compression ratio for presizing when the length is not
+	 * recorded.
+	 */
+	private static final int RATIO_ESTIMATE = 4;
+
+	private static final Map<Integer, BlobDictionary> m_mapDictionary =
+			new ConcurrentHashMap<Integer, BlobDictionary>();
+
+	private BlobCompression() {}
+
+	/**
+	 * Register a dictionary for decoding the columns compressed with it.
+	 * @param dictionary
+	 */
+	public static void registerDictionary(final BlobDictionary dictionary) {
+		m_mapDictionary.put(dictionary.getId(), dictionary);
+	}
+
+	/**
+	 * Whether the blob starts with the header.
+	 * @param blob
+	 * @return
+	 */
+	static boolean hasHeader(final byte[] blob) {
+		return blob.length >= HEADER_LENGTH && (blob[0] & 0xff) == MAGIC;
+	}
+
+	private static int readInt(final byte[] blob, final int offset) {
+		return ((blob[offset] & 0xff) << 24) | ((blob[offset + 1] & 0xff) << 16) |
+				((blob[offset + 2] & 0xff) << 8) | (blob[offset + 3] & 0xff);
+	}
+
+	private static void writeInt(final ByteArrayOutputStream out, final int value) {
+		out.write(value >>> 24);
+		out.write(value >>> 16);
+		out.write(value >>> 8);
+		out.write(value);
+	}
+
+	/**
+	 * Get the original length recorded in the blob header.
+	 * @param blob
+	 * @return original length or -1 if the blob has no header
+	 */
+	public static int getOriginalLength(final byte[] blob) {
+		return hasHeader(blob) ? readInt(blob, 2) : -1;
+	}
+
+	private static int getDataOffset(final byte[] blob) {
+		return !hasHeader(blob) ? 0 : (blob[1] & DICTIONARY) != 0 ?
+				DICTIONARY_HEADER_LENGTH : HEADER_LENGTH;
+	}
+
+	private static BlobCodec getCodec(final byte[] blob) throws IOException {
+		return hasHeader(blob) ? BlobCodec.get(blob[1] & BlobCodec.MAX_ID) :
+			BlobCodec.DEFLATE;
+	}
+
+	private static byte[] getDictionary(final byte[] blob) throws IOException {
+		if (!hasHeader(blob) || (blob[1] & DICTIONARY) == 0) {
+			return null;
+		}
+		if (blob.length < DICTIONARY_HEADER_LENGTH) {
+			throw new EOFException("Truncated compressed blob");
+		}
+		final int id = readInt(blob, HEADER_LENGTH);
+		final BlobDictionary dictionary = m_mapDictionary.get(id);
+		if (dictionary == null) {
+			throw new IOException("Blob dictionary not registered: " + id);
+		}
+		return dictionary.getData();
+	}
+
+	/**
+	 * Compress a column.
+	 * @param data
+	 * @param codec
+	 * @param dictionary dictionary or null
+	 * @return column value with the header
+	 * @throws IOException
+	 */
+	public static byte[] encode(final byte[] data, final BlobCodec codec,
+			final BlobDictionary dictionary) throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream(
+				DICTIONARY_HEADER_LENGTH + data.length/2);
+		out.write(MAGIC);
+		out.write(codec.getId() | (dictionary != null ? DICTIONARY : 0));
+		writeInt(out, data.length);
+		if (dictionary != null) {
+			writeInt(out, dictionary.getId());
+		}
+		codec.encode(data, 0, data.length, dictionary == null ? null :
+			dictionary.getData(), out);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Compress a text column.
+	 * @param text
+	 * @param charsetName
+	 * @param codec
+	 * @param dictionary dictionary or null
+	 * @return
+	 * @throws IOException
+	 */
+	public static byte[] encodeString(final String text, final String charsetName,
+			final BlobCodec codec, final BlobDictionary dictionary) throws IOException {
+		return encode(text.getBytes(charsetName), codec, dictionary);
+	}
+
+	/**
+	 * Decode a compressed column.
+	 * @param blob
+	 * @return
+	 * @throws IOException
+	 */
+	public static byte[] decode(final byte[] blob) throws IOException {
+		if (!hasHeader(blob)) {
+			final int[] length = new int[1];
+			final byte[] inflated = inflate(blob, length);
+			try {
+				final byte[] data = new byte[length[0]];
+				System.arraycopy(inflated, 0, data, 0, length[0]);
+				return data;
+			} finally {
+				BufferPool.release(inflated);
+			}
+		}
+		final byte[] data = new byte[getOriginalLength(blob)];
+		final int offset = getDataOffset(blob);
+		getCodec(blob).decode(blob, offset, blob.length - offset,
+				getDictionary(blob), data, data.length);
+		return data;
+	}
+
+	/**
+	 * Decode a compressed text column.
+	 * @param blob
+	 * @param charsetName
+	 * @return
+	 * @throws IOException
+	 */
+	public static String decodeString(final byte[] blob, final String charsetName)
+			throws IOException {
+		if (!hasHeader(blob)) {
+			final int[] length = new int[1];
+			final byte[] out = inflate(blob, length);
+			try {
+				if (length[0] > 0 && out[length[0] - 1] == 0) {
+					// columns written without the header may be zero terminated
+					--length[0];
+				}
+				return new String(out, 0, length[0], charsetName);
+			} finally {
+				BufferPool.release(out);
+			}
+		}
+		final int originalLength = getOriginalLength(blob);
+		final int offset = getDataOffset(blob);
+		final byte[] out = BufferPool.acquire(originalLength);
+		try {
+			getCodec(blob).decode(blob, offset, blob.length - offset,
+					getDictionary(blob), out, originalLength);
+			return new String(out, 0, originalLength, charsetName);
+		} finally {
+			BufferPool.release(out);
+		}
+	}
+
+	/**
+	 * Inflate a column written without the header into a pooled buffer.
+	 * @param blob
+	 * @param length receives the inflated length
+	 * @return buffer to release to the {@link BufferPool}
+	 * @throws IOException
+	 */
+	private static byte[] inflate(final byte[] blob, final int[] length)
+			throws IOException {
+		final Inflater inflater = ZipPool.obtainInflater(false);
+		byte[] out = BufferPool.acquire(blob.length*RATIO_ESTIMATE);
+		try {
+			inflater.setInput(blob, 0, blob.length);
+			int inflatedLength = 0;
+			while (!inflater.finished()) {
+				if (inflatedLength == out.length) {
+					final byte[] grown = BufferPool.acquire(Math.max(out.length*2, 1));
+					System.arraycopy(out, 0, grown, 0, inflatedLength);
+					BufferPool.release(out);
+					out = grown;
+				}
+				final int inflated = inflater.inflate(out, inflatedLength,
+						out.length - inflatedLength);
+				if (inflated == 0 && !inflater.finished()) {
+					if (inflater.needsDictionary()) {
+						throw new IOException("Preset dictionary not supported");
+					}
+					if (inflater.needsInput()) {
+						throw new EOFException("Truncated compressed blob");
+					}
+				}
+				inflatedLength += inflated;
+			}
+			length[0] = inflatedLength;
+			final byte[] inflated = out;
+			out = null;
+			return inflated;
+		} catch (DataFormatException e) {
+			throw new IOException(e.getMessage());
+		} finally {
+			if (out != null) {
+				BufferPool.release(out);
+			}
+			ZipPool.recycle(inflater, false);
+		}
+	}
+
+	/**
+	 * Open a reader that decodes a compressed text column. Deflate columns
+	 * without a dictionary are decoded as they are read, for text too large
+	 * to decode at once; other columns are decoded when opened. Close the
+	 * reader to return its inflater to the pool.
+	 * @param blob
+	 * @param charsetName
+	 * @return
+	 * @throws IOException
+	 */
+	public static Reader openReader(final byte[] blob, final String charsetName)
+			throws IOException {
+		if (getCodec(blob).getId() != BlobCodec.ID_DEFLATE ||
+				getDictionary(blob) != null) {
+			return new InputStreamReader(new ByteArrayInputStream(decode(blob)),
+					charsetName);
+		}
+		final int offset = getDataOffset(blob);
+		final InputStream in = HttpCompression.decode(
+				new HttpCompression.CountingInputStream(new ByteArrayInputStream(
+						blob, offset, blob.length - offset)), HttpCompression.DEFLATE);
+		return new InputStreamReader(hasHeader(blob) ? in :
+			new TrailingNulInputStream(in), charsetName);
+	}
+
+	/**
+	 * Drops a zero byte at the end of the stream, as {@link #decodeString}
+	 * does for columns written without the header. Holds back one byte to
+	 * tell whether it is the last.
+	 */
+	private static class TrailingNulInputStream extends FilterInputStream {
+		private static final int NOT_READ = -2;
+		private int m_next = NOT_READ;
+
+		TrailingNulInputStream(final InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (m_next == NOT_READ) {
+				m_next = in.read();
+			}
+			final int b = m_next;
+			if (b == -1) {
+				return -1;
+			}
+			m_next = in.read();
+			return m_next == -1 && b == 0 ? -1 : b;
+		}
+
+		@Override
+		public int read(final byte[] buffer, final int offset, final int count)
+				throws IOException {
+			if (count == 0) {
+				return 0;
+			}
+			if (m_next == NOT_READ) {
+				m_next = in.read();
+			}
+			if (m_next == -1) {
+				return -1;
+			}
+			buffer[offset] = (byte) m_next;
+			int length = 1;
+			if (count > 1) {
+				length += Math.max(0, in.read(buffer, offset + 1, count - 1));
+			}
+			m_next = in.read();
+			if (m_next == -1 && buffer[offset + length - 1] == 0) {
+				--length;
+			}
+			return length == 0 ? -1 : length;
+		}
+
+		@Override
+		public long skip(final long n) throws IOException {
+			long skipped = 0;
+			while (skipped < n && read() != -1) {
+				++skipped;
+			}
+			return skipped;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return 0;
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,202 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2013 Zidsoft LLC
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.zidsoft.zdlib.service;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.zip.Adler32;
+
+/**
+ * Preset dictionary for compressing small, similar columns, such as cached
+ * json responses, that compress poorly on their own. The dictionary holds
+ * byte strings common to the columns; the codecs refer to it instead of
+ * repeating the strings in every column. The dictionary id, the adler32 of
+ * its data as in the zlib format, is recorded in the column header, so a
+ * dictionary must be registered with
+ * {@link BlobCompression#registerDictionary(BlobDictionary)} before the
+ * columns compressed with it are read, and must never change.
+ *
+ * @author faridz
+ *
+ */
+public class BlobDictionary {
+	public static final int MAX_SIZE_DEFAULT = 16*1024;
+	/**
+	 * Length of the byte strings counted when training.
+	 */
+	private static final int GRAM_LENGTH = 8;
+	/**
+	 * Length of the sample segments the dictionary is made of.
+	 */
+	private static final int SEGMENT_LENGTH = 64;
+
+	private final byte[] m_data;
+	private final int m_id;
+
+	public BlobDictionary(final byte[] data) {
+		m_data = data;
+		final Adler32 adler = new Adler32();
+		adler.update(data);
+		m_id = (int) adler.getValue();
+	}
+
+	public int getId() {
+		return m_id;
+	}
+
+	/**
+	 * Get the dictionary data, to store it with the database.
+	 * @return
+	 */
+	public byte[] getData() {
+		return m_data;
+	}
+
+	private static class Segment {
+		final byte[] sample;
+		final int offset;
+		final int length;
+		long score;
+
+		Segment(final byte[] sample, final int offset, final int length) {
+			this.sample = sample;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	private static long getGram(final byte[] sample, final int i) {
+		long gram = 0;
+		for (int j = 0; j < GRAM_LENGTH; ++j) {
+			gram = (gram << 8) | (sample[i + j] & 0xff);
+		}
+		return gram;
+	}
+
+	/**
+	 * Train a dictionary from sample columns. Counts in how many samples
+	 * each short byte string occurs and picks the sample segments covering
+	 * the most frequent strings not yet covered, until the dictionary is
+	 * full. The best segments are placed last, where the codecs reach them
+	 * with the shortest offsets.
+	 * @param samples uncompressed sample columns
+	 * @param maxSize maximum dictionary size
+	 * @return
+	 */
+	public static BlobDictionary train(final List<byte[]> samples, final int maxSize) {
+		final Map<Long, int[]> frequency = new HashMap<Long, int[]>();
+		final Set<Long> sampleGrams = new HashSet<Long>();
+		for (final byte[] sample : samples) {
+			sampleGrams.clear();
+			for (int i = 0; i + GRAM_LENGTH <= sample.length; ++i) {
+				sampleGrams.add(getGram(sample, i));
+			}
+			for (final Long gram : sampleGrams) {
+				final int[] count = frequency.get(gram);
+				if (count == null) {
+					frequency.put(gram, new int[] {1});
+				} else {
+					++count[0];
+				}
+			}
+		}
+		final Comparator<Segment> byScore = new Comparator<Segment>() {
+
+			@Override
+			public int compare(final Segment a, final Segment b) {
+				return a.score < b.score ? -1 : a.score > b.score ? 1 : 0;
+			}
+		};
+		final PriorityQueue<Segment> segments = new PriorityQueue<Segment>(
+				Math.max(samples.size(), 1), Collections.reverseOrder(byScore));
+		for (final byte[] sample : samples) {
+			for (int offset = 0; offset < sample.length; offset += SEGMENT_LENGTH) {
+				final Segment segment = new Segment(sample, offset,
+						Math.min(SEGMENT_LENGTH, sample.length - offset));
+				segment.score = getScore(segment, frequency);
+				if (segment.score > 0) {
+					segments.add(segment);
+				}
+			}
+		}
+		final List<Segment> selected = new ArrayList<Segment>();
+		int size = 0;
+		while (size < maxSize && !segments.isEmpty()) {
+			// scores only decrease, so a segment still scoring at least the
+			// next best after rescoring is the best
+			final Segment best = segments.poll();
+			best.score = getScore(best, frequency);
+			if (best.score == 0) {
+				continue;
+			}
+			if (!segments.isEmpty() && best.score < segments.peek().score) {
+				segments.add(best);
+				continue;
+			}
+			selected.add(best);
+			size += best.length;
+			// strings covered by the dictionary add nothing to other segments
+			for (int i = best.offset; i + GRAM_LENGTH <= best.offset + best.length; ++i) {
+				frequency.remove(getGram(best.sample, i));
+			}
+		}
+		Collections.sort(selected, byScore);
+		final ByteArrayOutputStream out = new ByteArrayOutputStream(size);
+		for (final Segment segment : selected) {
+			out.write(segment.sample, segment.offset, segment.length);
+		}
+		final byte[] data = out.toByteArray();
+		if (data.length <= maxSize) {
+			return new BlobDictionary(data);
+		}
+		// keep the best segments, which are last
+		final byte[] trimmed = new byte[maxSize];
+		System.arraycopy(data, data.length - maxSize, trimmed, 0, maxSize);
+		return new BlobDictionary(trimmed);
+	}
+
+	/**
+	 * Score a segment by the strings it covers that occur in more than one
+	 * sample.
+	 */
+	private static long getScore(final Segment segment, final Map<Long, int[]> frequency) {
+		long score = 0;
+		for (int i = segment.offset; i + GRAM_LENGTH <= segment.offset + segment.length; ++i) {
+			final int[] count = frequency.get(getGram(segment.sample, i));
+			if (count != null && count[0] > 1) {
+				score += count[0];
+			}
+		}
+		return score;
+	}
+}
@@ -0,0 +1,418 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2013 Zidsoft LLC
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.zidsoft.zdlib.service;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.database.Cursor;
+
+import com.zidsoft.zdlib.util.ZDStringUtils;
+
+/**
+ * Query result held by column in primitive arrays instead of one object per
+ * row, for large lists. Numeric columns are int, long or double arrays with
+ * a null bitmap allocated only for columns with nulls; text columns store an
+ * index into a dictionary of their distinct values; blob columns keep the
+ * column value as read and decode compressed text only when it is accessed.
+ * Rows are read through a reusable {@link Row} view.
+ * <p>Columns are numbered in the order they are added to the
+ * {@link Builder}.</p>
+ *
+ * @author faridz
+ *
+ */
+public class ColumnarResult {
+	public static final int TYPE_INT = 0;
+	public static final int TYPE_LONG = 1;
+	public static final int TYPE_DOUBLE = 2;
+	public static final int TYPE_BOOLEAN = 3;
+	public static final int TYPE_STRING = 4;
+	public static final int TYPE_BLOB = 5;
+	private static final int CAPACITY_DEFAULT = 16;
+
+	private final Column[] m_columns;
+	private final int m_rowCount;
+
+	private static class Column {
+		final String name;
+		final IResultsetCol col;
+		final int type;
+		final int flags;
+		int index;
+		int[] ints;
+		long[] longs;
+		double[] doubles;
+		byte[][] blobs;
+		/**
+		 * Distinct text values, indexed by the ints.
+		 */
+		List<String> dictionary;
+		Map<String, Integer> dictionaryIndex;
+		/**
+		 * Bit per row set for null values, or null if there are none.
+		 */
+		long[] nulls;
+
+		Column(final String name, final IResultsetCol col, final int type,
+				final int flags) {
+			this.name = name;
+			this.col = col;
+			this.type = type;
+			this.flags = flags;
+		}
+
+		void allocate(final int capacity) {
+			switch (type) {
+			case TYPE_LONG:
+				longs = new long[capacity];
+				break;
+			case TYPE_DOUBLE:
+				doubles = new double[capacity];
+				break;
+			case TYPE_BLOB:
+				blobs = new byte[capacity][];
+				break;
+			default:
+				// int, boolean and dictionary coded text columns
+				ints = new int[capacity];
+				break;
+			}
+			if (type == TYPE_STRING) {
+				dictionary = new ArrayList<String>();
+				dictionaryIndex = new HashMap<String, Integer>();
+			}
+		}
+
+		void grow(final int capacity) {
+			if (ints != null) {
+				final int[] grown = new int[capacity];
+				System.arraycopy(ints, 0, grown, 0, ints.length);
+				ints = grown;
+			} else if (longs != null) {
+				final long[] grown = new long[capacity];
+				System.arraycopy(longs, 0, grown, 0, longs.length);
+				longs = grown;
+			} else if (doubles != null) {
+				final double[] grown = new double[capacity];
+				System.arraycopy(doubles, 0, grown, 0, doubles.length);
+				doubles = grown;
+			} else {
+				final byte[][] grown = new byte[capacity][];
+				System.arraycopy(blobs, 0, grown, 0, blobs.length);
+				blobs = grown;
+			}
+		}
+
+		void setNull(final int row) {
+			if (nulls == null) {
+				nulls = new long[(getCapacity() + 63) >>> 6];
+			} else if ((row >>> 6) >= nulls.length) {
+				final long[] grown = new long[(getCapacity() + 63) >>> 6];
+				System.arraycopy(nulls, 0, grown, 0, nulls.length);
+				nulls = grown;
+			}
+			nulls[row >>> 6] |= 1L << (row & 63);
+		}
+
+		boolean isNull(final int row) {
+			return nulls != null && (row >>> 6) < nulls.length &&
+					(nulls[row >>> 6] & (1L << (row & 63))) != 0;
+		}
+
+		int getCapacity() {
+			return ints != null ? ints.length : longs != null ? longs.length :
+				doubles != null ? doubles.length : blobs.length;
+		}
+
+		void read(final Cursor cur, final int row) {
+			final boolean isNull = (flags & ServiceCallDb.ColAttr.NOT_NULL) == 0 &&
+					cur.isNull(index);
+			if (isNull) {
+				setNull(row);
+				if (type == TYPE_STRING) {
+					ints[row] = -1;
+				}
+				return;
+			}
+			switch (type) {
+			case TYPE_INT:
+				ints[row] = cur.getInt(index);
+				break;
+			case TYPE_LONG:
+				longs[row] = cur.getLong(index);
+				break;
+			case TYPE_DOUBLE:
+				doubles[row] = cur.getDouble(index);
+				break;
+			case TYPE_BOOLEAN:
+				ints[row] = ZDStringUtils.isTrue(cur.getString(index)) ? 1 : 0;
+				break;
+			case TYPE_STRING:
+				final String value = cur.getString(index);
+				Integer code = dictionaryIndex.get(value);
+				if (code == null) {
+					code = dictionary.size();
+					dictionary.add(value);
+					dictionaryIndex.put(value, code);
+				}
+				ints[row] = code;
+				break;
+			default:
+				blobs[row] = cur.getBlob(index);
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Defines the columns of a result and reads it from a cursor. A builder
+	 * can be reused for any number of cursors.
+	 */
+	public static class Builder {
+		private final List<Column> m_columns = new ArrayList<Column>();
+
+		private Builder add(final String name, final IResultsetCol col,
+				final int type, final int flags) {
+			m_columns.add(new Column(name, col, type, flags));
+			return this;
+		}
+
+		/**
+		 * Add a column.
+		 * @param col
+		 * @param type one of the TYPE constants
+		 * @param flags {@link ServiceCallDb.ColAttr} flags
+		 * @return
+		 */
+		public Builder add(final IResultsetCol col, final int type, final int flags) {
+			return add(null, col, type, flags);
+		}
+
+		/**
+		 * Add a column by name, resolved once per cursor.
+		 * @param name
+		 * @param type one of the TYPE constants
+		 * @param flags {@link ServiceCallDb.ColAttr} flags
+		 * @return
+		 */
+		public Builder add(final String name, final int type, final int flags) {
+			return add(name, null, type, flags);
+		}
+
+		/**
+		 * Read the remaining rows of the cursor.
+		 * @param cur
+		 * @return
+		 */
+		public ColumnarResult read(final Cursor cur) {
+			final Column[] columns = new Column[m_columns.size()];
+			int capacity = Math.max(cur.getCount() - Math.max(cur.getPosition(), -1) - 1,
+					CAPACITY_DEFAULT);
+			for (int i = 0; i < columns.length; ++i) {
+				final Column definition = m_columns.get(i);
+				final Column column = new Column(definition.name, definition.col,
+						definition.type, definition.flags);
+				column.index = column.col != null ? column.col.getIndex() :
+					cur.getColumnIndexOrThrow(column.name);
+				column.allocate(capacity);
+				columns[i] = column;
+			}
+			int row = 0;
+			while (cur.moveToNext()) {
+				if (row == capacity) {
+					capacity *= 2;
+					for (final Column column : columns) {
+						column.grow(capacity);
+					}
+				}
+				for (final Column column : columns) {
+					column.read(cur, row);
+				}
+				++row;
+			}
+			for (final Column column : columns) {
+				// only needed while reading
+				column.dictionaryIndex = null;
+			}
+			return new ColumnarResult(columns, row);
+		}
+	}
+
+	/**
+	 * View of one row of the result. Move it to another row instead of
+	 * creating a view per row.
+	 */
+	public class Row {
+		private int m_row = -1;
+
+		public Row moveToPosition(final int row) {
+			if (row < 0 || row >= m_rowCount) {
+				throw new IndexOutOfBoundsException("Row " + row + " of " + m_rowCount);
+			}
+			m_row = row;
+			return this;
+		}
+
+		public boolean moveToNext() {
+			if (m_row + 1 >= m_rowCount) {
+				return false;
+			}
+			++m_row;
+			return true;
+		}
+
+		public int getPosition() {
+			return m_row;
+		}
+
+		public boolean isNull(final int column) {
+			return ColumnarResult.this.isNull(m_row, column);
+		}
+
+		public int getInt(final int column) {
+			return ColumnarResult.this.getInt(m_row, column);
+		}
+
+		public long getLong(final int column) {
+			return ColumnarResult.this.getLong(m_row, column);
+		}
+
+		public double getDouble(final int column) {
+			return ColumnarResult.this.getDouble(m_row, column);
+		}
+
+		public boolean getBoolean(final int column) {
+			return ColumnarResult.this.getBoolean(m_row, column);
+		}
+
+		public String getString(final int column) {
+			return ColumnarResult.this.getString(m_row, column);
+		}
+
+		public byte[] getBlob(final int column) {
+			return ColumnarResult.this.getBlob(m_row, column);
+		}
+
+		public String getLongString(final int column, final String charsetName)
+				throws IOException {
+			return ColumnarResult.this.getLongString(m_row, column, charsetName);
+		}
+	}
+
+	private ColumnarResult(final Column[] columns, final int rowCount) {
+		m_columns = columns;
+		m_rowCount = rowCount;
+	}
+
+	public int getRowCount() {
+		return m_rowCount;
+	}
+
+	public int getColumnCount() {
+		return m_columns.length;
+	}
+
+	/**
+	 * Get a view positioned before the first row.
+	 * @return
+	 */
+	public Row newRow() {
+		return new Row();
+	}
+
+	public boolean isNull(final int row, final int column) {
+		return m_columns[column].isNull(row);
+	}
+
+	/**
+	 * Get an int column value.
+	 * @param row
+	 * @param column
+	 * @return value or 0 if null
+	 */
+	public int getInt(final int row, final int column) {
+		return m_columns[column].ints[row];
+	}
+
+	public long getLong(final int row, final int column) {
+		return m_columns[column].longs[row];
+	}
+
+	public double getDouble(final int row, final int column) {
+		return m_columns[column].doubles[row];
+	}
+
+	public boolean getBoolean(final int row, final int column) {
+		return m_columns[column].ints[row] != 0;
+	}
+
+	public String getString(final int row, final int column) {
+		final Column col = m_columns[column];
+		final int code = col.ints[row];
+		return code < 0 ? null : col.dictionary.get(code);
+	}
+
+	/**
+	 * Get the number of distinct values of a text column.
+	 * @param column
+	 * @return
+	 */
+	public int getDistinctCount(final int column) {
+		return m_columns[column].dictionary.size();
+	}
+
+	/**
+	 * Get the column value of a blob column as read.
+	 * @param row
+	 * @param column
+	 * @return
+	 */
+	public byte[] getBlob(final int row, final int column) {
+		return m_columns[column].blobs[row];
+	}
+
+	/**
+	 * Get the text of a blob column, decoding it now if the column was added
+	 * with {@link ServiceCallDb.ColAttr#COMPRESSED}.
+	 * @param row
+	 * @param column
+	 * @param charsetName
+	 * @return
+	 * @throws IOException
+	 */
+	public String getLongString(final int row, final int column,
+			final String charsetName) throws IOException {
+		final Column col = m_columns[column];
+		final byte[] blob = col.blobs[row];
+		return blob == null ? null :
+			(col.flags & ServiceCallDb.ColAttr.COMPRESSED) != 0 ?
+					BlobCompression.decodeString(blob, charsetName) :
+						new String(blob, charsetName);
+	}
+}
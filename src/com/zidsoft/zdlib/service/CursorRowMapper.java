@@ -0,0 +1,320 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2013 Zidsoft LLC
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.zidsoft.zdlib.service;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.database.Cursor;
+
+import com.zidsoft.zdlib.util.ZDStringUtils;
+
+/**
+ * Maps cursor rows to objects. The columns are bound once to typed setters,
+ * by {@link IResultsetCol} or by column name, and the names are resolved to
+ * column indexes once per cursor by {@link #compile(Cursor)}. Mapping a row
+ * then only calls the primitive cursor getters and setters, without boxing
+ * or reflection.
+ * <p>A null column is not set, so the row keeps its default, unless the
+ * column is bound with {@link ServiceCallDb.ColAttr#NOT_NULL}, in which case
+ * it is not checked for null. String and blob setters receive null columns
+ * as null.</p>
+ * <p>A mapper is immutable once bound and can be shared by threads.</p>
+ *
+ * @author faridz
+ *
+ * @param <T> row type
+ */
+public class CursorRowMapper<T> {
+
+	public interface Factory<T> {
+		T newRow();
+	}
+
+	public interface IntSetter<T> {
+		void set(T row, int value);
+	}
+
+	public interface LongSetter<T> {
+		void set(T row, long value);
+	}
+
+	public interface DoubleSetter<T> {
+		void set(T row, double value);
+	}
+
+	public interface BooleanSetter<T> {
+		void set(T row, boolean value);
+	}
+
+	public interface StringSetter<T> {
+		void set(T row, String value);
+	}
+
+	public interface BlobSetter<T> {
+		void set(T row, byte[] value);
+	}
+
+	/**
+	 * Column bound to a setter.
+	 */
+	private static abstract class Binding<T> {
+		final IResultsetCol col;
+		final String name;
+		final boolean checkNull;
+
+		Binding(final IResultsetCol col, final String name, final int flags) {
+			this.col = col;
+			this.name = name;
+			this.checkNull = (flags & ServiceCallDb.ColAttr.NOT_NULL) == 0;
+		}
+
+		int resolve(final Cursor cur) {
+			return col != null ? col.getIndex() : cur.getColumnIndexOrThrow(name);
+		}
+
+		abstract void map(Cursor cur, int index, T row);
+	}
+
+	private final Factory<T> m_factory;
+	private final List<Binding<T>> m_bindings = new ArrayList<Binding<T>>();
+
+	public CursorRowMapper(final Factory<T> factory) {
+		m_factory = factory;
+	}
+
+	private CursorRowMapper<T> add(final Binding<T> binding) {
+		m_bindings.add(binding);
+		return this;
+	}
+
+	private Binding<T> newInt(final IResultsetCol col, final String name,
+			final int flags, final IntSetter<T> setter) {
+		return new Binding<T>(col, name, flags) {
+
+			@Override
+			void map(final Cursor cur, final int index, final T row) {
+				if (!checkNull || !cur.isNull(index)) {
+					setter.set(row, cur.getInt(index));
+				}
+			}
+		};
+	}
+
+	private Binding<T> newLong(final IResultsetCol col, final String name,
+			final int flags, final LongSetter<T> setter) {
+		return new Binding<T>(col, name, flags) {
+
+			@Override
+			void map(final Cursor cur, final int index, final T row) {
+				if (!checkNull || !cur.isNull(index)) {
+					setter.set(row, cur.getLong(index));
+				}
+			}
+		};
+	}
+
+	private Binding<T> newDouble(final IResultsetCol col, final String name,
+			final int flags, final DoubleSetter<T> setter) {
+		return new Binding<T>(col, name, flags) {
+
+			@Override
+			void map(final Cursor cur, final int index, final T row) {
+				if (!checkNull || !cur.isNull(index)) {
+					setter.set(row, cur.getDouble(index));
+				}
+			}
+		};
+	}
+
+	/**
+	 * Boolean columns are read as by {@link ServiceCallDb}, so text values
+	 * such as "N" or "false" are false.
+	 */
+	private Binding<T> newBoolean(final IResultsetCol col, final String name,
+			final int flags, final BooleanSetter<T> setter) {
+		return new Binding<T>(col, name, flags) {
+
+			@Override
+			void map(final Cursor cur, final int index, final T row) {
+				if (!checkNull || !cur.isNull(index)) {
+					setter.set(row, ZDStringUtils.isTrue(cur.getString(index)));
+				}
+			}
+		};
+	}
+
+	private Binding<T> newString(final IResultsetCol col, final String name,
+			final int flags, final StringSetter<T> setter) {
+		return new Binding<T>(col, name, flags) {
+
+			@Override
+			void map(final Cursor cur, final int index, final T row) {
+				setter.set(row, cur.getString(index));
+			}
+		};
+	}
+
+	private Binding<T> newBlob(final IResultsetCol col, final String name,
+			final int flags, final BlobSetter<T> setter) {
+		return new Binding<T>(col, name, flags) {
+
+			@Override
+			void map(final Cursor cur, final int index, final T row) {
+				setter.set(row, cur.getBlob(index));
+			}
+		};
+	}
+
+	public CursorRowMapper<T> bindInt(final IResultsetCol col, final int flags,
+			final IntSetter<T> setter) {
+		return add(newInt(col, null, flags, setter));
+	}
+
+	public CursorRowMapper<T> bindInt(final String name, final int flags,
+			final IntSetter<T> setter) {
+		return add(newInt(null, name, flags, setter));
+	}
+
+	public CursorRowMapper<T> bindLong(final IResultsetCol col, final int flags,
+			final LongSetter<T> setter) {
+		return add(newLong(col, null, flags, setter));
+	}
+
+	public CursorRowMapper<T> bindLong(final String name, final int flags,
+			final LongSetter<T> setter) {
+		return add(newLong(null, name, flags, setter));
+	}
+
+	public CursorRowMapper<T> bindDouble(final IResultsetCol col, final int flags,
+			final DoubleSetter<T> setter) {
+		return add(newDouble(col, null, flags, setter));
+	}
+
+	public CursorRowMapper<T> bindDouble(final String name, final int flags,
+			final DoubleSetter<T> setter) {
+		return add(newDouble(null, name, flags, setter));
+	}
+
+	public CursorRowMapper<T> bindBoolean(final IResultsetCol col, final int flags,
+			final BooleanSetter<T> setter) {
+		return add(newBoolean(col, null, flags, setter));
+	}
+
+	public CursorRowMapper<T> bindBoolean(final String name, final int flags,
+			final BooleanSetter<T> setter) {
+		return add(newBoolean(null, name, flags, setter));
+	}
+
+	public CursorRowMapper<T> bindString(final IResultsetCol col,
+			final StringSetter<T> setter) {
+		return add(newString(col, null, 0, setter));
+	}
+
+	public CursorRowMapper<T> bindString(final String name,
+			final StringSetter<T> setter) {
+		return add(newString(null, name, 0, setter));
+	}
+
+	public CursorRowMapper<T> bindBlob(final IResultsetCol col,
+			final BlobSetter<T> setter) {
+		return add(newBlob(col, null, 0, setter));
+	}
+
+	public CursorRowMapper<T> bindBlob(final String name,
+			final BlobSetter<T> setter) {
+		return add(newBlob(null, name, 0, setter));
+	}
+
+	/**
+	 * Mapper of the rows of one cursor, with the column indexes resolved.
+	 */
+	public static class Compiled<T> {
+		private final Factory<T> m_factory;
+		private final Binding<T>[] m_bindings;
+		private final int[] m_indexes;
+
+		Compiled(final Factory<T> factory, final Binding<T>[] bindings,
+				final int[] indexes) {
+			m_factory = factory;
+			m_bindings = bindings;
+			m_indexes = indexes;
+		}
+
+		/**
+		 * Map the current row into an existing object.
+		 * @param cur
+		 * @param row
+		 * @return the row
+		 */
+		public T map(final Cursor cur, final T row) {
+			final Binding<T>[] bindings = m_bindings;
+			final int[] indexes = m_indexes;
+			for (int i = 0; i < bindings.length; ++i) {
+				bindings[i].map(cur, indexes[i], row);
+			}
+			return row;
+		}
+
+		/**
+		 * Map the current row into a new object.
+		 * @param cur
+		 * @return
+		 */
+		public T map(final Cursor cur) {
+			return map(cur, m_factory.newRow());
+		}
+	}
+
+	/**
+	 * Resolve the column indexes for the cursor.
+	 * @param cur
+	 * @return
+	 * @throws IllegalArgumentException if a column name is not in the cursor
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public Compiled<T> compile(final Cursor cur) {
+		final Binding<T>[] bindings = m_bindings.toArray(new Binding[m_bindings.size()]);
+		final int[] indexes = new int[bindings.length];
+		for (int i = 0; i < bindings.length; ++i) {
+			indexes[i] = bindings[i].resolve(cur);
+		}
+		return new Compiled<T>(m_factory, bindings, indexes);
+	}
+
+	/**
+	 * Map the remaining rows of the cursor.
+	 * @param cur
+	 * @return
+	 */
+	public List<T> mapAll(final Cursor cur) {
+		final Compiled<T> compiled = compile(cur);
+		final List<T> rows = new ArrayList<T>(Math.max(cur.getCount(), 0));
+		while (cur.moveToNext()) {
+			rows.add(compiled.map(cur));
+		}
+		return rows;
+	}
+}
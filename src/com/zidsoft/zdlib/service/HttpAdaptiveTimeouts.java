@@ -0,0 +1,223 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2013 Zidsoft LLC
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.zidsoft.zdlib.service;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Connect and read timeouts derived from the observed latencies of each
+ * service. Keeps a rolling window of connect and response latencies per
+ * service and sets the timeouts to a multiple of a high percentile, within
+ * a floor and a ceiling. Until a service has enough samples, and never
+ * above them, the call's own timeouts are used.
+ * <p>A call that times out records the timeout as its latency, so a service
+ * that slows down raises its own timeouts.</p>
+ *
+ * @author faridz
+ *
+ */
+public class HttpAdaptiveTimeouts {
+	public static final int WINDOW_SIZE_DEFAULT = 200;
+	public static final int MIN_SAMPLES_DEFAULT = 20;
+	public static final double PERCENTILE_DEFAULT = 0.99;
+	public static final double MULTIPLIER_DEFAULT = 3;
+	public static final int FLOOR_MILLIS_DEFAULT = 2*1000;		// 2 seconds
+	public static final int CEILING_MILLIS_DEFAULT = 60*1000;	// 60 seconds
+	/**
+	 * Samples added before the percentile is computed again.
+	 */
+	private static final int RECOMPUTE_INTERVAL = 8;
+
+	private static HttpAdaptiveTimeouts m_instance;
+
+	private final int m_windowSize;
+	private final int m_minSamples;
+	private final double m_percentile;
+	private final double m_multiplier;
+	private final int m_floorMillis;
+	private final int m_ceilingMillis;
+	private final Map<String, Window> m_connect = new ConcurrentHashMap<String, Window>();
+	private final Map<String, Window> m_response = new ConcurrentHashMap<String, Window>();
+
+	/**
+	 * Rolling window of latency samples.
+	 */
+	private static class Window {
+		final long[] samples;
+		int next;
+		int count;
+		int added;
+		long percentile = -1;
+
+		Window(final int size) {
+			samples = new long[size];
+		}
+
+		synchronized void add(final long millis) {
+			samples[next] = millis;
+			next = (next + 1) % samples.length;
+			if (count < samples.length) {
+				++count;
+			}
+			++added;
+		}
+
+		synchronized long getPercentile(final double percentile, final int minSamples) {
+			if (count < minSamples) {
+				return -1;
+			}
+			if (this.percentile < 0 || added >= RECOMPUTE_INTERVAL) {
+				final long[] sorted = new long[count];
+				System.arraycopy(samples, 0, sorted, 0, count);
+				Arrays.sort(sorted);
+				final int index = (int) Math.ceil(percentile*count) - 1;
+				this.percentile = sorted[Math.max(0, Math.min(count - 1, index))];
+				added = 0;
+			}
+			return this.percentile;
+		}
+	}
+
+	public static synchronized HttpAdaptiveTimeouts getInstance() {
+		if (m_instance == null) {
+			m_instance = new HttpAdaptiveTimeouts(WINDOW_SIZE_DEFAULT,
+					MIN_SAMPLES_DEFAULT, PERCENTILE_DEFAULT, MULTIPLIER_DEFAULT,
+					FLOOR_MILLIS_DEFAULT, CEILING_MILLIS_DEFAULT);
+		}
+		return m_instance;
+	}
+
+	/**
+	 * Replace the default instance.
+	 * @param timeouts
+	 */
+	public static synchronized void setInstance(final HttpAdaptiveTimeouts timeouts) {
+		m_instance = timeouts;
+	}
+
+	/**
+	 * @param windowSize number of latest samples kept per service
+	 * @param minSamples samples needed before the timeouts adapt
+	 * @param percentile latency percentile, for example 0.99
+	 * @param multiplier timeout as a multiple of the percentile latency
+	 * @param floorMillis minimum timeout
+	 * @param ceilingMillis maximum timeout
+	 */
+	public HttpAdaptiveTimeouts(final int windowSize, final int minSamples,
+			final double percentile, final double multiplier, final int floorMillis,
+			final int ceilingMillis) {
+		m_windowSize = windowSize;
+		m_minSamples = minSamples;
+		m_percentile = percentile;
+		m_multiplier = multiplier;
+		m_floorMillis = floorMillis;
+		m_ceilingMillis = ceilingMillis;
+	}
+
+	/**
+	 * Get the key of the service the call belongs to.
+	 * @param call
+	 * @return
+	 */
+	static String getKey(final ServiceCallHttp call) {
+		return call.servicePath + "/" + call.serviceName;
+	}
+
+	/**
+	 * Get the connect timeout for the service.
+	 * @param key service key: service path, '/' and service name
+	 * @param timeoutMillis the call's own connect timeout
+	 * @return
+	 */
+	public int getConnectTimeout(final String key, final int timeoutMillis) {
+		return getTimeout(m_connect.get(key), timeoutMillis);
+	}
+
+	/**
+	 * Get the read timeout for the service.
+	 * @param key service key
+	 * @param timeoutMillis the call's own read timeout
+	 * @return
+	 */
+	public int getReadTimeout(final String key, final int timeoutMillis) {
+		return getTimeout(m_response.get(key), timeoutMillis);
+	}
+
+	private int getTimeout(final Window window, final int timeoutMillis) {
+		final long percentile = window == null ? -1 :
+			window.getPercentile(m_percentile, m_minSamples);
+		if (percentile < 0) {
+			return timeoutMillis;
+		}
+		final long timeout = Math.max(m_floorMillis,
+				Math.min(m_ceilingMillis, (long) (m_multiplier*percentile)));
+		return (int) Math.min(timeout, timeoutMillis);
+	}
+
+	/**
+	 * Record the time the service took to connect.
+	 * @param key
+	 * @param millis
+	 */
+	void recordConnect(final String key, final long millis) {
+		getWindow(m_connect, key).add(millis);
+	}
+
+	/**
+	 * Record the time the service took to send the response headers, from
+	 * the start of the request.
+	 * @param key
+	 * @param millis
+	 */
+	void recordResponse(final String key, final long millis) {
+		getWindow(m_response, key).add(millis);
+	}
+
+	private Window getWindow(final Map<String, Window> windows, final String key) {
+		Window window = windows.get(key);
+		if (window == null) {
+			synchronized (windows) {
+				window = windows.get(key);
+				if (window == null) {
+					window = new Window(m_windowSize);
+					windows.put(key, window);
+				}
+			}
+		}
+		return window;
+	}
+
+	/**
+	 * Get the percentile response latency of the service.
+	 * @param key
+	 * @return latency in milliseconds or -1 if there are not enough samples
+	 */
+	public long getResponsePercentile(final String key) {
+		final Window window = m_response.get(key);
+		return window == null ? -1 : window.getPercentile(m_percentile, m_minSamples);
+	}
+}
@@ -0,0 +1,62 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2013 Zidsoft LLC
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.zidsoft.zdlib.service;
+
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * Wire format of the batch requests sent by an {@link HttpBatcher}. The
+ * server batch endpoint must implement the same format.
+ *
+ * @author faridz
+ *
+ */
+public interface HttpBatchEnvelope {
+	/**
+	 * Get the content type of the batch request body.
+	 * @return
+	 */
+	String getContentType();
+
+	/**
+	 * Write the batch request body.
+	 * @param parts batched requests
+	 * @param out output stream. Implementations should not close the stream.
+	 * @throws Exception
+	 */
+	void encode(List<HttpBatcher.Part> parts, OutputStream out) throws Exception;
+
+	/**
+	 * Read the batch response body.
+	 * @param body batch response body
+	 * @param parts batched requests
+	 * @return response per part, in the order of the parts. A null or
+	 * missing response sends the part again on its own.
+	 * @throws Exception
+	 */
+	List<NioHttpTransport.Response> decode(HttpResponseBody body,
+			List<HttpBatcher.Part> parts) throws Exception;
+}
@@ -0,0 +1,277 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2013 Zidsoft LLC
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.zidsoft.zdlib.service;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.util.Log;
+
+/**
+ * Collects GET {@link ServiceCallHttp} calls made within a short window and
+ * sends them to a batch endpoint as one POST request. The batch response is
+ * split into a result per call, and each call finishes with its own client
+ * notification. A call whose part of the batch response is missing, and all
+ * the calls of a batch that fails as a whole, are sent again on their own so
+ * one call cannot fail the others.
+ * <p>Calls opt in by returning the batcher from
+ * {@link ServiceCallHttp#getBatcher()}. The request and response format is
+ * defined by the {@link HttpBatchEnvelope}.</p>
+ *
+ * @author faridz
+ *
+ */
+public class HttpBatcher {
+	private static final String TAG = HttpBatcher.class.getSimpleName();
+	public static final long WINDOW_MILLIS_DEFAULT = 10;
+	public static final int MAX_SIZE_DEFAULT = 20;
+
+	private static final ScheduledExecutorService m_timer =
+			new ScheduledThreadPoolExecutor(1);
+
+	private final URL m_url;
+	private final HttpBatchEnvelope m_envelope;
+	private final long m_windowMillis;
+	private final int m_maxSize;
+	private List<Part> m_parts = new ArrayList<Part>();
+
+	private final AtomicLong m_batchCount = new AtomicLong();
+	private final AtomicLong m_batchedCallCount = new AtomicLong();
+	private final AtomicLong m_unbatchedCallCount = new AtomicLong();
+
+	/**
+	 * Request of a call in a batch.
+	 */
+	public static class Part {
+		public final URL url;
+		public final String method;
+		public final Map<String, String> headers;
+		final ServiceCallHttp call;
+		final ServiceCallHttpResult result;
+
+		Part(final ServiceCallHttp call, final ServiceCallHttpResult result,
+				final URL url, final Map<String, String> headers) {
+			this.call = call;
+			this.result = result;
+			this.url = url;
+			this.method = "GET";
+			this.headers = headers;
+		}
+	}
+
+	/**
+	 * @param url batch endpoint url
+	 * @param envelope batch format
+	 * @param windowMillis time to wait for more calls after the first call of
+	 * a batch
+	 * @param maxSize number of calls that sends the batch without waiting
+	 * for the window to end
+	 */
+	public HttpBatcher(final URL url, final HttpBatchEnvelope envelope,
+			final long windowMillis, final int maxSize) {
+		m_url = url;
+		m_envelope = envelope;
+		m_windowMillis = windowMillis;
+		m_maxSize = maxSize;
+	}
+
+	public HttpBatcher(final URL url, final HttpBatchEnvelope envelope) {
+		this(url, envelope, WINDOW_MILLIS_DEFAULT, MAX_SIZE_DEFAULT);
+	}
+
+	/**
+	 * Add a call to the current batch.
+	 * @param part
+	 */
+	void add(final Part part) {
+		final List<Part> full;
+		synchronized (this) {
+			m_parts.add(part);
+			if (m_parts.size() == 1) {
+				final List<Part> batch = m_parts;
+				m_timer.schedule(new Runnable() {
+
+					@Override
+					public void run() {
+						flush(batch);
+					}
+				}, m_windowMillis, TimeUnit.MILLISECONDS);
+			}
+			if (m_parts.size() < m_maxSize) {
+				return;
+			}
+			full = m_parts;
+		}
+		flush(full);
+	}
+
+	/**
+	 * Send the batch unless it was already sent.
+	 * @param batch
+	 */
+	private void flush(final List<Part> batch) {
+		synchronized (this) {
+			if (batch != m_parts) {
+				// already sent
+				return;
+			}
+			m_parts = new ArrayList<Part>();
+		}
+		ServiceCall.executeInBackground(new Runnable() {
+
+			@Override
+			public void run() {
+				if (batch.size() == 1) {
+					sendUnbatched(batch.get(0));
+				} else {
+					send(batch);
+				}
+			}
+		});
+	}
+
+	private void sendUnbatched(final Part part) {
+		m_unbatchedCallCount.incrementAndGet();
+		final ServiceCallResult result = part.call.sendUnbatched();
+		if (result != ServiceCall.RESULT_PENDING) {
+			part.call.complete(result);
+		}
+	}
+
+	private void send(final List<Part> batch) {
+		List<NioHttpTransport.Response> responses = null;
+		final HttpConnectionPool pool = HttpConnectionPool.getInstance();
+		HttpURLConnection urlConnection = null;
+		boolean reusable = false;
+		try {
+			final ByteArrayOutputStream body = new ByteArrayOutputStream();
+			m_envelope.encode(batch, body);
+			pool.acquire(m_url);
+			try {
+				urlConnection = (HttpURLConnection) m_url.openConnection();
+				urlConnection.setConnectTimeout(ServiceCallHttp.CONNECT_TIMEOUT_DEFAULT);
+				urlConnection.setReadTimeout(ServiceCallHttp.READ_TIMEOUT_DEFAULT);
+				urlConnection.setRequestProperty("Content-Type",
+						m_envelope.getContentType());
+				urlConnection.setRequestProperty("Accept-Encoding",
+						HttpCompression.ACCEPT_ENCODING);
+				urlConnection.setDoOutput(true);
+				urlConnection.setRequestMethod("POST");
+				urlConnection.setFixedLengthStreamingMode(body.size());
+				final OutputStream out = urlConnection.getOutputStream();
+				try {
+					body.writeTo(out);
+				} finally {
+					out.close();
+				}
+				final int responseCode = urlConnection.getResponseCode();
+				if (responseCode == HttpURLConnection.HTTP_OK) {
+					final String contentEncoding = urlConnection.getContentEncoding();
+					InputStream in = new HttpCompression.CountingInputStream(
+							urlConnection.getInputStream());
+					long contentLength = urlConnection.getContentLength();
+					if (HttpCompression.isSupported(contentEncoding)) {
+						in = HttpCompression.decode(
+								(HttpCompression.CountingInputStream) in, contentEncoding);
+						contentLength = -1;
+					}
+					in = new BufferedInputStream(in);
+					try {
+						responses = m_envelope.decode(
+								new HttpResponseBody(in, contentLength), batch);
+						reusable = HttpConnectionPool.drain(in);
+					} finally {
+						in.close();
+					}
+				} else {
+					Log.e(TAG, "Batch request failed. Response Code: " + responseCode);
+					reusable = HttpConnectionPool.drain(urlConnection.getErrorStream());
+				}
+			} finally {
+				if (urlConnection != null && !reusable) {
+					urlConnection.disconnect();
+				}
+				pool.release(m_url, reusable);
+			}
+		} catch (Exception e) {
+			Log.e(TAG, "Batch request failed", e);
+		}
+		m_batchCount.incrementAndGet();
+		for (int i = 0; i < batch.size(); ++i) {
+			final Part part = batch.get(i);
+			final NioHttpTransport.Response response = responses != null &&
+					i < responses.size() ? responses.get(i) : null;
+			if (response == null) {
+				// isolate the call from the failed batch
+				ServiceCall.executeInBackground(new Runnable() {
+
+					@Override
+					public void run() {
+						sendUnbatched(part);
+					}
+				});
+			} else {
+				m_batchedCallCount.incrementAndGet();
+				part.call.completeResponse(part.call.readResponse(response, part.result));
+			}
+		}
+	}
+
+	/**
+	 * Get the number of batch requests sent.
+	 * @return
+	 */
+	public long getBatchCount() {
+		return m_batchCount.get();
+	}
+
+	/**
+	 * Get the number of calls completed from a batch response.
+	 * @return
+	 */
+	public long getBatchedCallCount() {
+		return m_batchedCallCount.get();
+	}
+
+	/**
+	 * Get the number of calls sent on their own because they were alone in
+	 * their batch window or their batch failed.
+	 * @return
+	 */
+	public long getUnbatchedCallCount() {
+		return m_unbatchedCallCount.get();
+	}
+}
@@ -0,0 +1,426 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2013 Zidsoft LLC
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.zidsoft.zdlib.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.zidsoft.zdlib.common.BufferPool;
+import com.zidsoft.zdlib.common.ZipPool;
+
+/**
+ * Http content coding support for {@link ServiceCallHttp}: gzip and deflate
+ * response decoding and gzip request body encoding using pooled inflaters and
+ * deflaters.
+ *
+ * @author faridz
+ *
+ */
+public class HttpCompression {
+	public static final String ACCEPT_ENCODING = "gzip, deflate";
+	public static final String GZIP = "gzip";
+	public static final String DEFLATE = "deflate";
+
+	private static final int GZIP_MAGIC = 0x8b1f;
+	private static final int FHCRC = 2;
+	private static final int FEXTRA = 4;
+	private static final int FNAME = 8;
+	private static final int FCOMMENT = 16;
+
+	private static final int BUFFER_SIZE = 8*1024;
+
+	private HttpCompression() {}
+
+	/**
+	 * Determine whether the content coding is supported.
+	 * @param contentEncoding Content-Encoding header value, may be null
+	 * @return
+	 */
+	public static boolean isSupported(final String contentEncoding) {
+		return GZIP.equalsIgnoreCase(contentEncoding) ||
+				DEFLATE.equalsIgnoreCase(contentEncoding);
+	}
+
+	/**
+	 * Stream that counts the bytes read through it.
+	 */
+	public static class CountingInputStream extends FilterInputStream {
+		private long m_count = 0;
+
+		public CountingInputStream(final InputStream in) {
+			super(in);
+		}
+
+		public long getCount() {
+			return m_count;
+		}
+
+		@Override
+		public int read() throws IOException {
+			final int b = super.read();
+			if (b != -1) {
+				++m_count;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(final byte[] buffer, final int offset, final int count)
+				throws IOException {
+			final int read = super.read(buffer, offset, count);
+			if (read > 0) {
+				m_count += read;
+			}
+			return read;
+		}
+
+		@Override
+		public long skip(final long n) throws IOException {
+			final long skipped = super.skip(n);
+			m_count += skipped;
+			return skipped;
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+	}
+
+	/**
+	 * Wrap an encoded response stream in a decoding stream.
+	 * @param in counted raw response stream
+	 * @param contentEncoding gzip or deflate
+	 * @return decoding stream
+	 * @throws IOException
+	 */
+	public static InflatingInputStream decode(final CountingInputStream in,
+			final String contentEncoding) throws IOException {
+		return new InflatingInputStream(in, GZIP.equalsIgnoreCase(contentEncoding));
+	}
+
+	/**
+	 * Stream that inflates gzip or deflate data with a pooled inflater. The
+	 * inflater is returned to the pool when the stream is closed.
+	 */
+	public static class InflatingInputStream extends InputStream {
+		private final CountingInputStream m_in;
+		private final boolean m_gzip;
+		private boolean m_nowrap;
+		private Inflater m_inflater;
+		private byte[] m_buffer;
+		private int m_bufferLength = 0;
+		private final CRC32 m_crc = new CRC32();
+		private long m_decodedCount = 0;
+		private boolean m_eof = false;
+
+		InflatingInputStream(final CountingInputStream in, final boolean gzip)
+				throws IOException {
+			m_in = in;
+			m_gzip = gzip;
+			if (gzip) {
+				// acquired after the header so a bad header does not leak it
+				readGzipHeader();
+				m_buffer = BufferPool.acquire(BUFFER_SIZE);
+				m_nowrap = true;
+			} else {
+				// "deflate" is zlib wrapped but some servers send raw deflate
+				m_buffer = BufferPool.acquire(BUFFER_SIZE);
+				try {
+					m_bufferLength = Math.max(0, in.read(m_buffer));
+				} catch (IOException e) {
+					BufferPool.release(m_buffer);
+					throw e;
+				}
+				m_nowrap = !(m_bufferLength >= 2 && (m_buffer[0] & 0x0f) == 8 &&
+						(((m_buffer[0] & 0xff) << 8) | (m_buffer[1] & 0xff)) % 31 == 0);
+			}
+			m_inflater = ZipPool.obtainInflater(m_nowrap);
+			if (m_bufferLength > 0) {
+				m_inflater.setInput(m_buffer, 0, m_bufferLength);
+			}
+		}
+
+		private int readByte() throws IOException {
+			final int b = m_in.read();
+			if (b == -1) {
+				throw new EOFException("Unexpected end of gzip stream");
+			}
+			return b;
+		}
+
+		private int readShortLE() throws IOException {
+			return readByte() | (readByte() << 8);
+		}
+
+		private void readGzipHeader() throws IOException {
+			if (readShortLE() != GZIP_MAGIC) {
+				throw new IOException("Not in gzip format");
+			}
+			if (readByte() != 8) {
+				throw new IOException("Unsupported gzip compression method");
+			}
+			final int flags = readByte();
+			// mtime, xfl, os
+			for (int i = 0; i < 6; ++i) {
+				readByte();
+			}
+			if ((flags & FEXTRA) != 0) {
+				for (int length = readShortLE(); length > 0; --length) {
+					readByte();
+				}
+			}
+			if ((flags & FNAME) != 0) {
+				while (readByte() != 0) {}
+			}
+			if ((flags & FCOMMENT) != 0) {
+				while (readByte() != 0) {}
+			}
+			if ((flags & FHCRC) != 0) {
+				readShortLE();
+			}
+		}
+
+		/**
+		 * Verify the gzip trailer following the deflate data.
+		 */
+		private void readGzipTrailer() throws IOException {
+			final byte[] trailer = new byte[8];
+			final int remaining = Math.min(m_inflater.getRemaining(), trailer.length);
+			System.arraycopy(m_buffer, m_bufferLength - m_inflater.getRemaining(),
+					trailer, 0, remaining);
+			for (int i = remaining; i < trailer.length; ++i) {
+				trailer[i] = (byte) readByte();
+			}
+			final long crc = (trailer[0] & 0xffL) | ((trailer[1] & 0xffL) << 8) |
+					((trailer[2] & 0xffL) << 16) | ((trailer[3] & 0xffL) << 24);
+			final long size = (trailer[4] & 0xffL) | ((trailer[5] & 0xffL) << 8) |
+					((trailer[6] & 0xffL) << 16) | ((trailer[7] & 0xffL) << 24);
+			if (crc != m_crc.getValue() || size != (m_decodedCount & 0xffffffffL)) {
+				throw new IOException("Corrupt gzip stream");
+			}
+		}
+
+		@Override
+		public int read() throws IOException {
+			final byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(final byte[] buffer, final int offset, final int count)
+				throws IOException {
+			if (m_eof || m_inflater == null) {
+				return -1;
+			}
+			if (count == 0) {
+				return 0;
+			}
+			try {
+				while (true) {
+					final int inflated = m_inflater.inflate(buffer, offset, count);
+					if (inflated > 0) {
+						if (m_gzip) {
+							m_crc.update(buffer, offset, inflated);
+						}
+						m_decodedCount += inflated;
+						return inflated;
+					}
+					if (m_inflater.finished()) {
+						if (m_gzip) {
+							readGzipTrailer();
+						}
+						m_eof = true;
+						return -1;
+					}
+					if (m_inflater.needsDictionary()) {
+						throw new IOException("Preset dictionary not supported");
+					}
+					if (m_inflater.needsInput()) {
+						m_bufferLength = m_in.read(m_buffer);
+						if (m_bufferLength == -1) {
+							throw new EOFException("Unexpected end of compressed stream");
+						}
+						m_inflater.setInput(m_buffer, 0, m_bufferLength);
+					}
+				}
+			} catch (DataFormatException e) {
+				throw new IOException(e.getMessage());
+			}
+		}
+
+		/**
+		 * Get the number of bytes read from the wire.
+		 * @return
+		 */
+		public long getWireCount() {
+			return m_in.getCount();
+		}
+
+		/**
+		 * Get the number of decoded bytes.
+		 * @return
+		 */
+		public long getDecodedCount() {
+			return m_decodedCount;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (m_inflater != null) {
+				ZipPool.recycle(m_inflater, m_nowrap);
+				m_inflater = null;
+				BufferPool.release(m_buffer);
+				m_buffer = null;
+			}
+			m_in.close();
+		}
+	}
+
+	/**
+	 * Stream that counts the bytes written through it.
+	 */
+	public static class CountingOutputStream extends FilterOutputStream {
+		private long m_count = 0;
+
+		public CountingOutputStream(final OutputStream out) {
+			super(out);
+		}
+
+		public long getCount() {
+			return m_count;
+		}
+
+		@Override
+		public void write(final int b) throws IOException {
+			out.write(b);
+			++m_count;
+		}
+
+		@Override
+		public void write(final byte[] buffer, final int offset, final int count)
+				throws IOException {
+			out.write(buffer, offset, count);
+			m_count += count;
+		}
+	}
+
+	/**
+	 * Stream that gzip encodes the bytes written to it with a pooled deflater.
+	 * Closing the stream writes the gzip trailer, returns the deflater to the
+	 * pool and closes the underlying stream.
+	 */
+	public static class GzipOutputStream extends FilterOutputStream {
+		private Deflater m_deflater;
+		private byte[] m_buffer = BufferPool.acquire(BUFFER_SIZE);
+		private final CRC32 m_crc = new CRC32();
+		private long m_count = 0;
+
+		public GzipOutputStream(final OutputStream out) throws IOException {
+			super(out);
+			// header: magic, method, flags, mtime, xfl, os (unknown)
+			out.write(new byte[]{0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff});
+			m_deflater = ZipPool.obtainDeflater(Deflater.DEFAULT_COMPRESSION, true);
+		}
+
+		@Override
+		public void write(final int b) throws IOException {
+			write(new byte[]{(byte) b}, 0, 1);
+		}
+
+		@Override
+		public void write(final byte[] buffer, final int offset, final int count)
+				throws IOException {
+			if (m_deflater == null) {
+				throw new IOException("Stream closed");
+			}
+			m_crc.update(buffer, offset, count);
+			m_count += count;
+			m_deflater.setInput(buffer, offset, count);
+			while (!m_deflater.needsInput()) {
+				deflate();
+			}
+		}
+
+		private void deflate() throws IOException {
+			final int count = m_deflater.deflate(m_buffer, 0, m_buffer.length);
+			if (count > 0) {
+				out.write(m_buffer, 0, count);
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (m_deflater == null) {
+				return;
+			}
+			try {
+				m_deflater.finish();
+				while (!m_deflater.finished()) {
+					deflate();
+				}
+				writeIntLE(out, m_crc.getValue());
+				writeIntLE(out, m_count);
+			} finally {
+				ZipPool.recycle(m_deflater, Deflater.DEFAULT_COMPRESSION, true);
+				m_deflater = null;
+				BufferPool.release(m_buffer);
+				m_buffer = null;
+				out.close();
+			}
+		}
+	}
+
+	/**
+	 * Gzip encode the data with a pooled deflater.
+	 * @param data
+	 * @return gzip encoded data
+	 */
+	public static byte[] gzip(final byte[] data) throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream(
+				Math.max(64, data.length/4));
+		final GzipOutputStream gzip = new GzipOutputStream(out);
+		gzip.write(data, 0, data.length);
+		gzip.close();
+		return out.toByteArray();
+	}
+
+	private static void writeIntLE(final OutputStream out, final long value)
+			throws IOException {
+		out.write((int) (value & 0xff));
+		out.write((int) ((value >> 8) & 0xff));
+		out.write((int) ((value >> 16) & 0xff));
+		out.write((int) ((value >> 24) & 0xff));
+	}
+}
@@ -0,0 +1,244 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2013 Zidsoft LLC
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.zidsoft.zdlib.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.util.Log;
+
+import com.zidsoft.zdlib.common.BufferPool;
+
+/**
+ * Per host connection limiter for {@link ServiceCallHttp}. Sockets are kept
+ * alive and reused by the platform {@link java.net.HttpURLConnection}
+ * keep-alive cache, provided the response body is fully consumed and the
+ * connection is not disconnected. This class limits the number of concurrent
+ * connections per host and counts the responses that were fully consumed,
+ * which left their connection to the keep-alive cache. Whether the platform
+ * actually reuses a socket is not visible to it.
+ *
+ * @author faridz
+ *
+ */
+public class HttpConnectionPool {
+	private static final String TAG = HttpConnectionPool.class.getSimpleName();
+	public static final int MAX_CONNECTIONS_PER_HOST_DEFAULT = 8;
+	/**
+	 * Maximum number of unread body bytes to drain to leave a connection to
+	 * the keep-alive cache. Larger remainders are cheaper to discard with the connection.
+	 */
+	private static final int MAX_DRAIN_BYTES = 64*1024;
+
+	private static HttpConnectionPool m_instance;
+
+	private final int m_maxConnectionsPerHost;
+
+	private final AtomicLong m_reusableCount = new AtomicLong();
+	private final AtomicLong m_discardedCount = new AtomicLong();
+
+	private final Map<String, Semaphore> m_mapHost = new HashMap<String, Semaphore>();
+
+	public static synchronized HttpConnectionPool getInstance() {
+		if (m_instance == null) {
+			m_instance = new HttpConnectionPool(MAX_CONNECTIONS_PER_HOST_DEFAULT);
+		}
+		return m_instance;
+	}
+
+	/**
+	 * Replace the default pool.
+	 * @param pool
+	 */
+	public static synchronized void setInstance(final HttpConnectionPool pool) {
+		m_instance = pool;
+	}
+
+	public HttpConnectionPool(final int maxConnectionsPerHost) {
+		m_maxConnectionsPerHost = maxConnectionsPerHost;
+	}
+
+	private static String getHostKey(final URL url) {
+		final int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+		return url.getProtocol() + "://" + url.getHost() + ":" + port;
+	}
+
+	private synchronized Semaphore getHost(final URL url) {
+		final String key = getHostKey(url);
+		Semaphore permits = m_mapHost.get(key);
+		if (permits == null) {
+			permits = new Semaphore(m_maxConnectionsPerHost, true);
+			m_mapHost.put(key, permits);
+		}
+		return permits;
+	}
+
+	/**
+	 * Acquire a connection to the url host. Blocks while the host already has
+	 * the maximum number of connections in use. Must be paired with
+	 * {@link #release(URL, boolean)}.
+	 * @param url
+	 * @throws InterruptedException
+	 */
+	public void acquire(final URL url) throws InterruptedException {
+		getHost(url).acquire();
+	}
+
+	/**
+	 * Release a connection acquired with {@link #acquire(URL)}.
+	 * @param url
+	 * @param reusable whether the response was fully consumed and the
+	 * connection was left to the keep-alive cache
+	 */
+	public void release(final URL url, final boolean reusable) {
+		(reusable ? m_reusableCount : m_discardedCount).incrementAndGet();
+		getHost(url).release();
+	}
+
+	/**
+	 * Open connections to the url host and leave them to the keep-alive cache
+	 * so the following requests to the host do not wait for connect and handshake.
+	 * Sends HEAD requests for the url on concurrent connections and blocks
+	 * until they complete.
+	 * @param url
+	 * @param count number of connections to open
+	 * @param timeoutMillis connect and read timeout
+	 * @return number of connections left to the keep-alive cache
+	 */
+	public int prewarm(final URL url, final int count, final int timeoutMillis) {
+		final AtomicInteger parked = new AtomicInteger();
+		final Thread[] threads = new Thread[count];
+		for (int i = 0; i < count; ++i) {
+			threads[i] = new Thread(new Runnable() {
+				
+				@Override
+				public void run() {
+					if (prewarm(url, timeoutMillis)) {
+						parked.incrementAndGet();
+					}
+				}
+			}, HttpConnectionPool.class.getSimpleName() + ".prewarm");
+			threads[i].start();
+		}
+		for (final Thread thread : threads) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		return parked.get();
+	}
+	
+	private boolean prewarm(final URL url, final int timeoutMillis) {
+		try {
+			acquire(url);
+		} catch (InterruptedException e) {
+			return false;
+		}
+		HttpURLConnection urlConnection = null;
+		boolean reusable = false;
+		try {
+			urlConnection = (HttpURLConnection) url.openConnection();
+			urlConnection.setConnectTimeout(timeoutMillis);
+			urlConnection.setReadTimeout(timeoutMillis);
+			urlConnection.setRequestMethod("HEAD");
+			final int responseCode = urlConnection.getResponseCode();
+			reusable = drain(responseCode >= HttpURLConnection.HTTP_BAD_REQUEST ?
+					urlConnection.getErrorStream() : urlConnection.getInputStream());
+		} catch (IOException e) {
+			Log.w(TAG, "Failed to prewarm connection to " + url, e);
+		} finally {
+			if (urlConnection != null && !reusable) {
+				urlConnection.disconnect();
+			}
+			release(url, reusable);
+		}
+		return reusable;
+	}
+	
+	/**
+	 * Get the number of connections released with the response fully
+	 * consumed, and so left to the keep-alive cache.
+	 * @return
+	 */
+	public long getReusableCount() {
+		return m_reusableCount.get();
+	}
+
+	/**
+	 * Get the number of connections released without the response fully
+	 * consumed, and so disconnected.
+	 * @return
+	 */
+	public long getDiscardedCount() {
+		return m_discardedCount.get();
+	}
+
+	public int getMaxConnectionsPerHost() {
+		return m_maxConnectionsPerHost;
+	}
+
+	/**
+	 * Read and discard the rest of the stream and close it. A connection whose
+	 * response body was not fully read cannot be reused.
+	 * @param in response stream, may be null
+	 * @return true if the stream was fully consumed
+	 */
+	public static boolean drain(final InputStream in) {
+		if (in == null) {
+			return true;
+		}
+		final byte[] buffer = BufferPool.acquire(4096);
+		try {
+			int total = 0;
+			int count;
+			while ((count = in.read(buffer)) != -1) {
+				total += count;
+				if (total > MAX_DRAIN_BYTES) {
+					return false;
+				}
+			}
+			return true;
+		} catch (IOException e) {
+			return false;
+		} finally {
+			BufferPool.release(buffer);
+			try {
+				in.close();
+			} catch (IOException e) {
+				// ignore
+			}
+		}
+	}
+}
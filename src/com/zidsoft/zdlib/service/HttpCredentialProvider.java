@@ -0,0 +1,242 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2013 Zidsoft LLC
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.zidsoft.zdlib.service;
+
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Supplies the auth token of {@link ServiceCallHttp} requests and refreshes
+ * it when the server rejects it. Concurrent refresh requests for the same
+ * expired token are collapsed into a single {@link #fetchToken(String)}; the
+ * calls waiting for it do not hold pool threads and are sent again with the
+ * new token once it is fetched.
+ *
+ * @author faridz
+ *
+ */
+public abstract class HttpCredentialProvider {
+	public static final String AUTHORIZATION = "Authorization";
+	public static final long AWAIT_TIMEOUT_MILLIS_DEFAULT = 30*1000;	// 30 seconds
+
+	private String m_token;
+	private boolean m_refreshing;
+	private List<Callback> m_waiting = new ArrayList<Callback>();
+	private final AtomicLong m_refreshCount = new AtomicLong();
+
+	/**
+	 * Receives the outcome of a refresh on a service call pool thread.
+	 */
+	public interface Callback {
+		void onRefreshed(String token);
+		void onRefreshFailed(Exception e);
+	}
+
+	/**
+	 * Fetch a new token. Called on a service call pool thread, or on the
+	 * thread calling {@link #awaitRefresh(String)}, never concurrently.
+	 * @param expiredToken token rejected by the server or null if there is
+	 * no token yet
+	 * @return new token
+	 * @throws Exception
+	 */
+	protected abstract String fetchToken(String expiredToken) throws Exception;
+
+	/**
+	 * Get the value of the Authorization header for the token.
+	 * @param token
+	 * @return
+	 */
+	protected String getAuthorization(final String token) {
+		return "Bearer " + token;
+	}
+
+	public synchronized String getToken() {
+		return m_token;
+	}
+
+	/**
+	 * Set the token, for example after sign in.
+	 * @param token
+	 */
+	public synchronized void setToken(final String token) {
+		m_token = token;
+	}
+
+	/**
+	 * Add the Authorization header for the current token to the request.
+	 * @param urlConnection
+	 * @return token added or null if there is no token
+	 */
+	public String apply(final HttpURLConnection urlConnection) {
+		final String token = getToken();
+		if (token != null) {
+			urlConnection.setRequestProperty(AUTHORIZATION, getAuthorization(token));
+		}
+		return token;
+	}
+
+	/**
+	 * Refresh the expired token. If the token was already replaced the
+	 * callback is notified at once; if a refresh is in progress the callback
+	 * waits for it.
+	 * @param expiredToken token rejected by the server
+	 * @param callback
+	 */
+	public void refresh(final String expiredToken, final Callback callback) {
+		if (!begin(expiredToken, callback)) {
+			return;
+		}
+		ServiceCall.executeInBackground(new Runnable() {
+
+			@Override
+			public void run() {
+				fetch(expiredToken);
+			}
+		});
+	}
+
+	/**
+	 * Add the callback to the waiting callbacks, or notify it at once if the
+	 * token was already replaced.
+	 * @param expiredToken
+	 * @param callback
+	 * @return true if the caller must fetch the token
+	 */
+	private boolean begin(final String expiredToken, final Callback callback) {
+		final String token;
+		synchronized (this) {
+			token = m_token;
+			if (m_refreshing || isSame(token, expiredToken)) {
+				m_waiting.add(callback);
+				if (m_refreshing) {
+					return false;
+				}
+				m_refreshing = true;
+				return true;
+			}
+		}
+		// already refreshed by another call
+		callback.onRefreshed(token);
+		return false;
+	}
+
+	/**
+	 * Refresh the expired token and wait for the refresh to complete, for up
+	 * to {@link #AWAIT_TIMEOUT_MILLIS_DEFAULT}.
+	 * @param expiredToken
+	 * @return new token
+	 * @throws Exception if the refresh failed or timed out
+	 */
+	public String awaitRefresh(final String expiredToken) throws Exception {
+		return awaitRefresh(expiredToken, AWAIT_TIMEOUT_MILLIS_DEFAULT);
+	}
+
+	/**
+	 * Refresh the expired token and wait for the refresh to complete. The
+	 * token is fetched on the calling thread if no refresh is in progress,
+	 * so a pool thread never waits for a fetch queued behind it.
+	 * @param expiredToken
+	 * @param timeoutMillis maximum time to wait for a refresh in progress
+	 * @return new token
+	 * @throws TimeoutException if the refresh in progress did not complete in
+	 * time
+	 * @throws Exception if the refresh failed
+	 */
+	public String awaitRefresh(final String expiredToken, final long timeoutMillis)
+			throws Exception {
+		final CountDownLatch latch = new CountDownLatch(1);
+		final String[] token = new String[1];
+		final Exception[] error = new Exception[1];
+		final Callback callback = new Callback() {
+
+			@Override
+			public void onRefreshed(final String refreshed) {
+				token[0] = refreshed;
+				latch.countDown();
+			}
+
+			@Override
+			public void onRefreshFailed(final Exception e) {
+				error[0] = e;
+				latch.countDown();
+			}
+		};
+		if (begin(expiredToken, callback)) {
+			fetch(expiredToken);
+		}
+		if (!latch.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+			throw new TimeoutException("Timed out waiting for the token refresh");
+		}
+		if (error[0] != null) {
+			throw error[0];
+		}
+		return token[0];
+	}
+
+	private void fetch(final String expiredToken) {
+		String token = null;
+		Exception error = null;
+		try {
+			token = fetchToken(expiredToken);
+		} catch (Exception e) {
+			error = e;
+		}
+		m_refreshCount.incrementAndGet();
+		final List<Callback> waiting;
+		synchronized (this) {
+			if (error == null) {
+				m_token = token;
+			}
+			m_refreshing = false;
+			waiting = m_waiting;
+			m_waiting = new ArrayList<Callback>();
+		}
+		for (final Callback callback : waiting) {
+			if (error == null) {
+				callback.onRefreshed(token);
+			} else {
+				callback.onRefreshFailed(error);
+			}
+		}
+	}
+
+	private static boolean isSame(final String a, final String b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+	/**
+	 * Get the number of times the token was fetched.
+	 * @return
+	 */
+	public long getRefreshCount() {
+		return m_refreshCount.get();
+	}
+}
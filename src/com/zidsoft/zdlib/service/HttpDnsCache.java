@@ -0,0 +1,142 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2013 Zidsoft LLC
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.zidsoft.zdlib.service;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.util.Log;
+
+/**
+ * Host name resolution cache with a time to live. The platform caches
+ * resolved addresses only briefly; this cache keeps them long enough for
+ * host names resolved at application start to still be cached when the first
+ * service call is made. Only {@link NioHttpTransport} resolves through this
+ * cache; calls made with {@link java.net.HttpURLConnection} use the platform
+ * resolver. {@link com.zidsoft.zdlib.app.ZDApplication} invalidates the
+ * cache when the network changes.
+ *
+ * @author faridz
+ *
+ */
+public class HttpDnsCache {
+	private static final String TAG = HttpDnsCache.class.getSimpleName();
+	public static final long TTL_MILLIS_DEFAULT = 5*60*1000;	// 5 minutes
+
+	private static HttpDnsCache m_instance;
+
+	private final long m_ttlMillis;
+	private final Map<String, Entry> m_mapHost = new HashMap<String, Entry>();
+	private final AtomicLong m_hitCount = new AtomicLong();
+	private final AtomicLong m_missCount = new AtomicLong();
+
+	private static class Entry {
+		final InetAddress[] addresses;
+		final long expires;
+
+		Entry(final InetAddress[] addresses, final long expires) {
+			this.addresses = addresses;
+			this.expires = expires;
+		}
+	}
+
+	public static synchronized HttpDnsCache getInstance() {
+		if (m_instance == null) {
+			m_instance = new HttpDnsCache(TTL_MILLIS_DEFAULT);
+		}
+		return m_instance;
+	}
+
+	/**
+	 * Replace the default cache.
+	 * @param cache
+	 */
+	public static synchronized void setInstance(final HttpDnsCache cache) {
+		m_instance = cache;
+	}
+
+	public HttpDnsCache(final long ttlMillis) {
+		m_ttlMillis = ttlMillis;
+	}
+
+	/**
+	 * Get the addresses of a host, resolving the host name if it is not
+	 * cached or its entry expired.
+	 * @param host
+	 * @return host addresses
+	 * @throws UnknownHostException
+	 */
+	public InetAddress[] lookup(final String host) throws UnknownHostException {
+		final long now = System.currentTimeMillis();
+		synchronized (m_mapHost) {
+			final Entry entry = m_mapHost.get(host);
+			if (entry != null && now < entry.expires) {
+				m_hitCount.incrementAndGet();
+				return entry.addresses;
+			}
+		}
+		m_missCount.incrementAndGet();
+		final InetAddress[] addresses = InetAddress.getAllByName(host);
+		synchronized (m_mapHost) {
+			m_mapHost.put(host, new Entry(addresses, now + m_ttlMillis));
+		}
+		return addresses;
+	}
+
+	/**
+	 * Resolve and cache the addresses of a host, ignoring failures.
+	 * @param host
+	 * @return true if the host was resolved
+	 */
+	public boolean prefetch(final String host) {
+		try {
+			lookup(host);
+			return true;
+		} catch (UnknownHostException e) {
+			Log.w(TAG, "Failed to resolve " + host, e);
+			return false;
+		}
+	}
+
+	/**
+	 * Remove all cached entries, for example when the network changes.
+	 */
+	public void invalidate() {
+		synchronized (m_mapHost) {
+			m_mapHost.clear();
+		}
+	}
+
+	public long getHitCount() {
+		return m_hitCount.get();
+	}
+
+	public long getMissCount() {
+		return m_missCount.get();
+	}
+}
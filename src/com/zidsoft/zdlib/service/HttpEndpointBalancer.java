@@ -0,0 +1,228 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2013 Zidsoft LLC
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.zidsoft.zdlib.service;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Spreads service calls across equivalent server base urls. Each call picks
+ * two random healthy endpoints and uses the one with the lower load score:
+ * its moving average latency weighted by its calls in flight. An endpoint
+ * that fails several calls in a row is ejected for a while; after the
+ * ejection expires it is tried again and ejected again on its next failure.
+ *
+ * @author faridz
+ *
+ */
+public class HttpEndpointBalancer {
+	public static final int FAILURES_TO_EJECT_DEFAULT = 3;
+	public static final long EJECT_MILLIS_DEFAULT = 30*1000;	// 30 seconds
+	/**
+	 * Weight of the latest latency sample in the moving average.
+	 */
+	private static final double LATENCY_WEIGHT = 0.3;
+
+	private final List<Endpoint> m_endpoints;
+	private final int m_failuresToEject;
+	private final long m_ejectMillis;
+	private final Random m_random = new Random();
+
+	/**
+	 * Server base url and its load and health.
+	 */
+	public static class Endpoint {
+		public final String baseUrl;
+		private int m_inFlight;
+		/**
+		 * Moving average latency; 0 until the first call completes so new
+		 * endpoints are tried early.
+		 */
+		private double m_latencyMillis;
+		private int m_failures;
+		private long m_ejectedUntil;
+
+		Endpoint(final String baseUrl) {
+			this.baseUrl = baseUrl;
+		}
+
+		public synchronized int getInFlight() {
+			return m_inFlight;
+		}
+
+		public synchronized double getLatencyMillis() {
+			return m_latencyMillis;
+		}
+
+		public synchronized boolean isEjected(final long now) {
+			return now < m_ejectedUntil;
+		}
+
+		synchronized double getScore() {
+			return (m_latencyMillis + 1)*(m_inFlight + 1);
+		}
+
+		synchronized long getEjectedUntil() {
+			return m_ejectedUntil;
+		}
+
+		/**
+		 * Replace the base url of a url built for another server.
+		 * @param url
+		 * @param fromBaseUrl base url the url was built with
+		 * @return url on this endpoint
+		 * @throws MalformedURLException
+		 */
+		public URL rewrite(final URL url, final String fromBaseUrl)
+				throws MalformedURLException {
+			final String spec = url.toString();
+			if (baseUrl.equals(fromBaseUrl) || !spec.startsWith(fromBaseUrl)) {
+				return url;
+			}
+			return new URL(baseUrl + spec.substring(fromBaseUrl.length()));
+		}
+
+		@Override
+		public String toString() {
+			return baseUrl;
+		}
+	}
+
+	public HttpEndpointBalancer(final String... baseUrls) {
+		this(baseUrls, FAILURES_TO_EJECT_DEFAULT, EJECT_MILLIS_DEFAULT);
+	}
+
+	/**
+	 * @param baseUrls equivalent server base urls
+	 * @param failuresToEject consecutive failures that eject an endpoint
+	 * @param ejectMillis how long an ejected endpoint is not selected
+	 */
+	public HttpEndpointBalancer(final String[] baseUrls, final int failuresToEject,
+			final long ejectMillis) {
+		if (baseUrls.length == 0) {
+			throw new IllegalArgumentException("No base urls");
+		}
+		final List<Endpoint> endpoints = new ArrayList<Endpoint>(baseUrls.length);
+		for (final String baseUrl : baseUrls) {
+			endpoints.add(new Endpoint(baseUrl));
+		}
+		m_endpoints = Collections.unmodifiableList(endpoints);
+		m_failuresToEject = failuresToEject;
+		m_ejectMillis = ejectMillis;
+	}
+
+	public List<Endpoint> getEndpoints() {
+		return m_endpoints;
+	}
+
+	/**
+	 * Select the endpoint for a call. Ejected endpoints are selected only
+	 * when all the others are ejected too, the one ejected the longest
+	 * ago first.
+	 * @param exclude endpoints already tried by the call or null
+	 * @return endpoint or null if all endpoints are excluded
+	 */
+	public Endpoint select(final Collection<Endpoint> exclude) {
+		final long now = System.currentTimeMillis();
+		final List<Endpoint> healthy = new ArrayList<Endpoint>(m_endpoints.size());
+		Endpoint ejected = null;
+		for (final Endpoint endpoint : m_endpoints) {
+			if (exclude != null && exclude.contains(endpoint)) {
+				continue;
+			}
+			if (!endpoint.isEjected(now)) {
+				healthy.add(endpoint);
+			} else if (ejected == null ||
+					endpoint.getEjectedUntil() < ejected.getEjectedUntil()) {
+				ejected = endpoint;
+			}
+		}
+		final int count = healthy.size();
+		if (count == 0) {
+			return ejected;
+		}
+		if (count == 1) {
+			return healthy.get(0);
+		}
+		final int first;
+		final int second;
+		synchronized (m_random) {
+			first = m_random.nextInt(count);
+			second = (first + 1 + m_random.nextInt(count - 1)) % count;
+		}
+		final Endpoint a = healthy.get(first);
+		final Endpoint b = healthy.get(second);
+		return a.getScore() <= b.getScore() ? a : b;
+	}
+
+	/**
+	 * Record the start of a call on the endpoint.
+	 * @param endpoint
+	 */
+	void onStart(final Endpoint endpoint) {
+		synchronized (endpoint) {
+			++endpoint.m_inFlight;
+		}
+	}
+
+	/**
+	 * Record the end of a call that did not reach the endpoint.
+	 * @param endpoint
+	 */
+	void onCancel(final Endpoint endpoint) {
+		synchronized (endpoint) {
+			--endpoint.m_inFlight;
+		}
+	}
+
+	/**
+	 * Record the end of a call on the endpoint.
+	 * @param endpoint
+	 * @param latencyMillis
+	 * @param failed whether the endpoint failed the call
+	 */
+	void onComplete(final Endpoint endpoint, final long latencyMillis,
+			final boolean failed) {
+		synchronized (endpoint) {
+			--endpoint.m_inFlight;
+			endpoint.m_latencyMillis = endpoint.m_latencyMillis == 0 ? latencyMillis :
+				endpoint.m_latencyMillis +
+				LATENCY_WEIGHT*(latencyMillis - endpoint.m_latencyMillis);
+			if (failed) {
+				if (++endpoint.m_failures >= m_failuresToEject) {
+					endpoint.m_ejectedUntil = System.currentTimeMillis() + m_ejectMillis;
+				}
+			} else {
+				endpoint.m_failures = 0;
+				endpoint.m_ejectedUntil = 0;
+			}
+		}
+	}
+}
@@ -0,0 +1,145 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2013 Zidsoft LLC
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.zidsoft.zdlib.service;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Transport that serves responses recorded in an {@link HttpTrafficArchive}
+ * instead of sending requests, for benchmarking response parsing, mapping
+ * and scheduling without a server. Responses are looked up by method and
+ * url; a request recorded several times gets the recorded responses in
+ * order, starting over after the last.
+ * <p>When installed, service calls that are not made with
+ * {@link ServiceCall#execImmediate()} use the replay transport.</p>
+ *
+ * @author faridz
+ *
+ */
+public class HttpReplayTransport extends NioHttpTransport {
+	private static final ScheduledExecutorService m_timer =
+			new ScheduledThreadPoolExecutor(1);
+
+	private static HttpReplayTransport m_installed;
+
+	private final Map<String, List<HttpTrafficArchive.Entry>> m_mapEntry =
+			new HashMap<String, List<HttpTrafficArchive.Entry>>();
+	private final Map<String, Integer> m_mapNext = new HashMap<String, Integer>();
+	private final double m_timeScale;
+
+	/**
+	 * @param archive recorded traffic
+	 * @param timeScale multiplies the recorded response times: 1 for the
+	 * original timing, 0 to respond at once
+	 * @throws IOException
+	 */
+	public HttpReplayTransport(final File archive, final double timeScale)
+			throws IOException {
+		super(0, 0, 0);
+		m_timeScale = timeScale;
+		for (final HttpTrafficArchive.Entry entry : HttpTrafficArchive.read(archive)) {
+			List<HttpTrafficArchive.Entry> entries = m_mapEntry.get(entry.getKey());
+			if (entries == null) {
+				entries = new ArrayList<HttpTrafficArchive.Entry>(1);
+				m_mapEntry.put(entry.getKey(), entries);
+			}
+			entries.add(entry);
+		}
+	}
+
+	/**
+	 * Install the transport used by service calls.
+	 * @param transport transport or null to send service calls to the server
+	 */
+	public static synchronized void install(final HttpReplayTransport transport) {
+		m_installed = transport;
+	}
+
+	/**
+	 * Get the installed transport.
+	 * @return installed transport or null if none is installed
+	 */
+	public static synchronized HttpReplayTransport getInstalled() {
+		return m_installed;
+	}
+
+	private synchronized HttpTrafficArchive.Entry next(final String key) {
+		final List<HttpTrafficArchive.Entry> entries = m_mapEntry.get(key);
+		if (entries == null) {
+			return null;
+		}
+		final Integer next = m_mapNext.get(key);
+		final int index = next == null ? 0 : next;
+		m_mapNext.put(key, (index + 1) % entries.size());
+		return entries.get(index);
+	}
+
+	/**
+	 * Respond with the next recorded response for the request, after the
+	 * scaled recorded response time.
+	 * @throws FileNotFoundException if the request was not recorded
+	 */
+	@Override
+	public void execute(final Request request, final Callback callback)
+			throws IOException {
+		final String key = HttpTrafficArchive.Entry.getKey(request.method,
+				request.url.toString());
+		final HttpTrafficArchive.Entry entry = next(key);
+		if (entry == null) {
+			throw new FileNotFoundException("Not recorded: " + key);
+		}
+		final Response response = new Response();
+		response.code = entry.code;
+		response.message = entry.message;
+		for (final Map.Entry<String, List<String>> header : entry.headers.entrySet()) {
+			for (final String value : header.getValue()) {
+				response.addHeader(header.getKey(), value);
+			}
+		}
+		response.body = entry.body;
+		response.bodyLength = entry.body.length;
+		final long delay = (long) (entry.totalMillis*m_timeScale);
+		if (delay <= 0) {
+			callback.onResponse(response);
+			return;
+		}
+		m_timer.schedule(new Runnable() {
+
+			@Override
+			public void run() {
+				callback.onResponse(response);
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+}
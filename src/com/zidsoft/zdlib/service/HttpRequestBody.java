@@ -0,0 +1,93 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2013 Zidsoft LLC
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.zidsoft.zdlib.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Http request body written by {@link ServiceCallHttp} directly to the
+ * connection output stream. A body with a known content length is sent in
+ * fixed length streaming mode, otherwise in chunked streaming mode, so the
+ * connection does not buffer the whole body. A body may be written more than
+ * once, for example to journal the request.
+ * 
+ * @author faridz
+ *
+ */
+public abstract class HttpRequestBody {
+	
+	/**
+	 * Get the length of the body.
+	 * @return length in bytes or -1 if not known ahead of writing the body
+	 */
+	public abstract long getContentLength();
+	
+	/**
+	 * Write the body.
+	 * @param out output stream. Implementations should not close the stream.
+	 * @throws Exception
+	 */
+	public abstract void writeTo(OutputStream out) throws Exception;
+	
+	/**
+	 * Write the body into a byte array.
+	 * @return body bytes
+	 * @throws Exception
+	 */
+	public byte[] toByteArray() throws Exception {
+		final long length = getContentLength();
+		final ByteArrayOutputStream out = new ByteArrayOutputStream(
+				length >= 0 && length < Integer.MAX_VALUE ? (int) length : 1024);
+		writeTo(out);
+		return out.toByteArray();
+	}
+	
+	/**
+	 * Create a body from bytes.
+	 * @param bytes
+	 * @return
+	 */
+	public static HttpRequestBody create(final byte[] bytes) {
+		return new HttpRequestBody() {
+			
+			@Override
+			public long getContentLength() {
+				return bytes.length;
+			}
+			
+			@Override
+			public void writeTo(final OutputStream out) throws IOException {
+				out.write(bytes);
+			}
+			
+			@Override
+			public byte[] toByteArray() {
+				return bytes;
+			}
+		};
+	}
+}
@@ -0,0 +1,258 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2013 Zidsoft LLC
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.zidsoft.zdlib.service;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Request url template compiled once per {@link ServiceCallHttp} class. The
+ * server base url, service path and service name are parsed when the
+ * template is compiled; building a url only appends the encoded query to the
+ * compiled path in a reused per thread builder.
+ * <p>The template is recompiled when the call's server base url differs
+ * from the one it was compiled with. {@link #invalidateAll()} drops all the
+ * templates, for example when the application server base url changes.</p>
+ *
+ * @author faridz
+ *
+ */
+public class HttpRequestTemplate {
+	private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+	/**
+	 * ASCII characters that are not percent encoded; same as
+	 * {@link java.net.URLEncoder}.
+	 */
+	private static final boolean[] UNRESERVED = new boolean[128];
+	static {
+		for (char c = 'a'; c <= 'z'; ++c) {
+			UNRESERVED[c] = true;
+			UNRESERVED[c - 'a' + 'A'] = true;
+		}
+		for (char c = '0'; c <= '9'; ++c) {
+			UNRESERVED[c] = true;
+		}
+		UNRESERVED['.'] = true;
+		UNRESERVED['-'] = true;
+		UNRESERVED['*'] = true;
+		UNRESERVED['_'] = true;
+	}
+
+	private static final Map<Class<?>, HttpRequestTemplate> m_templates =
+			new ConcurrentHashMap<Class<?>, HttpRequestTemplate>();
+	private static final ThreadLocal<StringBuilder> m_builder =
+			new ThreadLocal<StringBuilder>() {
+
+		@Override
+		protected StringBuilder initialValue() {
+			return new StringBuilder(256);
+		}
+	};
+
+	private final String m_baseUrl;
+	private final String m_servicePath;
+	private final String m_serviceName;
+	/**
+	 * Whether the call class builds its own query string.
+	 */
+	private final boolean m_customQuery;
+	private final String m_protocol;
+	private final String m_host;
+	private final int m_port;
+	private final String m_path;
+	/**
+	 * Url prefix for urls that cannot be built from their parts.
+	 */
+	private final String m_prefix;
+
+	private HttpRequestTemplate(final ServiceCallHttp call)
+			throws MalformedURLException {
+		final Class<?> cls = call.getClass();
+		m_baseUrl = call.getServerBaseUrl();
+		m_servicePath = call.servicePath;
+		m_serviceName = call.serviceName;
+		m_customQuery = isOverridden(cls, "getQuery");
+		final URL url = new URL(m_baseUrl + m_servicePath + "/" + m_serviceName);
+		if (url.getUserInfo() == null && url.getQuery() == null &&
+				url.getRef() == null) {
+			m_protocol = url.getProtocol();
+			m_host = url.getHost();
+			m_port = url.getPort();
+			m_path = url.getPath();
+			m_prefix = null;
+		} else {
+			m_protocol = null;
+			m_host = null;
+			m_port = -1;
+			m_path = null;
+			m_prefix = url.toString();
+		}
+	}
+
+	private static boolean isOverridden(final Class<?> cls, final String methodName) {
+		for (Class<?> c = cls; c != null && c != ServiceCallHttp.class;
+				c = c.getSuperclass()) {
+			try {
+				c.getDeclaredMethod(methodName);
+				return true;
+			} catch (NoSuchMethodException e) {
+				// not declared in this class
+			}
+		}
+		return false;
+	}
+
+	private boolean matches(final ServiceCallHttp call) {
+		return m_servicePath.equals(call.servicePath) &&
+				m_serviceName.equals(call.serviceName) &&
+				m_baseUrl.equals(call.getServerBaseUrl());
+	}
+
+	/**
+	 * Get the compiled template for the call class, compiling it if needed.
+	 * @param call
+	 * @return
+	 * @throws MalformedURLException
+	 */
+	public static HttpRequestTemplate forCall(final ServiceCallHttp call)
+			throws MalformedURLException {
+		HttpRequestTemplate template = m_templates.get(call.getClass());
+		if (template == null || !template.matches(call)) {
+			template = new HttpRequestTemplate(call);
+			m_templates.put(call.getClass(), template);
+		}
+		return template;
+	}
+
+	/**
+	 * Discard all compiled templates.
+	 */
+	public static void invalidateAll() {
+		m_templates.clear();
+	}
+
+	/**
+	 * Build the url for the call. The query is included for GET calls.
+	 * @param call
+	 * @return
+	 * @throws Exception
+	 */
+	URL buildURL(final ServiceCallHttp call) throws Exception {
+		final StringBuilder file = m_builder.get();
+		file.setLength(0);
+		file.append(m_prefix != null ? m_prefix : m_path);
+		if (!call.isPost()) {
+			if (m_customQuery) {
+				final String query = call.getQuery();
+				if (query != null) {
+					file.append('?').append(query);
+				}
+			} else {
+				final List<ServiceCallHttp.Param> params = call.getParameters();
+				if (params != null && !params.isEmpty()) {
+					file.append('?');
+					appendQuery(params, file);
+				}
+			}
+		}
+		return m_prefix != null ? new URL(file.toString()) :
+			new URL(m_protocol, m_host, m_port, file.toString());
+	}
+
+	/**
+	 * Append the form encoded parameters.
+	 * @param params
+	 * @param out
+	 */
+	static void appendQuery(final List<ServiceCallHttp.Param> params,
+			final StringBuilder out) {
+		final int count = params.size();
+		for (int i = 0; i < count; ++i) {
+			final ServiceCallHttp.Param param = params.get(i);
+			if (i > 0) {
+				out.append('&');
+			}
+			encode(param.name, out);
+			out.append('=');
+			if (param.value != null) {
+				encode(param.value, out);
+			}
+		}
+	}
+
+	/**
+	 * Form encode UTF-8 text. Produces the same output as
+	 * {@link java.net.URLEncoder#encode(String, String)} with UTF-8 without
+	 * allocating.
+	 * @param text
+	 * @param out
+	 */
+	public static void encode(final CharSequence text, final StringBuilder out) {
+		final int length = text.length();
+		for (int i = 0; i < length; ++i) {
+			final char c = text.charAt(i);
+			if (c < 0x80) {
+				// ASCII fast path
+				if (UNRESERVED[c]) {
+					out.append(c);
+				} else if (c == ' ') {
+					out.append('+');
+				} else {
+					appendEscaped(c, out);
+				}
+				continue;
+			}
+			int codePoint = c;
+			if (Character.isHighSurrogate(c) && i + 1 < length &&
+					Character.isLowSurrogate(text.charAt(i + 1))) {
+				codePoint = Character.toCodePoint(c, text.charAt(++i));
+			} else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+				// unpaired surrogate is encoded as '?'
+				appendEscaped('?', out);
+				continue;
+			}
+			if (codePoint < 0x800) {
+				appendEscaped(0xc0 | (codePoint >> 6), out);
+				appendEscaped(0x80 | (codePoint & 0x3f), out);
+			} else if (codePoint < 0x10000) {
+				appendEscaped(0xe0 | (codePoint >> 12), out);
+				appendEscaped(0x80 | ((codePoint >> 6) & 0x3f), out);
+				appendEscaped(0x80 | (codePoint & 0x3f), out);
+			} else {
+				appendEscaped(0xf0 | (codePoint >> 18), out);
+				appendEscaped(0x80 | ((codePoint >> 12) & 0x3f), out);
+				appendEscaped(0x80 | ((codePoint >> 6) & 0x3f), out);
+				appendEscaped(0x80 | (codePoint & 0x3f), out);
+			}
+		}
+	}
+
+	private static void appendEscaped(final int b, final StringBuilder out) {
+		out.append('%').append(HEX[(b >> 4) & 0xf]).append(HEX[b & 0xf]);
+	}
+}
@@ -0,0 +1,209 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2013 Zidsoft LLC
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.zidsoft.zdlib.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
+import com.zidsoft.zdlib.common.BufferPool;
+
+/**
+ * Http response body read by {@link ServiceCallHttp#readStream}. The body may
+ * be consumed once, either as a stream or channel bounded by the content length,
+ * when known, or read fully into bytes or a string.
+ * 
+ * @author faridz
+ *
+ */
+public class HttpResponseBody {
+	/**
+	 * Initial buffer size when the content length is not known.
+	 */
+	private static final int INITIAL_SIZE = 8*1024;
+	
+	private final InputStream m_in;
+	private final long m_contentLength;
+	
+	/**
+	 * @param in body stream
+	 * @param contentLength content length or -1 if not known
+	 */
+	public HttpResponseBody(final InputStream in, final long contentLength) {
+		m_in = contentLength >= 0 ? new BoundedInputStream(in, contentLength) : in;
+		m_contentLength = contentLength;
+	}
+	
+	/**
+	 * Get the content length.
+	 * @return content length or -1 if not known
+	 */
+	public long getContentLength() {
+		return m_contentLength;
+	}
+	
+	/**
+	 * Get the body stream. The stream ends at the content length, if known.
+	 * @return
+	 */
+	public InputStream getInputStream() {
+		return m_in;
+	}
+	
+	/**
+	 * Get the body as a channel. The channel ends at the content length, if
+	 * known.
+	 * @return
+	 */
+	public ReadableByteChannel getChannel() {
+		return Channels.newChannel(m_in);
+	}
+	
+	/**
+	 * Read the body into a buffer borrowed from the {@link BufferPool} and
+	 * presized from the content length. The caller must release the buffer.
+	 * @param count receives the number of bytes read in element 0
+	 * @return buffer holding the body
+	 * @throws IOException
+	 */
+	private byte[] read(final int[] count) throws IOException {
+		final int expected = m_contentLength > 0 && m_contentLength < Integer.MAX_VALUE ?
+				(int) m_contentLength : INITIAL_SIZE;
+		byte[] buffer = BufferPool.acquire(expected);
+		int length = 0;
+		int read;
+		try {
+			while (true) {
+				if (length == buffer.length) {
+					// probe for the end before growing, so a body of exactly
+					// the content length is not copied to a buffer twice the size
+					final int next = m_in.read();
+					if (next == -1) {
+						break;
+					}
+					// content length unknown or wrong; grow
+					final byte[] grown = BufferPool.acquire(buffer.length*2);
+					System.arraycopy(buffer, 0, grown, 0, length);
+					BufferPool.release(buffer);
+					buffer = grown;
+					buffer[length++] = (byte) next;
+				}
+				read = m_in.read(buffer, length, buffer.length - length);
+				if (read == -1) {
+					break;
+				}
+				length += read;
+			}
+		} catch (IOException e) {
+			BufferPool.release(buffer);
+			throw e;
+		}
+		count[0] = length;
+		return buffer;
+	}
+	
+	/**
+	 * Read the whole body.
+	 * @return body bytes
+	 * @throws IOException
+	 */
+	public byte[] bytes() throws IOException {
+		final int[] count = new int[1];
+		final byte[] buffer = read(count);
+		final byte[] bytes = new byte[count[0]];
+		System.arraycopy(buffer, 0, bytes, 0, count[0]);
+		BufferPool.release(buffer);
+		return bytes;
+	}
+	
+	/**
+	 * Read the whole body and decode it in bulk with the given charset. Bytes
+	 * are read into a pooled buffer presized from the content length.
+	 * @param charsetName
+	 * @return body string
+	 * @throws IOException
+	 * @throws UnsupportedEncodingException
+	 */
+	public String string(final String charsetName) throws IOException {
+		final int[] count = new int[1];
+		final byte[] buffer = read(count);
+		try {
+			return new String(buffer, 0, count[0], charsetName);
+		} finally {
+			BufferPool.release(buffer);
+		}
+	}
+	
+	/**
+	 * Stream that ends after the given number of bytes.
+	 */
+	private static class BoundedInputStream extends InputStream {
+		private final InputStream m_in;
+		private long m_remaining;
+		
+		BoundedInputStream(final InputStream in, final long length) {
+			m_in = in;
+			m_remaining = length;
+		}
+		
+		@Override
+		public int read() throws IOException {
+			if (m_remaining <= 0) {
+				return -1;
+			}
+			final int b = m_in.read();
+			if (b != -1) {
+				--m_remaining;
+			}
+			return b;
+		}
+		
+		@Override
+		public int read(final byte[] buffer, final int offset, final int count)
+				throws IOException {
+			if (m_remaining <= 0) {
+				return -1;
+			}
+			final int read = m_in.read(buffer, offset, 
+					(int) Math.min(count, m_remaining));
+			if (read != -1) {
+				m_remaining -= read;
+			}
+			return read;
+		}
+		
+		@Override
+		public int available() throws IOException {
+			return (int) Math.min(m_in.available(), m_remaining);
+		}
+		
+		@Override
+		public void close() throws IOException {
+			m_in.close();
+		}
+	}
+}
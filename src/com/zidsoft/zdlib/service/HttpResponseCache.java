@@ -0,0 +1,723 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2013 Zidsoft LLC
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.zidsoft.zdlib.service;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.util.Log;
+
+/**
+ * Size bounded on disk cache of http GET responses used by
+ * {@link ServiceCallHttp}. Honors the response Cache-Control, Expires, ETag and
+ * Last-Modified headers. Fresh responses are served without a request, stale
+ * responses with a validator are revalidated with If-None-Match and
+ * If-Modified-Since and served from the cache on 304. Least recently used
+ * entries are evicted when the total body size exceeds the maximum size.
+ * <p>Entries are keyed by url only, so responses that vary by request headers
+ * other than Accept-Encoding, and responses to requests that carried
+ * Authorization unless marked public, are not stored. Call {@link #clear()}
+ * when the user signs out.</p>
+ * <p>Each entry is stored as two files named after the hash of the url: a
+ * metadata file and a body file written through a {@link FileChannel}.</p>
+ *
+ * @author faridz
+ *
+ */
+public class HttpResponseCache {
+	private static final String TAG = HttpResponseCache.class.getSimpleName();
+	private static final int VERSION = 1;
+	private static final String META_SUFFIX = ".0";
+	private static final String BODY_SUFFIX = ".1";
+	private static final String TMP_SUFFIX = ".tmp";
+
+	/**
+	 * Per call cache policy.
+	 */
+	public static class CachePolicy {
+		/**
+		 * Use cached responses while fresh and revalidate stale responses.
+		 */
+		public static final CachePolicy DEFAULT = new CachePolicy(false, false, 0);
+		/**
+		 * Do not read from or write to the cache.
+		 */
+		public static final CachePolicy NO_STORE = new CachePolicy(true, false, 0);
+		/**
+		 * Use a cached response regardless of its age and never go to the
+		 * network. Fails with 504 if there is no cached response.
+		 */
+		public static final CachePolicy FORCE_CACHE = new CachePolicy(false, true, 0);
+
+		public final boolean noStore;
+		public final boolean forceCache;
+		/**
+		 * Accept responses that are stale by no more than the given time.
+		 */
+		public final long maxStaleMillis;
+
+		public CachePolicy(final boolean noStore, final boolean forceCache,
+				final long maxStaleMillis) {
+			this.noStore = noStore;
+			this.forceCache = forceCache;
+			this.maxStaleMillis = maxStaleMillis;
+		}
+
+		public static CachePolicy maxStale(final long maxStaleMillis) {
+			return new CachePolicy(false, false, maxStaleMillis);
+		}
+	}
+
+	/**
+	 * Cached response metadata.
+	 */
+	public static class Entry {
+		public final String url;
+		public final String etag;
+		public final String lastModified;
+		/**
+		 * Time the response was received or last revalidated.
+		 */
+		public final long receivedMillis;
+		public final long freshnessMillis;
+		public final boolean noCache;
+		public final boolean mustRevalidate;
+		public final long bodyLength;
+		final String fileKey;
+
+		Entry(final String url, final String etag, final String lastModified,
+				final long receivedMillis, final long freshnessMillis,
+				final boolean noCache, final boolean mustRevalidate,
+				final long bodyLength, final String fileKey) {
+			this.url = url;
+			this.etag = etag;
+			this.lastModified = lastModified;
+			this.receivedMillis = receivedMillis;
+			this.freshnessMillis = freshnessMillis;
+			this.noCache = noCache;
+			this.mustRevalidate = mustRevalidate;
+			this.bodyLength = bodyLength;
+			this.fileKey = fileKey;
+		}
+
+		public long getAgeMillis(final long now) {
+			return Math.max(0, now - receivedMillis);
+		}
+
+		/**
+		 * Determine whether the entry may be served without revalidation.
+		 * @param now
+		 * @param maxStaleMillis accepted staleness
+		 * @return
+		 */
+		public boolean isFresh(final long now, final long maxStaleMillis) {
+			if (noCache) {
+				return false;
+			}
+			final long allowed = freshnessMillis + (mustRevalidate ? 0 : maxStaleMillis);
+			return getAgeMillis(now) < allowed;
+		}
+
+		public boolean hasValidator() {
+			return etag != null || lastModified != null;
+		}
+	}
+
+	private static HttpResponseCache m_installed;
+
+	private final File m_directory;
+	private final long m_maxSize;
+	private long m_size = 0;
+	/**
+	 * Entries in access order, least recently used first.
+	 */
+	private final LinkedHashMap<String, Entry> m_mapEntry =
+			new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+	private final AtomicLong m_hitCount = new AtomicLong();
+	private final AtomicLong m_missCount = new AtomicLong();
+	private final AtomicLong m_revalidationCount = new AtomicLong();
+	private final AtomicLong m_revalidatedHitCount = new AtomicLong();
+	private final AtomicLong m_storeCount = new AtomicLong();
+
+	/**
+	 * Install the cache used by service calls. Usually called in application
+	 * onCreate with a directory under the application cache directory.
+	 * @param directory cache directory
+	 * @param maxSize maximum total size of cached bodies in bytes
+	 * @return installed cache
+	 * @throws IOException
+	 */
+	public static synchronized HttpResponseCache install(final File directory,
+			final long maxSize) throws IOException {
+		m_installed = new HttpResponseCache(directory, maxSize);
+		return m_installed;
+	}
+
+	/**
+	 * Get the installed cache.
+	 * @return installed cache or null if no cache is installed
+	 */
+	public static synchronized HttpResponseCache getInstalled() {
+		return m_installed;
+	}
+
+	public HttpResponseCache(final File directory, final long maxSize)
+			throws IOException {
+		m_directory = directory;
+		m_maxSize = maxSize;
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Failed to create cache directory " + directory);
+		}
+		load();
+	}
+
+	/**
+	 * Load the entries in the cache directory. Bodies used least recently
+	 * (oldest modification time) are loaded first.
+	 */
+	private synchronized void load() {
+		final File[] files = m_directory.listFiles();
+		if (files == null) {
+			return;
+		}
+		final List<File> bodies = new ArrayList<File>();
+		for (final File file : files) {
+			if (file.getName().endsWith(TMP_SUFFIX)) {
+				file.delete();
+			} else if (file.getName().endsWith(BODY_SUFFIX)) {
+				bodies.add(file);
+			}
+		}
+		Collections.sort(bodies, new Comparator<File>() {
+
+			@Override
+			public int compare(final File lhs, final File rhs) {
+				final long l = lhs.lastModified();
+				final long r = rhs.lastModified();
+				return l < r ? -1 : l == r ? 0 : 1;
+			}
+		});
+		for (final File body : bodies) {
+			final String name = body.getName();
+			final String fileKey = name.substring(0, name.length() - BODY_SUFFIX.length());
+			final Entry entry = readMeta(fileKey);
+			if (entry == null || entry.bodyLength != body.length()) {
+				deleteFiles(fileKey);
+			} else {
+				m_mapEntry.put(entry.url, entry);
+				m_size += entry.bodyLength;
+			}
+		}
+		trim();
+	}
+
+	private File getMetaFile(final String fileKey) {
+		return new File(m_directory, fileKey + META_SUFFIX);
+	}
+
+	private File getBodyFile(final String fileKey) {
+		return new File(m_directory, fileKey + BODY_SUFFIX);
+	}
+
+	private void deleteFiles(final String fileKey) {
+		getMetaFile(fileKey).delete();
+		getBodyFile(fileKey).delete();
+	}
+
+	private Entry readMeta(final String fileKey) {
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(getMetaFile(fileKey))));
+			if (in.readInt() != VERSION) {
+				return null;
+			}
+			final String url = in.readUTF();
+			final String etag = readOptionalUTF(in);
+			final String lastModified = readOptionalUTF(in);
+			return new Entry(url, etag, lastModified, in.readLong(), in.readLong(),
+					in.readBoolean(), in.readBoolean(), in.readLong(), fileKey);
+		} catch (IOException e) {
+			return null;
+		} finally {
+			closeQuietly(in);
+		}
+	}
+
+	private void writeMeta(final Entry entry) throws IOException {
+		final File tmp = new File(m_directory, entry.fileKey + META_SUFFIX + TMP_SUFFIX);
+		final DataOutputStream out = new DataOutputStream(new FileOutputStream(tmp));
+		try {
+			out.writeInt(VERSION);
+			out.writeUTF(entry.url);
+			out.writeUTF(entry.etag == null ? "" : entry.etag);
+			out.writeUTF(entry.lastModified == null ? "" : entry.lastModified);
+			out.writeLong(entry.receivedMillis);
+			out.writeLong(entry.freshnessMillis);
+			out.writeBoolean(entry.noCache);
+			out.writeBoolean(entry.mustRevalidate);
+			out.writeLong(entry.bodyLength);
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(getMetaFile(entry.fileKey))) {
+			tmp.delete();
+			throw new IOException("Failed to write cache metadata");
+		}
+	}
+
+	private static String readOptionalUTF(final DataInputStream in)
+			throws IOException {
+		final String value = in.readUTF();
+		return value.length() == 0 ? null : value;
+	}
+
+	private static void closeQuietly(final java.io.Closeable closeable) {
+		if (closeable != null) {
+			try {
+				closeable.close();
+			} catch (IOException e) {
+				// ignore
+			}
+		}
+	}
+
+	private static String getFileKey(final String url) {
+		try {
+			final byte[] digest = MessageDigest.getInstance("MD5")
+					.digest(url.getBytes("UTF-8"));
+			final StringBuilder sb = new StringBuilder(digest.length*2);
+			for (final byte b : digest) {
+				sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+				sb.append(Character.forDigit(b & 0xf, 16));
+			}
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		} catch (java.io.UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Get the cached entry for the url.
+	 * @param url
+	 * @return entry or null if the url is not cached
+	 */
+	public synchronized Entry get(final String url) {
+		return m_mapEntry.get(url);
+	}
+
+	/**
+	 * Open the cached body of the entry and mark the entry as used.
+	 * @param entry
+	 * @return body stream
+	 * @throws IOException
+	 */
+	public InputStream openBody(final Entry entry) throws IOException {
+		final File body = getBodyFile(entry.fileKey);
+		body.setLastModified(System.currentTimeMillis());
+		return new FileInputStream(body);
+	}
+
+	/**
+	 * Remove the entry for the url, if any.
+	 * @param url
+	 */
+	public synchronized void remove(final String url) {
+		final Entry entry = m_mapEntry.remove(url);
+		if (entry != null) {
+			m_size -= entry.bodyLength;
+			deleteFiles(entry.fileKey);
+		}
+	}
+
+	/**
+	 * Remove the entries for urls starting with the prefix.
+	 * @param urlPrefix
+	 */
+	public synchronized void removePrefix(final String urlPrefix) {
+		final Iterator<Entry> entries = m_mapEntry.values().iterator();
+		while (entries.hasNext()) {
+			final Entry entry = entries.next();
+			if (entry.url.startsWith(urlPrefix)) {
+				entries.remove();
+				m_size -= entry.bodyLength;
+				deleteFiles(entry.fileKey);
+			}
+		}
+	}
+
+	/**
+	 * Remove all the entries.
+	 */
+	public synchronized void clear() {
+		for (final Entry entry : m_mapEntry.values()) {
+			deleteFiles(entry.fileKey);
+		}
+		m_mapEntry.clear();
+		m_size = 0;
+	}
+
+	/**
+	 * Add the conditional request headers for revalidating the entry.
+	 * @param urlConnection
+	 * @param entry
+	 */
+	public void addConditionalHeaders(final HttpURLConnection urlConnection,
+			final Entry entry) {
+		if (entry.etag != null) {
+			urlConnection.setRequestProperty("If-None-Match", entry.etag);
+		}
+		if (entry.lastModified != null) {
+			urlConnection.setRequestProperty("If-Modified-Since", entry.lastModified);
+		}
+		m_revalidationCount.incrementAndGet();
+	}
+
+	/**
+	 * Refresh the entry metadata from a 304 response.
+	 * @param entry
+	 * @param urlConnection
+	 * @return refreshed entry
+	 */
+	public synchronized Entry onNotModified(final Entry entry,
+			final HttpURLConnection urlConnection) {
+		m_revalidatedHitCount.incrementAndGet();
+		final long now = System.currentTimeMillis();
+		final Entry fresh = createEntry(entry.url, urlConnection, false, now,
+				entry.bodyLength, entry.fileKey, entry);
+		if (fresh == null) {
+			return entry;
+		}
+		try {
+			writeMeta(fresh);
+			if (m_mapEntry.containsKey(fresh.url)) {
+				m_mapEntry.put(fresh.url, fresh);
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "Failed to update cache entry", e);
+		}
+		return fresh;
+	}
+
+	/**
+	 * Create an entry from the response headers.
+	 * @param authorized whether the request carried Authorization
+	 * @param previous previously cached entry whose validators are used when
+	 * the response does not include them (304 responses), may be null
+	 * @return entry or null if the response must not be stored
+	 */
+	private static Entry createEntry(final String url,
+			final HttpURLConnection urlConnection, final boolean authorized,
+			final long now, final long bodyLength, final String fileKey,
+			final Entry previous) {
+		final String vary = urlConnection.getHeaderField("Vary");
+		if (vary != null) {
+			for (final String part : vary.split(",")) {
+				final String header = part.trim();
+				// bodies are stored decoded, so the encoding does not matter
+				if (header.length() > 0 && !header.equalsIgnoreCase("Accept-Encoding")) {
+					return null;
+				}
+			}
+		}
+		boolean isPublic = false;
+		boolean noCache = false;
+		boolean mustRevalidate = false;
+		long maxAgeMillis = -1;
+		final String cacheControl = urlConnection.getHeaderField("Cache-Control");
+		if (cacheControl != null) {
+			for (final String part : cacheControl.split(",")) {
+				final String directive = part.trim().toLowerCase();
+				if (directive.equals("no-store")) {
+					return null;
+				} else if (directive.equals("public")) {
+					isPublic = true;
+				} else if (directive.equals("no-cache")) {
+					noCache = true;
+				} else if (directive.equals("must-revalidate")) {
+					mustRevalidate = true;
+				} else if (directive.startsWith("max-age=")) {
+					try {
+						maxAgeMillis = 1000L*Long.parseLong(directive.substring(8).trim());
+					} catch (NumberFormatException e) {
+						maxAgeMillis = 0;
+					}
+				}
+			}
+		}
+		if (authorized && !isPublic) {
+			// the response may be specific to the user
+			return null;
+		}
+		String etag = urlConnection.getHeaderField("ETag");
+		String lastModified = urlConnection.getHeaderField("Last-Modified");
+		if (previous != null) {
+			etag = etag == null ? previous.etag : etag;
+			lastModified = lastModified == null ? previous.lastModified : lastModified;
+		}
+		long freshnessMillis = 0;
+		if (maxAgeMillis >= 0) {
+			freshnessMillis = maxAgeMillis;
+		} else {
+			final long date = urlConnection.getDate();
+			final long expires = urlConnection.getExpiration();
+			final long lastModifiedMillis = urlConnection.getLastModified();
+			if (expires > 0) {
+				freshnessMillis = Math.max(0, expires - (date > 0 ? date : now));
+			} else if (lastModifiedMillis > 0) {
+				// heuristic freshness: 10% of the time since last modification
+				freshnessMillis = Math.max(0,
+						((date > 0 ? date : now) - lastModifiedMillis)/10);
+			}
+		}
+		if (freshnessMillis == 0 && etag == null && lastModified == null) {
+			// can never be reused
+			return null;
+		}
+		return new Entry(url, etag, lastModified, now, freshnessMillis,
+				noCache, mustRevalidate, bodyLength, fileKey);
+	}
+
+	/**
+	 * Wrap a 200 response stream so that the body is stored in the cache as
+	 * it is read. The body is committed when the stream is read to the end
+	 * and closed; partially read bodies are discarded.
+	 * @param url request url
+	 * @param urlConnection connection to read the response headers from
+	 * @param authorized whether the request carried Authorization
+	 * @param in response body stream
+	 * @return stream to read the body from, which is the given stream if the
+	 * response cannot be cached
+	 */
+	public InputStream store(final String url, final HttpURLConnection urlConnection,
+			final boolean authorized, final InputStream in) {
+		final String fileKey = getFileKey(url);
+		final Entry template = createEntry(url, urlConnection, authorized,
+				System.currentTimeMillis(), 0, fileKey, null);
+		if (template == null) {
+			remove(url);
+			return in;
+		}
+		try {
+			return new CacheWriteInputStream(in, template,
+					File.createTempFile(fileKey, TMP_SUFFIX, m_directory));
+		} catch (IOException e) {
+			Log.w(TAG, "Failed to create cache file", e);
+			return in;
+		}
+	}
+
+	private synchronized void commit(final Entry template, final File tmp,
+			final long bodyLength) throws IOException {
+		final Entry entry = new Entry(template.url, template.etag,
+				template.lastModified, template.receivedMillis,
+				template.freshnessMillis, template.noCache,
+				template.mustRevalidate, bodyLength, template.fileKey);
+		remove(entry.url);
+		if (!tmp.renameTo(getBodyFile(entry.fileKey))) {
+			tmp.delete();
+			throw new IOException("Failed to commit cache body");
+		}
+		writeMeta(entry);
+		m_mapEntry.put(entry.url, entry);
+		m_size += bodyLength;
+		m_storeCount.incrementAndGet();
+		trim();
+	}
+
+	private synchronized void trim() {
+		final Iterator<Entry> it = m_mapEntry.values().iterator();
+		while (m_size > m_maxSize && it.hasNext()) {
+			final Entry entry = it.next();
+			it.remove();
+			m_size -= entry.bodyLength;
+			deleteFiles(entry.fileKey);
+		}
+	}
+
+	/**
+	 * Stream that copies the bytes read to a cache body file.
+	 */
+	private class CacheWriteInputStream extends FilterInputStream {
+		private final Entry m_template;
+		private final File m_tmp;
+		private FileChannel m_channel;
+		private long m_length = 0;
+		private boolean m_complete = false;
+		private boolean m_closed = false;
+
+		CacheWriteInputStream(final InputStream in, final Entry template,
+				final File tmp) throws IOException {
+			super(in);
+			m_template = template;
+			m_tmp = tmp;
+			m_channel = new FileOutputStream(tmp).getChannel();
+		}
+
+		private void write(final byte[] buffer, final int offset, final int count) {
+			if (m_channel == null) {
+				return;
+			}
+			try {
+				final ByteBuffer bytes = ByteBuffer.wrap(buffer, offset, count);
+				while (bytes.hasRemaining()) {
+					m_channel.write(bytes);
+				}
+				m_length += count;
+			} catch (IOException e) {
+				Log.w(TAG, "Failed to write cache body", e);
+				abort();
+			}
+		}
+
+		private void abort() {
+			closeQuietly(m_channel);
+			m_channel = null;
+			m_tmp.delete();
+		}
+
+		@Override
+		public int read() throws IOException {
+			final int b = super.read();
+			if (b == -1) {
+				m_complete = true;
+			} else {
+				write(new byte[]{(byte) b}, 0, 1);
+			}
+			return b;
+		}
+
+		@Override
+		public int read(final byte[] buffer, final int offset, final int count)
+				throws IOException {
+			final int read = super.read(buffer, offset, count);
+			if (read == -1) {
+				m_complete = true;
+			} else {
+				write(buffer, offset, read);
+			}
+			return read;
+		}
+
+		@Override
+		public long skip(final long n) throws IOException {
+			// skipped bytes would be missing from the cached body
+			abort();
+			return super.skip(n);
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (m_closed) {
+				return;
+			}
+			m_closed = true;
+			try {
+				super.close();
+			} finally {
+				if (m_channel != null) {
+					if (m_complete) {
+						try {
+							m_channel.close();
+							m_channel = null;
+							commit(m_template, m_tmp, m_length);
+						} catch (IOException e) {
+							Log.w(TAG, "Failed to commit cache entry", e);
+							abort();
+						}
+					} else {
+						abort();
+					}
+				}
+			}
+		}
+	}
+
+	public void onHit() {
+		m_hitCount.incrementAndGet();
+	}
+
+	public void onMiss() {
+		m_missCount.incrementAndGet();
+	}
+
+	public long getHitCount() {
+		return m_hitCount.get();
+	}
+
+	public long getMissCount() {
+		return m_missCount.get();
+	}
+
+	/**
+	 * Get the number of conditional requests sent.
+	 * @return
+	 */
+	public long getRevalidationCount() {
+		return m_revalidationCount.get();
+	}
+
+	/**
+	 * Get the number of conditional requests answered with 304.
+	 * @return
+	 */
+	public long getRevalidatedHitCount() {
+		return m_revalidatedHitCount.get();
+	}
+
+	public long getStoreCount() {
+		return m_storeCount.get();
+	}
+
+	public synchronized long getSize() {
+		return m_size;
+	}
+
+	public long getMaxSize() {
+		return m_maxSize;
+	}
+}
@@ -0,0 +1,325 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2013 Zidsoft LLC
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.zidsoft.zdlib.service;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+
+/**
+ * Shared TLS context for https service calls. All calls share one
+ * {@link SSLContext} so a reconnect to a host resumes the cached TLS session
+ * instead of doing a full handshake. Session tickets are enabled where the
+ * platform supports them.
+ * <p>Records the handshake time and whether the session was resumed for
+ * each new connection, per call in {@link ServiceCallHttpResult} and in
+ * total in the context counters.</p>
+ *
+ * @author faridz
+ *
+ */
+public class HttpTlsContext {
+	public static final int SESSION_CACHE_SIZE_DEFAULT = 32;
+	public static final int SESSION_TIMEOUT_SECONDS_DEFAULT = 24*60*60;	// 24 hours
+
+	private static HttpTlsContext m_instance;
+
+	private final SSLContext m_sslContext;
+	private final SSLSocketFactory m_socketFactory;
+	/**
+	 * Handshake of the connection opened by the current thread's call.
+	 */
+	private final ThreadLocal<Handshake> m_handshake = new ThreadLocal<Handshake>();
+	private final AtomicLong m_handshakeCount = new AtomicLong();
+	private final AtomicLong m_resumedCount = new AtomicLong();
+	private final AtomicLong m_handshakeMillis = new AtomicLong();
+
+	/**
+	 * Handshake of a new connection.
+	 */
+	public static class Handshake {
+		private final long m_start = System.currentTimeMillis();
+		private final SSLSocket m_socket;
+		private long m_millis = -1;
+		private boolean m_resumed;
+
+		Handshake(final SSLSocket socket) {
+			m_socket = socket;
+		}
+
+		synchronized boolean complete(final SSLSession session) {
+			if (m_millis >= 0) {
+				return false;
+			}
+			m_millis = System.currentTimeMillis() - m_start;
+			m_resumed = HttpTlsContext.isResumed(session, m_start);
+			return true;
+		}
+
+		/**
+		 * Get the handshake time.
+		 * @return handshake time in milliseconds or -1 if the handshake has
+		 * not completed
+		 */
+		public synchronized long getMillis() {
+			return m_millis;
+		}
+
+		public synchronized boolean isResumed() {
+			return m_resumed;
+		}
+	}
+
+	public static synchronized HttpTlsContext getInstance() {
+		if (m_instance == null) {
+			try {
+				m_instance = new HttpTlsContext(null, SESSION_CACHE_SIZE_DEFAULT,
+						SESSION_TIMEOUT_SECONDS_DEFAULT);
+			} catch (SSLException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+		return m_instance;
+	}
+
+	/**
+	 * Replace the default context, for example to trust a test server.
+	 * @param context
+	 */
+	public static synchronized void setInstance(final HttpTlsContext context) {
+		m_instance = context;
+	}
+
+	/**
+	 * @param trustManagers trust managers or null for the platform default
+	 * @param sessionCacheSize number of client sessions cached
+	 * @param sessionTimeoutSeconds lifetime of a cached session
+	 * @throws SSLException
+	 */
+	public HttpTlsContext(final TrustManager[] trustManagers,
+			final int sessionCacheSize, final int sessionTimeoutSeconds)
+			throws SSLException {
+		try {
+			m_sslContext = SSLContext.getInstance("TLS");
+			m_sslContext.init(null, trustManagers, null);
+		} catch (Exception e) {
+			throw new SSLException("Failed to initialize TLS", e);
+		}
+		final SSLSessionContext sessions = m_sslContext.getClientSessionContext();
+		if (sessions != null) {
+			sessions.setSessionCacheSize(sessionCacheSize);
+			sessions.setSessionTimeout(sessionTimeoutSeconds);
+		}
+		m_socketFactory = new SocketFactory(m_sslContext.getSocketFactory());
+	}
+
+	public SSLContext getSslContext() {
+		return m_sslContext;
+	}
+
+	/**
+	 * Get the socket factory to set on https connections.
+	 * @return
+	 */
+	public SSLSocketFactory getSocketFactory() {
+		return m_socketFactory;
+	}
+
+	/**
+	 * Start tracking the handshake of the connection opened by the current
+	 * thread.
+	 */
+	void beginCall() {
+		m_handshake.remove();
+	}
+
+	/**
+	 * Stop tracking the current thread's connection and record its handshake
+	 * in the result. The handshake time is -1 if the call reused a
+	 * connection.
+	 * @param result
+	 */
+	void endCall(final ServiceCallHttpResult result) {
+		final Handshake handshake = m_handshake.get();
+		m_handshake.remove();
+		if (handshake == null) {
+			return;
+		}
+		if (handshake.getMillis() < 0) {
+			// the listener has not been notified yet
+			onHandshake(handshake, handshake.m_socket.getSession());
+		}
+		result.handshakeMillis = handshake.getMillis();
+		result.sessionResumed = handshake.isResumed();
+	}
+
+	private void onHandshake(final Handshake handshake, final SSLSession session) {
+		if (handshake.complete(session)) {
+			onHandshake(handshake.getMillis(), handshake.isResumed());
+		}
+	}
+
+	/**
+	 * Record a completed handshake in the context counters.
+	 * @param millis
+	 * @param resumed
+	 */
+	void onHandshake(final long millis, final boolean resumed) {
+		m_handshakeCount.incrementAndGet();
+		m_handshakeMillis.addAndGet(millis);
+		if (resumed) {
+			m_resumedCount.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Whether the session was resumed rather than negotiated by the handshake
+	 * that started at the given time.
+	 * @param session
+	 * @param handshakeStart handshake start time in milliseconds
+	 * @return
+	 */
+	static boolean isResumed(final SSLSession session, final long handshakeStart) {
+		return session.isValid() && session.getCreationTime() < handshakeStart;
+	}
+
+	public long getHandshakeCount() {
+		return m_handshakeCount.get();
+	}
+
+	public long getResumedCount() {
+		return m_resumedCount.get();
+	}
+
+	/**
+	 * Get the total handshake time of all handshakes.
+	 * @return
+	 */
+	public long getHandshakeMillis() {
+		return m_handshakeMillis.get();
+	}
+
+	/**
+	 * Socket factory that enables session tickets and tracks the handshake of
+	 * the sockets it creates. Unconnected sockets are not supported so
+	 * connections layer TLS over a connected socket and the handshake time
+	 * does not include the connect time.
+	 */
+	private class SocketFactory extends SSLSocketFactory {
+		private final SSLSocketFactory m_delegate;
+
+		SocketFactory(final SSLSocketFactory delegate) {
+			m_delegate = delegate;
+		}
+
+		@Override
+		public String[] getDefaultCipherSuites() {
+			return m_delegate.getDefaultCipherSuites();
+		}
+
+		@Override
+		public String[] getSupportedCipherSuites() {
+			return m_delegate.getSupportedCipherSuites();
+		}
+
+		@Override
+		public Socket createSocket(final Socket s, final String host, final int port,
+				final boolean autoClose) throws IOException {
+			return track(m_delegate.createSocket(s, host, port, autoClose));
+		}
+
+		@Override
+		public Socket createSocket(final String host, final int port)
+				throws IOException {
+			return track(m_delegate.createSocket(host, port));
+		}
+
+		@Override
+		public Socket createSocket(final String host, final int port,
+				final InetAddress localHost, final int localPort) throws IOException {
+			return track(m_delegate.createSocket(host, port, localHost, localPort));
+		}
+
+		@Override
+		public Socket createSocket(final InetAddress host, final int port)
+				throws IOException {
+			return track(m_delegate.createSocket(host, port));
+		}
+
+		@Override
+		public Socket createSocket(final InetAddress address, final int port,
+				final InetAddress localAddress, final int localPort)
+				throws IOException {
+			return track(m_delegate.createSocket(address, port, localAddress,
+					localPort));
+		}
+
+		private Socket track(final Socket socket) {
+			if (!(socket instanceof SSLSocket)) {
+				return socket;
+			}
+			final SSLSocket sslSocket = (SSLSocket) socket;
+			enableSessionTickets(sslSocket);
+			final Handshake handshake = new Handshake(sslSocket);
+			sslSocket.addHandshakeCompletedListener(new HandshakeCompletedListener() {
+
+				@Override
+				public void handshakeCompleted(final HandshakeCompletedEvent event) {
+					onHandshake(handshake, event.getSession());
+				}
+			});
+			m_handshake.set(handshake);
+			return sslSocket;
+		}
+	}
+
+	/**
+	 * Enable session tickets on platform sockets that support them.
+	 * @param socket
+	 */
+	private static void enableSessionTickets(final SSLSocket socket) {
+		try {
+			final Method method = socket.getClass().getMethod(
+					"setUseSessionTickets", boolean.class);
+			method.invoke(socket, true);
+		} catch (NoSuchMethodException e) {
+			// tickets are managed by the platform
+		} catch (Exception e) {
+			// not supported by this socket
+		}
+	}
+}
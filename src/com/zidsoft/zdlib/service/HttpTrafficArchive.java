@@ -0,0 +1,343 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2013 Zidsoft LLC
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.zidsoft.zdlib.service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import android.util.Log;
+
+/**
+ * Recorded http traffic: the request and response of each service call sent
+ * while recording, with its timing, in a gzip compressed archive file.
+ * Response bodies are recorded as received, before the content encoding is
+ * decoded. The archive is replayed by {@link HttpReplayTransport}.
+ * <p>Recording is global: {@link #startRecording(File)} records all service
+ * calls until {@link #stopRecording()}, which completes the archive. An
+ * archive that was not completed is read up to its last whole entry.</p>
+ *
+ * @author faridz
+ *
+ */
+public class HttpTrafficArchive {
+	private static final String TAG = HttpTrafficArchive.class.getSimpleName();
+	private static final int MAGIC = 0x5a445452;
+	private static final int VERSION = 1;
+
+	private static HttpTrafficArchive m_recording;
+
+	private final DataOutputStream m_out;
+	private int m_count;
+	private boolean m_closed;
+
+	/**
+	 * Recorded request and response.
+	 */
+	public static class Entry {
+		public String method;
+		public String url;
+		public int code;
+		public String message;
+		public final Map<String, List<String>> headers =
+				new LinkedHashMap<String, List<String>>();
+		/**
+		 * Time from the start of the request to the response headers.
+		 */
+		public long headersMillis;
+		/**
+		 * Time from the start of the request to the end of the response body.
+		 */
+		public long totalMillis;
+		public byte[] body = new byte[0];
+
+		/**
+		 * Get the key replayed responses are looked up by.
+		 * @return
+		 */
+		public String getKey() {
+			return getKey(method, url);
+		}
+
+		static String getKey(final String method, final String url) {
+			return method + " " + url;
+		}
+	}
+
+	/**
+	 * Entry being recorded for a service call.
+	 */
+	static class Capture {
+		private final HttpTrafficArchive m_archive;
+		private final Entry m_entry = new Entry();
+		private final long m_start = System.currentTimeMillis();
+		private final ByteArrayOutputStream m_body = new ByteArrayOutputStream();
+		private boolean m_received;
+		private boolean m_finished;
+
+		Capture(final HttpTrafficArchive archive, final String method,
+				final String url) {
+			m_archive = archive;
+			m_entry.method = method;
+			m_entry.url = url;
+		}
+
+		void onHeaders(final int code, final String message,
+				final Map<String, List<String>> headers) {
+			if (!m_received) {
+				// not timed already by onResponseReceived()
+				m_entry.headersMillis = System.currentTimeMillis() - m_start;
+			}
+			m_entry.code = code;
+			m_entry.message = message;
+			for (final Map.Entry<String, List<String>> header : headers.entrySet()) {
+				// the status line has no name
+				if (header.getKey() != null) {
+					m_entry.headers.put(header.getKey(),
+							new ArrayList<String>(header.getValue()));
+				}
+			}
+		}
+
+		void onBody(final byte[] body, final int length) {
+			m_body.write(body, 0, length);
+		}
+
+		/**
+		 * Copy the body bytes read from the stream into the entry.
+		 * @param in
+		 * @return
+		 */
+		InputStream tee(final InputStream in) {
+			return new FilterInputStream(in) {
+
+				@Override
+				public int read() throws IOException {
+					final int b = super.read();
+					if (b >= 0) {
+						m_body.write(b);
+					} else {
+						onReceived();
+					}
+					return b;
+				}
+
+				@Override
+				public int read(final byte[] buffer, final int offset, final int count)
+						throws IOException {
+					final int read = super.read(buffer, offset, count);
+					if (read > 0) {
+						m_body.write(buffer, offset, read);
+					} else if (read < 0) {
+						onReceived();
+					}
+					return read;
+				}
+
+				@Override
+				public long skip(final long count) throws IOException {
+					// read the skipped bytes so they are recorded
+					final byte[] buffer = new byte[(int) Math.min(count, 4096)];
+					final int read = read(buffer, 0, buffer.length);
+					return Math.max(read, 0);
+				}
+			};
+		}
+
+		/**
+		 * Record the response times of a response received whole, when the
+		 * headers and body are captured later on another thread.
+		 */
+		void onResponseReceived() {
+			m_entry.headersMillis = System.currentTimeMillis() - m_start;
+			onReceived();
+		}
+
+		/**
+		 * Record the end of the body; the time the caller takes to process
+		 * the body is not part of the response time.
+		 */
+		private void onReceived() {
+			if (!m_received) {
+				m_received = true;
+				m_entry.totalMillis = System.currentTimeMillis() - m_start;
+			}
+		}
+
+		/**
+		 * Append the entry to the archive. Does nothing if called again.
+		 */
+		void finish() {
+			if (m_finished) {
+				return;
+			}
+			m_finished = true;
+			onReceived();
+			m_entry.body = m_body.toByteArray();
+			try {
+				m_archive.append(m_entry);
+			} catch (IOException e) {
+				Log.w(TAG, "Failed to record " + m_entry.getKey(), e);
+			}
+		}
+	}
+
+	private HttpTrafficArchive(final File file) throws IOException {
+		m_out = new DataOutputStream(new BufferedOutputStream(
+				new GZIPOutputStream(new FileOutputStream(file))));
+		m_out.writeInt(MAGIC);
+		m_out.writeInt(VERSION);
+	}
+
+	/**
+	 * Start recording service calls to a new archive, replacing the file.
+	 * Stops the current recording if any.
+	 * @param file
+	 * @throws IOException
+	 */
+	public static synchronized void startRecording(final File file)
+			throws IOException {
+		stopRecording();
+		m_recording = new HttpTrafficArchive(file);
+	}
+
+	/**
+	 * Stop recording and complete the archive.
+	 * @return number of recorded entries
+	 * @throws IOException
+	 */
+	public static synchronized int stopRecording() throws IOException {
+		final HttpTrafficArchive recording = m_recording;
+		if (recording == null) {
+			return 0;
+		}
+		m_recording = null;
+		return recording.close();
+	}
+
+	/**
+	 * Get the archive being recorded.
+	 * @return archive or null if not recording
+	 */
+	public static synchronized HttpTrafficArchive getRecording() {
+		return m_recording;
+	}
+
+	synchronized void append(final Entry entry) throws IOException {
+		if (m_closed) {
+			throw new IOException("Recording stopped");
+		}
+		m_out.writeBoolean(true);
+		m_out.writeUTF(entry.method);
+		m_out.writeUTF(entry.url);
+		m_out.writeInt(entry.code);
+		m_out.writeBoolean(entry.message != null);
+		if (entry.message != null) {
+			m_out.writeUTF(entry.message);
+		}
+		int count = 0;
+		for (final List<String> values : entry.headers.values()) {
+			count += values.size();
+		}
+		m_out.writeInt(count);
+		for (final Map.Entry<String, List<String>> header : entry.headers.entrySet()) {
+			for (final String value : header.getValue()) {
+				m_out.writeUTF(header.getKey());
+				m_out.writeUTF(value);
+			}
+		}
+		m_out.writeLong(entry.headersMillis);
+		m_out.writeLong(entry.totalMillis);
+		m_out.writeInt(entry.body.length);
+		m_out.write(entry.body);
+		++m_count;
+	}
+
+	private synchronized int close() throws IOException {
+		m_closed = true;
+		m_out.writeBoolean(false);
+		m_out.close();
+		return m_count;
+	}
+
+	/**
+	 * Read the entries of an archive.
+	 * @param file
+	 * @return entries in recording order
+	 * @throws IOException
+	 */
+	public static List<Entry> read(final File file) throws IOException {
+		final List<Entry> entries = new ArrayList<Entry>();
+		final DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new GZIPInputStream(new FileInputStream(file))));
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				throw new IOException("Not a traffic archive: " + file);
+			}
+			while (in.readBoolean()) {
+				final Entry entry = new Entry();
+				entry.method = in.readUTF();
+				entry.url = in.readUTF();
+				entry.code = in.readInt();
+				entry.message = in.readBoolean() ? in.readUTF() : null;
+				for (int count = in.readInt(); count > 0; --count) {
+					final String name = in.readUTF();
+					List<String> values = entry.headers.get(name);
+					if (values == null) {
+						values = new ArrayList<String>(1);
+						entry.headers.put(name, values);
+					}
+					values.add(in.readUTF());
+				}
+				entry.headersMillis = in.readLong();
+				entry.totalMillis = in.readLong();
+				entry.body = new byte[in.readInt()];
+				in.readFully(entry.body);
+				entries.add(entry);
+			}
+		} catch (EOFException e) {
+			// recording was not stopped; keep the whole entries
+			Log.w(TAG, "Incomplete archive " + file);
+		} finally {
+			in.close();
+		}
+		return entries;
+	}
+}
@@ -0,0 +1,112 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2013 Zidsoft LLC
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.zidsoft.zdlib.service;
+
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Json batch envelope. Request:
+ * <pre>
+ * {"requests": [{"method": "GET", "path": "/service/name?a=1",
+ *   "headers": {"name": "value"}}, ...]}
+ * </pre>
+ * Response, one entry per request in the same order:
+ * <pre>
+ * {"responses": [{"status": 200, "message": "OK",
+ *   "headers": {"name": "value"}, "body": "..."}, ...]}
+ * </pre>
+ *
+ * @author faridz
+ *
+ */
+public class JsonBatchEnvelope implements HttpBatchEnvelope {
+	private static final String UTF8 = "utf-8";
+
+	@Override
+	public String getContentType() {
+		return "application/json; charset=utf-8";
+	}
+
+	@Override
+	public void encode(final List<HttpBatcher.Part> parts, final OutputStream out)
+			throws Exception {
+		final JSONArray requests = new JSONArray();
+		for (final HttpBatcher.Part part : parts) {
+			final JSONObject request = new JSONObject();
+			request.put("method", part.method);
+			final String query = part.url.getQuery();
+			request.put("path", query == null ? part.url.getPath() :
+				part.url.getPath() + "?" + query);
+			final JSONObject headers = new JSONObject();
+			for (final Map.Entry<String, String> header : part.headers.entrySet()) {
+				headers.put(header.getKey(), header.getValue());
+			}
+			request.put("headers", headers);
+			requests.put(request);
+		}
+		final JSONObject envelope = new JSONObject();
+		envelope.put("requests", requests);
+		out.write(envelope.toString().getBytes(UTF8));
+	}
+
+	@Override
+	public List<NioHttpTransport.Response> decode(final HttpResponseBody body,
+			final List<HttpBatcher.Part> parts) throws Exception {
+		final JSONArray responses = new JSONObject(body.string(UTF8))
+			.getJSONArray("responses");
+		final List<NioHttpTransport.Response> list =
+				new ArrayList<NioHttpTransport.Response>(responses.length());
+		for (int i = 0; i < responses.length(); ++i) {
+			final JSONObject entry = responses.optJSONObject(i);
+			if (entry == null) {
+				list.add(null);
+				continue;
+			}
+			final NioHttpTransport.Response response = new NioHttpTransport.Response();
+			response.code = entry.getInt("status");
+			response.message = entry.optString("message", null);
+			final JSONObject headers = entry.optJSONObject("headers");
+			if (headers != null) {
+				final Iterator<?> names = headers.keys();
+				while (names.hasNext()) {
+					final String name = (String) names.next();
+					response.addHeader(name, headers.getString(name));
+				}
+			}
+			final String text = entry.optString("body", "");
+			response.body = text.getBytes(UTF8);
+			response.bodyLength = response.body.length;
+			list.add(response);
+		}
+		return list;
+	}
+}
@@ -0,0 +1,1041 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2013 Zidsoft LLC
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.zidsoft.zdlib.service;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLPeerUnverifiedException;
+
+import android.util.Log;
+
+/**
+ * Non-blocking HTTP/1.1 transport for {@link ServiceCallHttp}. All
+ * connections are driven by a single selector thread, so a request in flight
+ * does not hold a thread while it waits for the server. Connections are kept
+ * alive and reused per host; requests beyond the per host connection limit
+ * wait for a connection to become free. Https connections use an
+ * {@link SSLEngine} from the shared {@link HttpTlsContext} and the default
+ * host name verifier.
+ * <p>Responses are buffered in memory and handed to the {@link Callback} on
+ * the transport thread. Callbacks must not block.</p>
+ *
+ * @author faridz
+ *
+ */
+public class NioHttpTransport {
+	private static final String TAG = NioHttpTransport.class.getSimpleName();
+	public static final int MAX_CONNECTIONS_PER_HOST_DEFAULT =
+			HttpConnectionPool.MAX_CONNECTIONS_PER_HOST_DEFAULT;
+	public static final int MAX_IDLE_PER_HOST_DEFAULT = 5;
+	public static final long IDLE_TIMEOUT_MILLIS_DEFAULT = 5*60*1000;	// 5 minutes
+	private static final String ISO_8859_1 = "ISO-8859-1";
+	private static final int READ_BUFFER_SIZE = 16*1024;
+	private static final int MAX_LINE_LENGTH = 64*1024;
+	/**
+	 * Maximum body buffer allocated up front from the content length.
+	 */
+	private static final int MAX_PRESIZE = 1024*1024;
+	/**
+	 * Selector wake up interval for checking timeouts while there are open
+	 * connections.
+	 */
+	private static final long TICK_MILLIS = 1000;
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+	private static NioHttpTransport m_instance;
+
+	private final int m_maxConnectionsPerHost;
+	private final int m_maxIdlePerHost;
+	private final long m_idleTimeoutMillis;
+	private final ConcurrentLinkedQueue<Exchange> m_pending =
+			new ConcurrentLinkedQueue<Exchange>();
+	/**
+	 * Hosts by host key. Accessed only by the transport thread.
+	 */
+	private final Map<String, Host> m_mapHost = new HashMap<String, Host>();
+	private final AtomicInteger m_connectionCount = new AtomicInteger();
+	private final AtomicInteger m_inFlightCount = new AtomicInteger();
+	private Selector m_selector;
+	private Thread m_thread;
+	private HttpTlsContext m_tlsContext;
+
+	/**
+	 * Http request.
+	 */
+	public static class Request {
+		public final URL url;
+		public final String method;
+		public final Map<String, String> headers = new LinkedHashMap<String, String>();
+		/**
+		 * Request body or null for none.
+		 */
+		public byte[] body;
+		public int connectTimeout = ServiceCallHttp.CONNECT_TIMEOUT_DEFAULT;
+		public int readTimeout = ServiceCallHttp.READ_TIMEOUT_DEFAULT;
+
+		public Request(final URL url, final String method) {
+			this.url = url;
+			this.method = method;
+		}
+	}
+
+	/**
+	 * Http response.
+	 */
+	public static class Response {
+		public int code;
+		public String message;
+		/**
+		 * Response headers by lower case name.
+		 */
+		public final Map<String, List<String>> headers =
+				new HashMap<String, List<String>>();
+		/**
+		 * Response body; only the first {@link #bodyLength} bytes are valid.
+		 */
+		public byte[] body = new byte[0];
+		public int bodyLength;
+		/**
+		 * TLS handshake time of the connection opened for the request or -1
+		 * if the request reused a connection or is not https.
+		 */
+		public long handshakeMillis = -1;
+		public boolean sessionResumed;
+
+		/**
+		 * Get the last value of the named header.
+		 * @param name
+		 * @return header value or null if the header is not present
+		 */
+		public String getHeaderField(final String name) {
+			final List<String> values = headers.get(name.toLowerCase(Locale.US));
+			return values == null || values.isEmpty() ? null :
+				values.get(values.size() - 1);
+		}
+
+		void addHeader(final String name, final String value) {
+			final String key = name.toLowerCase(Locale.US);
+			List<String> values = headers.get(key);
+			if (values == null) {
+				values = new ArrayList<String>(1);
+				headers.put(key, values);
+			}
+			values.add(value);
+		}
+
+		void append(final ByteBuffer in, final int count) {
+			if (bodyLength + count > body.length) {
+				final byte[] grown = new byte[Math.max(bodyLength + count,
+						body.length*2)];
+				System.arraycopy(body, 0, grown, 0, bodyLength);
+				body = grown;
+			}
+			in.get(body, bodyLength, count);
+			bodyLength += count;
+		}
+	}
+
+	/**
+	 * Receives the outcome of a request on the transport thread.
+	 */
+	public interface Callback {
+		void onResponse(Response response);
+		void onFailure(IOException e);
+	}
+
+	private static class Host {
+		final LinkedList<Connection> idle = new LinkedList<Connection>();
+		final LinkedList<Exchange> waiting = new LinkedList<Exchange>();
+		int connectionCount;
+	}
+
+	/**
+	 * Request in flight and the state of its response parser.
+	 */
+	private static class Exchange {
+		static final int STATUS_LINE = 0;
+		static final int HEADERS = 1;
+		static final int BODY = 2;
+		static final int CHUNK_SIZE = 3;
+		static final int CHUNK_DATA = 4;
+		static final int CHUNK_END = 5;
+		static final int TRAILERS = 6;
+		static final int BODY_UNTIL_CLOSE = 7;
+		static final int DONE = 8;
+
+		final Request request;
+		final Callback callback;
+		final String hostKey;
+		/**
+		 * Resolved host addresses, tried in order until one connects.
+		 */
+		final InetSocketAddress[] addresses;
+		int addressIndex = 0;
+		final boolean https;
+		final ByteBuffer out;
+		Response response = new Response();
+		int state = STATUS_LINE;
+		long remaining;
+		boolean keepAlive = true;
+		final StringBuilder line = new StringBuilder();
+		/**
+		 * Whether the exchange was sent on a reused connection and may be
+		 * retried once on a new connection if the server had closed it.
+		 */
+		boolean reused;
+		boolean retried;
+		boolean received;
+
+		Exchange(final Request request, final Callback callback,
+				final String hostKey, final InetSocketAddress[] addresses,
+				final boolean https) throws IOException {
+			this.request = request;
+			this.callback = callback;
+			this.hostKey = hostKey;
+			this.addresses = addresses;
+			this.https = https;
+			this.out = encode(request);
+		}
+
+		private static ByteBuffer encode(final Request request) throws IOException {
+			final URL url = request.url;
+			final StringBuilder head = new StringBuilder(256);
+			final String path = url.getPath();
+			head.append(request.method).append(' ')
+				.append(path == null || path.length() == 0 ? "/" : path);
+			if (url.getQuery() != null) {
+				head.append('?').append(url.getQuery());
+			}
+			head.append(" HTTP/1.1\r\nHost: ").append(url.getHost());
+			if (url.getPort() != -1 && url.getPort() != url.getDefaultPort()) {
+				head.append(':').append(url.getPort());
+			}
+			head.append("\r\n");
+			final String agent = System.getProperty("http.agent");
+			if (agent != null && !request.headers.containsKey("User-Agent")) {
+				head.append("User-Agent: ").append(agent).append("\r\n");
+			}
+			for (final Map.Entry<String, String> header : request.headers.entrySet()) {
+				head.append(header.getKey()).append(": ")
+					.append(header.getValue()).append("\r\n");
+			}
+			if (request.body != null || "POST".equals(request.method)) {
+				head.append("Content-Length: ")
+					.append(request.body == null ? 0 : request.body.length)
+					.append("\r\n");
+			}
+			head.append("\r\n");
+			final byte[] headBytes = head.toString().getBytes(ISO_8859_1);
+			final ByteBuffer buffer = ByteBuffer.allocate(headBytes.length +
+					(request.body == null ? 0 : request.body.length));
+			buffer.put(headBytes);
+			if (request.body != null) {
+				buffer.put(request.body);
+			}
+			buffer.flip();
+			return buffer;
+		}
+
+		/**
+		 * Parse response bytes.
+		 * @param in buffer in read mode
+		 * @return true if the response is complete
+		 * @throws IOException
+		 */
+		boolean parse(final ByteBuffer in) throws IOException {
+			while (state != DONE && in.hasRemaining()) {
+				received = true;
+				switch (state) {
+				case BODY:
+				case CHUNK_DATA: {
+					final int count = (int) Math.min(in.remaining(), remaining);
+					response.append(in, count);
+					remaining -= count;
+					if (remaining == 0) {
+						state = state == BODY ? DONE : CHUNK_END;
+					}
+					break;
+				}
+				case BODY_UNTIL_CLOSE:
+					response.append(in, in.remaining());
+					break;
+				default:
+					if (readLine(in)) {
+						final String text = line.toString();
+						line.setLength(0);
+						onLine(text);
+					}
+					break;
+				}
+			}
+			return state == DONE;
+		}
+
+		private boolean readLine(final ByteBuffer in) throws IOException {
+			while (in.hasRemaining()) {
+				final char c = (char) (in.get() & 0xff);
+				if (c == '\n') {
+					final int length = line.length();
+					if (length > 0 && line.charAt(length - 1) == '\r') {
+						line.setLength(length - 1);
+					}
+					return true;
+				}
+				if (line.length() == MAX_LINE_LENGTH) {
+					throw new ProtocolException("Response line too long");
+				}
+				line.append(c);
+			}
+			return false;
+		}
+
+		private void onLine(final String text) throws IOException {
+			switch (state) {
+			case STATUS_LINE: {
+				// HTTP/1.1 200 OK
+				final int codeStart = text.indexOf(' ');
+				if (!text.startsWith("HTTP/") || codeStart < 0 ||
+						text.length() < codeStart + 4) {
+					throw new ProtocolException("Unexpected status line: " + text);
+				}
+				try {
+					response.code = Integer.parseInt(
+							text.substring(codeStart + 1, codeStart + 4));
+				} catch (NumberFormatException e) {
+					throw new ProtocolException("Unexpected status line: " + text);
+				}
+				response.message = text.length() > codeStart + 5 ?
+						text.substring(codeStart + 5) : "";
+				keepAlive = !text.startsWith("HTTP/1.0");
+				state = HEADERS;
+				break;
+			}
+			case HEADERS:
+				if (text.length() > 0) {
+					final int colon = text.indexOf(':');
+					if (colon > 0) {
+						response.addHeader(text.substring(0, colon).trim(),
+								text.substring(colon + 1).trim());
+					}
+				} else {
+					onHeadersEnd();
+				}
+				break;
+			case CHUNK_SIZE: {
+				final int extension = text.indexOf(';');
+				try {
+					remaining = Long.parseLong((extension < 0 ? text :
+						text.substring(0, extension)).trim(), 16);
+				} catch (NumberFormatException e) {
+					throw new ProtocolException("Bad chunk size: " + text);
+				}
+				state = remaining == 0 ? TRAILERS : CHUNK_DATA;
+				break;
+			}
+			case CHUNK_END:
+				state = CHUNK_SIZE;
+				break;
+			case TRAILERS:
+				if (text.length() == 0) {
+					state = DONE;
+				}
+				break;
+			}
+		}
+
+		private void onHeadersEnd() throws IOException {
+			final int code = response.code;
+			if (code >= 100 && code < 200) {
+				// interim response; the final response follows
+				response = new Response();
+				state = STATUS_LINE;
+				return;
+			}
+			final String connection = response.getHeaderField("Connection");
+			if (connection != null) {
+				if ("close".equalsIgnoreCase(connection)) {
+					keepAlive = false;
+				} else if ("keep-alive".equalsIgnoreCase(connection)) {
+					keepAlive = true;
+				}
+			}
+			final String transferEncoding = response.getHeaderField("Transfer-Encoding");
+			final String contentLength = response.getHeaderField("Content-Length");
+			if ("HEAD".equals(request.method) || code == 204 || code == 304) {
+				state = DONE;
+			} else if (transferEncoding != null &&
+					transferEncoding.toLowerCase(Locale.US).contains("chunked")) {
+				state = CHUNK_SIZE;
+			} else if (contentLength != null) {
+				try {
+					remaining = Long.parseLong(contentLength);
+				} catch (NumberFormatException e) {
+					throw new ProtocolException("Bad content length: " + contentLength);
+				}
+				if (remaining > Integer.MAX_VALUE) {
+					throw new ProtocolException("Response too large: " + contentLength);
+				}
+				response.body = new byte[(int) Math.min(remaining, MAX_PRESIZE)];
+				state = remaining == 0 ? DONE : BODY;
+			} else {
+				// body ends when the server closes the connection
+				keepAlive = false;
+				state = BODY_UNTIL_CLOSE;
+			}
+		}
+
+		/**
+		 * Handle end of stream from the server.
+		 * @return true if the end of stream completes the response
+		 */
+		boolean onEndOfStream() {
+			if (state == BODY_UNTIL_CLOSE) {
+				state = DONE;
+				return true;
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Connection to a host. Accessed only by the transport thread.
+	 */
+	private class Connection {
+		final String hostKey;
+		final String host;
+		final SocketChannel channel;
+		final SelectionKey key;
+		final SSLEngine engine;
+		/**
+		 * Bytes read from the channel, in write mode.
+		 */
+		ByteBuffer netIn;
+		/**
+		 * Encrypted bytes to write to the channel, in read mode.
+		 */
+		ByteBuffer netOut;
+		/**
+		 * Decrypted bytes read from the channel, in write mode. Same as
+		 * netIn for plain connections.
+		 */
+		ByteBuffer appIn;
+		Exchange exchange;
+		boolean connected;
+		boolean handshaken;
+		/**
+		 * Whether the peer closed the TLS session.
+		 */
+		boolean inputClosed;
+		boolean used;
+		/**
+		 * Whether the connection is counted in its host connection count.
+		 */
+		boolean counted;
+		boolean closed;
+		long deadline;
+		long idleSince;
+		long handshakeStart;
+		long handshakeMillis = -1;
+		boolean sessionResumed;
+
+		Connection(final Exchange exchange) throws IOException {
+			this.hostKey = exchange.hostKey;
+			this.host = exchange.request.url.getHost();
+			channel = SocketChannel.open();
+			try {
+				channel.configureBlocking(false);
+				channel.socket().setTcpNoDelay(true);
+				// completed by finishConnect even if the connection is immediate
+				channel.connect(exchange.addresses[exchange.addressIndex]);
+				key = channel.register(m_selector, SelectionKey.OP_CONNECT, this);
+				if (exchange.https) {
+					engine = getTlsContext().getSslContext().createSSLEngine(host,
+							exchange.addresses[exchange.addressIndex].getPort());
+					engine.setUseClientMode(true);
+					netIn = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+					netOut = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+					netOut.flip();
+					appIn = ByteBuffer.allocate(Math.max(READ_BUFFER_SIZE,
+							engine.getSession().getApplicationBufferSize()));
+				} else {
+					engine = null;
+					netIn = ByteBuffer.allocate(READ_BUFFER_SIZE);
+					appIn = netIn;
+					handshaken = true;
+				}
+			} catch (IOException e) {
+				channel.close();
+				throw e;
+			}
+			deadline = System.currentTimeMillis() +
+					exchange.request.connectTimeout;
+		}
+
+		/**
+		 * Do all the I/O the channel allows.
+		 * @throws IOException
+		 */
+		void service() throws IOException {
+			if (!connected) {
+				if (!channel.finishConnect()) {
+					return;
+				}
+				connected = true;
+				if (engine != null) {
+					handshakeStart = System.currentTimeMillis();
+					engine.beginHandshake();
+				}
+				if (exchange != null) {
+					deadline = System.currentTimeMillis() +
+							exchange.request.readTimeout;
+				}
+			}
+			boolean progress;
+			do {
+				progress = false;
+				// outbound
+				if (engine == null) {
+					if (exchange != null && exchange.out.hasRemaining() &&
+							channel.write(exchange.out) > 0) {
+						progress = true;
+					}
+				} else {
+					progress |= wrap();
+					if (netOut.hasRemaining() && channel.write(netOut) > 0) {
+						progress = true;
+					}
+				}
+				// inbound
+				final int count = channel.read(netIn);
+				if (count == -1) {
+					onEndOfStream(this);
+					return;
+				}
+				if (count > 0) {
+					progress = true;
+					if (exchange != null) {
+						deadline = System.currentTimeMillis() +
+								exchange.request.readTimeout;
+					}
+				}
+				if (engine != null) {
+					progress |= unwrap();
+				}
+				if (appIn.position() > 0) {
+					if (exchange == null) {
+						throw new ProtocolException("Unexpected data on idle connection");
+					}
+					appIn.flip();
+					final boolean done;
+					try {
+						done = exchange.parse(appIn);
+					} finally {
+						appIn.compact();
+					}
+					if (done) {
+						onExchangeDone(this);
+						return;
+					}
+				}
+				if (inputClosed) {
+					onEndOfStream(this);
+					return;
+				}
+			} while (progress && !closed);
+			updateInterest();
+		}
+
+		private boolean wrap() throws IOException {
+			boolean progress = false;
+			while (true) {
+				final ByteBuffer src;
+				if (engine.getHandshakeStatus() ==
+						SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+					src = EMPTY;
+				} else if (handshaken && exchange != null &&
+						exchange.out.hasRemaining()) {
+					src = exchange.out;
+				} else {
+					return progress;
+				}
+				final SSLEngineResult result;
+				netOut.compact();
+				try {
+					result = engine.wrap(src, netOut);
+				} finally {
+					netOut.flip();
+				}
+				switch (result.getStatus()) {
+				case BUFFER_OVERFLOW:
+					// write out what is already wrapped first
+					return progress;
+				case CLOSED:
+					throw new SSLException("Connection closed during wrap");
+				default:
+					break;
+				}
+				onEngineResult(result);
+				if (result.bytesConsumed() == 0 && result.bytesProduced() == 0) {
+					return progress;
+				}
+				progress = true;
+			}
+		}
+
+		private boolean unwrap() throws IOException {
+			boolean progress = false;
+			netIn.flip();
+			try {
+				while (netIn.hasRemaining()) {
+					final SSLEngineResult result = engine.unwrap(netIn, appIn);
+					if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+						if (netIn.limit() == netIn.capacity() && netIn.position() == 0) {
+							// record larger than the buffer
+							final ByteBuffer grown = ByteBuffer.allocate(
+									netIn.capacity()*2);
+							grown.put(netIn);
+							grown.flip();
+							netIn = grown;
+						}
+						break;
+					}
+					if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+						if (appIn.position() > 0) {
+							// parse what is already decrypted first
+							progress = true;
+							break;
+						}
+						appIn = ByteBuffer.allocate(appIn.capacity()*2);
+						continue;
+					}
+					if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+						inputClosed = true;
+						break;
+					}
+					onEngineResult(result);
+					progress = true;
+					if (engine.getHandshakeStatus() ==
+							SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+						break;
+					}
+				}
+			} finally {
+				netIn.compact();
+			}
+			return progress;
+		}
+
+		private void onEngineResult(final SSLEngineResult result) throws IOException {
+			if (result.getHandshakeStatus() ==
+					SSLEngineResult.HandshakeStatus.NEED_TASK) {
+				Runnable task;
+				while ((task = engine.getDelegatedTask()) != null) {
+					task.run();
+				}
+			}
+			if (!handshaken && result.getHandshakeStatus() ==
+					SSLEngineResult.HandshakeStatus.FINISHED) {
+				if (!HttpsURLConnection.getDefaultHostnameVerifier().verify(
+						host, engine.getSession())) {
+					throw new SSLPeerUnverifiedException(
+							"Hostname " + host + " not verified");
+				}
+				handshaken = true;
+				handshakeMillis = System.currentTimeMillis() - handshakeStart;
+				sessionResumed = HttpTlsContext.isResumed(engine.getSession(),
+						handshakeStart);
+				getTlsContext().onHandshake(handshakeMillis, sessionResumed);
+			}
+		}
+
+		void updateInterest() {
+			if (closed) {
+				return;
+			}
+			int ops = SelectionKey.OP_READ;
+			if (!connected) {
+				ops = SelectionKey.OP_CONNECT;
+			} else if ((engine != null && netOut.hasRemaining()) ||
+					(engine == null && exchange != null && exchange.out.hasRemaining())) {
+				ops |= SelectionKey.OP_WRITE;
+			}
+			key.interestOps(ops);
+		}
+
+		void close() {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			key.cancel();
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// ignore
+			}
+		}
+	}
+
+	public static synchronized NioHttpTransport getInstance() {
+		if (m_instance == null) {
+			m_instance = new NioHttpTransport(MAX_CONNECTIONS_PER_HOST_DEFAULT,
+					MAX_IDLE_PER_HOST_DEFAULT, IDLE_TIMEOUT_MILLIS_DEFAULT);
+		}
+		return m_instance;
+	}
+
+	/**
+	 * Replace the default transport.
+	 * @param transport
+	 */
+	public static synchronized void setInstance(final NioHttpTransport transport) {
+		m_instance = transport;
+	}
+
+	public NioHttpTransport(final int maxConnectionsPerHost,
+			final int maxIdlePerHost, final long idleTimeoutMillis) {
+		m_maxConnectionsPerHost = maxConnectionsPerHost;
+		m_maxIdlePerHost = maxIdlePerHost;
+		m_idleTimeoutMillis = idleTimeoutMillis;
+	}
+
+	/**
+	 * Get the TLS context shared with {@link HttpURLConnection} calls so
+	 * cached sessions are resumed by both.
+	 * @return
+	 */
+	private synchronized HttpTlsContext getTlsContext() {
+		if (m_tlsContext == null) {
+			m_tlsContext = HttpTlsContext.getInstance();
+		}
+		return m_tlsContext;
+	}
+
+	/**
+	 * Send a request. Returns immediately; the callback is notified on the
+	 * transport thread. The host name is resolved in the calling thread
+	 * through the {@link HttpDnsCache}.
+	 * @param request
+	 * @param callback
+	 * @throws IOException if the host cannot be resolved or the request
+	 * cannot be encoded
+	 */
+	public void execute(final Request request, final Callback callback)
+			throws IOException {
+		final URL url = request.url;
+		final String protocol = url.getProtocol();
+		final boolean https = "https".equals(protocol);
+		if (!https && !"http".equals(protocol)) {
+			throw new ProtocolException("Unsupported protocol: " + protocol);
+		}
+		final int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+		final InetAddress[] resolved = HttpDnsCache.getInstance().lookup(url.getHost());
+		final InetSocketAddress[] addresses = new InetSocketAddress[resolved.length];
+		for (int i = 0; i < resolved.length; ++i) {
+			addresses[i] = new InetSocketAddress(resolved[i], port);
+		}
+		final Exchange exchange = new Exchange(request, callback,
+				protocol + "://" + url.getHost() + ":" + port, addresses, https);
+		m_inFlightCount.incrementAndGet();
+		m_pending.add(exchange);
+		start().wakeup();
+	}
+
+	private synchronized Selector start() throws IOException {
+		if (m_thread == null) {
+			m_selector = Selector.open();
+			m_thread = new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					loop();
+				}
+			}, TAG);
+			m_thread.setDaemon(true);
+			m_thread.start();
+		}
+		return m_selector;
+	}
+
+	private void loop() {
+		while (true) {
+			try {
+				m_selector.select(m_mapHost.isEmpty() ? 0 : TICK_MILLIS);
+			} catch (IOException e) {
+				Log.e(TAG, "select failed", e);
+			}
+			Exchange exchange;
+			while ((exchange = m_pending.poll()) != null) {
+				dispatch(exchange);
+			}
+			final Iterator<SelectionKey> keys = m_selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				final SelectionKey key = keys.next();
+				keys.remove();
+				final Connection connection = (Connection) key.attachment();
+				if (key.isValid()) {
+					service(connection);
+				}
+			}
+			checkTimeouts(System.currentTimeMillis());
+		}
+	}
+
+	private void service(final Connection connection) {
+		try {
+			connection.service();
+		} catch (IOException e) {
+			onFailure(connection, e);
+		} catch (RuntimeException e) {
+			// SSLEngine reports some failures as runtime exceptions
+			onFailure(connection, new SSLException(e));
+		}
+	}
+
+	private void dispatch(final Exchange exchange) {
+		Host host = m_mapHost.get(exchange.hostKey);
+		if (host == null) {
+			host = new Host();
+			m_mapHost.put(exchange.hostKey, host);
+		}
+		final long now = System.currentTimeMillis();
+		while (!host.idle.isEmpty()) {
+			// most recently used connection is reused first
+			final Connection connection = host.idle.removeLast();
+			if (!connection.closed && now - connection.idleSince <= m_idleTimeoutMillis) {
+				assign(connection, exchange);
+				return;
+			}
+			closeConnection(host, connection);
+		}
+		if (host.connectionCount >= m_maxConnectionsPerHost) {
+			host.waiting.addLast(exchange);
+			return;
+		}
+		Connection connection = null;
+		while (connection == null) {
+			try {
+				connection = new Connection(exchange);
+			} catch (IOException e) {
+				if (++exchange.addressIndex == exchange.addresses.length) {
+					fail(exchange, e);
+					return;
+				}
+			}
+		}
+		connection.counted = true;
+		++host.connectionCount;
+		m_connectionCount.incrementAndGet();
+		assign(connection, exchange);
+	}
+
+	private void assign(final Connection connection, final Exchange exchange) {
+		connection.exchange = exchange;
+		exchange.reused = connection.used;
+		connection.used = true;
+		if (connection.connected) {
+			connection.deadline = System.currentTimeMillis() +
+					exchange.request.readTimeout;
+		}
+		service(connection);
+	}
+
+	private void onExchangeDone(final Connection connection) {
+		final Exchange exchange = connection.exchange;
+		connection.exchange = null;
+		m_inFlightCount.decrementAndGet();
+		if (!exchange.reused) {
+			exchange.response.handshakeMillis = connection.handshakeMillis;
+			exchange.response.sessionResumed = connection.sessionResumed;
+		}
+		try {
+			exchange.callback.onResponse(exchange.response);
+		} catch (RuntimeException e) {
+			Log.e(TAG, "Response callback failed", e);
+		}
+		final Host host = m_mapHost.get(connection.hostKey);
+		if (!exchange.keepAlive || connection.closed) {
+			closeConnection(host, connection);
+			dispatchWaiting(host);
+		} else if (!host.waiting.isEmpty()) {
+			assign(connection, host.waiting.removeFirst());
+		} else {
+			connection.idleSince = System.currentTimeMillis();
+			host.idle.addLast(connection);
+			if (host.idle.size() > m_maxIdlePerHost) {
+				closeConnection(host, host.idle.removeFirst());
+			}
+			connection.updateInterest();
+		}
+	}
+
+	private void onEndOfStream(final Connection connection) throws IOException {
+		final Exchange exchange = connection.exchange;
+		if (exchange == null) {
+			// server closed an idle connection
+			final Host host = m_mapHost.get(connection.hostKey);
+			host.idle.remove(connection);
+			closeConnection(host, connection);
+			return;
+		}
+		if (exchange.onEndOfStream()) {
+			exchange.keepAlive = false;
+			onExchangeDone(connection);
+			return;
+		}
+		throw new EOFException("Unexpected end of stream");
+	}
+
+	private void onFailure(final Connection connection, final IOException e) {
+		final Host host = m_mapHost.get(connection.hostKey);
+		final Exchange exchange = connection.exchange;
+		connection.exchange = null;
+		host.idle.remove(connection);
+		closeConnection(host, connection);
+		if (exchange != null) {
+			if (!connection.connected &&
+					exchange.addressIndex + 1 < exchange.addresses.length) {
+				// the request was not sent; try the next address of the host
+				++exchange.addressIndex;
+				dispatch(exchange);
+			} else if (isStaleConnection(exchange, e)) {
+				// retry once on a new connection
+				exchange.retried = true;
+				exchange.out.rewind();
+				dispatch(exchange);
+			} else {
+				fail(exchange, e);
+			}
+		}
+		dispatchWaiting(host);
+	}
+
+	/**
+	 * Whether the exchange failed because the server had closed the reused
+	 * connection, so the request did not reach it. Timeouts are not retried,
+	 * since a slow server may have received the request, nor are POST
+	 * requests.
+	 */
+	private static boolean isStaleConnection(final Exchange exchange,
+			final IOException e) {
+		return exchange.reused && !exchange.received && !exchange.retried &&
+				!"POST".equals(exchange.request.method) &&
+				(e instanceof EOFException || e instanceof SocketException ||
+						e.getClass() == IOException.class);
+	}
+
+	private void fail(final Exchange exchange, final IOException e) {
+		m_inFlightCount.decrementAndGet();
+		try {
+			exchange.callback.onFailure(e);
+		} catch (RuntimeException re) {
+			Log.e(TAG, "Failure callback failed", re);
+		}
+	}
+
+	private void dispatchWaiting(final Host host) {
+		while (!host.waiting.isEmpty() &&
+				host.connectionCount < m_maxConnectionsPerHost) {
+			dispatch(host.waiting.removeFirst());
+		}
+	}
+
+	private void closeConnection(final Host host, final Connection connection) {
+		connection.close();
+		if (connection.counted) {
+			connection.counted = false;
+			--host.connectionCount;
+			m_connectionCount.decrementAndGet();
+		}
+	}
+
+	private void checkTimeouts(final long now) {
+		for (final SelectionKey key : new ArrayList<SelectionKey>(m_selector.keys())) {
+			final Connection connection = (Connection) key.attachment();
+			if (connection.exchange != null && !connection.closed &&
+					now > connection.deadline) {
+				onFailure(connection, new SocketTimeoutException(
+						connection.connected ? "Read timed out" : "Connect timed out"));
+			}
+		}
+		final Iterator<Host> hosts = m_mapHost.values().iterator();
+		while (hosts.hasNext()) {
+			final Host host = hosts.next();
+			final Iterator<Connection> idle = host.idle.iterator();
+			while (idle.hasNext()) {
+				final Connection connection = idle.next();
+				if (now - connection.idleSince > m_idleTimeoutMillis) {
+					idle.remove();
+					closeConnection(host, connection);
+				}
+			}
+			if (host.connectionCount == 0 && host.waiting.isEmpty()) {
+				hosts.remove();
+			}
+		}
+	}
+
+	/**
+	 * Get the number of open connections.
+	 * @return
+	 */
+	public int getConnectionCount() {
+		return m_connectionCount.get();
+	}
+
+	/**
+	 * Get the number of requests sent or waiting to be sent that have not
+	 * completed.
+	 * @return
+	 */
+	public int getInFlightCount() {
+		return m_inFlightCount.get();
+	}
+}
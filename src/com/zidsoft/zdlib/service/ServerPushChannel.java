@@ -0,0 +1,412 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2013 Zidsoft LLC
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.zidsoft.zdlib.service;
+
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import javax.net.ssl.HttpsURLConnection;
+
+import android.util.Log;
+
+/**
+ * Long lived server push channel over Server-Sent Events. The channel keeps
+ * one streaming connection to the server on its own thread and dispatches
+ * each event to the listeners subscribed to the event name, the command key,
+ * on the UI thread. Events can also invalidate cached responses. A dropped
+ * connection is reopened with exponential backoff and resumes from the last
+ * event id received.
+ * <p>Listeners receive a {@link #MESSAGE} property change with the
+ * {@link Message} as the new value.</p>
+ *
+ * @author faridz
+ *
+ */
+public class ServerPushChannel {
+	private static final String TAG = ServerPushChannel.class.getSimpleName();
+	public static final String MESSAGE = ServerPushChannel.class.getSimpleName()
+			+ ".Message";
+	/**
+	 * Command key of events without an event name.
+	 */
+	public static final String DEFAULT_KEY = "message";
+	public static final long RETRY_MILLIS_DEFAULT = 1000;			// 1 second
+	public static final long MAX_RETRY_MILLIS_DEFAULT = 60*1000;	// 60 seconds
+	/**
+	 * Read timeout; the server is expected to send comments as heartbeats
+	 * more often than this.
+	 */
+	public static final int READ_TIMEOUT_DEFAULT = 5*60*1000;		// 5 minutes
+
+	private final URL m_url;
+	private final Map<String, List<PropertyChangeListener>> m_mapListener =
+			new HashMap<String, List<PropertyChangeListener>>();
+	private final Map<String, List<String>> m_mapInvalidation =
+			new HashMap<String, List<String>>();
+	private final Random m_random = new Random();
+	private volatile String m_lastEventId;
+	private long m_retryMillis = RETRY_MILLIS_DEFAULT;
+	private long m_maxRetryMillis = MAX_RETRY_MILLIS_DEFAULT;
+	private Thread m_thread;
+	private HttpURLConnection m_connection;
+	private volatile boolean m_connected;
+	private volatile boolean m_stopped = true;
+
+	/**
+	 * Event received on the channel.
+	 */
+	public static class Message {
+		public final String key;
+		public final String id;
+		public final String data;
+
+		Message(final String key, final String id, final String data) {
+			this.key = key;
+			this.id = id;
+			this.data = data;
+		}
+	}
+
+	/**
+	 * @param url event stream url
+	 * @param lastEventId id of the last event handled, to resume a previous
+	 * session, or null
+	 */
+	public ServerPushChannel(final URL url, final String lastEventId) {
+		m_url = url;
+		m_lastEventId = lastEventId;
+	}
+
+	/**
+	 * Subscribe the listener to the events for the command key.
+	 * @param key
+	 * @param listener
+	 */
+	public void subscribe(final String key, final PropertyChangeListener listener) {
+		synchronized (m_mapListener) {
+			List<PropertyChangeListener> listeners = m_mapListener.get(key);
+			if (listeners == null) {
+				listeners = new ArrayList<PropertyChangeListener>(1);
+				m_mapListener.put(key, listeners);
+			}
+			listeners.add(listener);
+		}
+	}
+
+	public void unsubscribe(final String key, final PropertyChangeListener listener) {
+		synchronized (m_mapListener) {
+			final List<PropertyChangeListener> listeners = m_mapListener.get(key);
+			if (listeners != null && listeners.remove(listener) &&
+					listeners.isEmpty()) {
+				m_mapListener.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * Remove the cached responses with urls starting with the prefix from the
+	 * installed {@link HttpResponseCache} when an event for the command key is
+	 * received.
+	 * @param key
+	 * @param urlPrefix
+	 */
+	public void invalidateOn(final String key, final String urlPrefix) {
+		synchronized (m_mapInvalidation) {
+			List<String> prefixes = m_mapInvalidation.get(key);
+			if (prefixes == null) {
+				prefixes = new ArrayList<String>(1);
+				m_mapInvalidation.put(key, prefixes);
+			}
+			prefixes.add(urlPrefix);
+		}
+	}
+
+	/**
+	 * Set the reconnect backoff. The server may change the initial delay with
+	 * the retry field, up to the maximum delay.
+	 * @param retryMillis initial delay
+	 * @param maxRetryMillis maximum delay
+	 */
+	public synchronized void setRetry(final long retryMillis, final long maxRetryMillis) {
+		m_retryMillis = retryMillis;
+		m_maxRetryMillis = maxRetryMillis;
+	}
+
+	/**
+	 * Add/set request properties, such as credentials. Called for every
+	 * connection attempt.
+	 * @param urlConnection
+	 */
+	protected void configureRequestProperties(final HttpURLConnection urlConnection) {}
+
+	/**
+	 * Open the channel. Does nothing if the channel is already open.
+	 */
+	public synchronized void start() {
+		if (!m_stopped) {
+			return;
+		}
+		m_stopped = false;
+		m_thread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				runChannel();
+			}
+		}, TAG);
+		m_thread.start();
+	}
+
+	/**
+	 * Close the channel.
+	 */
+	public void stop() {
+		final HttpURLConnection connection;
+		synchronized (this) {
+			if (m_stopped) {
+				return;
+			}
+			m_stopped = true;
+			m_thread.interrupt();
+			connection = m_connection;
+		}
+		if (connection != null) {
+			// unblocks the reader
+			connection.disconnect();
+		}
+	}
+
+	public boolean isConnected() {
+		return m_connected;
+	}
+
+	/**
+	 * Get the id of the last event received, to resume from it after the
+	 * application restarts.
+	 * @return
+	 */
+	public String getLastEventId() {
+		return m_lastEventId;
+	}
+
+	private void runChannel() {
+		int failures = 0;
+		while (isRunning()) {
+			try {
+				if (connect()) {
+					failures = 0;
+				}
+			} catch (IOException e) {
+				Log.w(TAG, "Push channel connection failed", e);
+			} finally {
+				m_connected = false;
+			}
+			if (!isRunning()) {
+				break;
+			}
+			try {
+				Thread.sleep(getBackoffMillis(failures++));
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Whether the current thread is the channel thread of the open channel.
+	 * @return
+	 */
+	private synchronized boolean isRunning() {
+		return !m_stopped && m_thread == Thread.currentThread();
+	}
+
+	private static boolean isDigits(final String value) {
+		if (value.length() == 0) {
+			return false;
+		}
+		for (int i = 0; i < value.length(); ++i) {
+			final char c = value.charAt(i);
+			if (c < '0' || c > '9') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private synchronized long getBackoffMillis(final int failures) {
+		final int shift = Math.min(failures, 16);
+		// compare before shifting so a large retry does not overflow
+		final long delay = m_retryMillis > (m_maxRetryMillis >>> shift) ?
+				m_maxRetryMillis : m_retryMillis << shift;
+		// jitter so clients do not reconnect all at once
+		return delay/2 + (long) (m_random.nextDouble()*(delay/2));
+	}
+
+	/**
+	 * Read events until the connection ends.
+	 * @return true if the connection was established
+	 * @throws IOException
+	 */
+	private boolean connect() throws IOException {
+		final HttpURLConnection urlConnection = (HttpURLConnection) m_url.openConnection();
+		synchronized (this) {
+			if (m_stopped) {
+				return false;
+			}
+			m_connection = urlConnection;
+		}
+		try {
+			if (urlConnection instanceof HttpsURLConnection) {
+				((HttpsURLConnection) urlConnection).setSSLSocketFactory(
+						HttpTlsContext.getInstance().getSocketFactory());
+			}
+			urlConnection.setConnectTimeout(ServiceCallHttp.CONNECT_TIMEOUT_DEFAULT);
+			urlConnection.setReadTimeout(READ_TIMEOUT_DEFAULT);
+			urlConnection.setUseCaches(false);
+			urlConnection.setRequestProperty("Accept", "text/event-stream");
+			urlConnection.setRequestProperty("Cache-Control", "no-cache");
+			final String lastEventId = m_lastEventId;
+			if (lastEventId != null) {
+				urlConnection.setRequestProperty("Last-Event-ID", lastEventId);
+			}
+			configureRequestProperties(urlConnection);
+			final int responseCode = urlConnection.getResponseCode();
+			if (responseCode != HttpURLConnection.HTTP_OK) {
+				HttpConnectionPool.drain(urlConnection.getErrorStream());
+				throw new IOException("Push channel response code " + responseCode);
+			}
+			m_connected = true;
+			read(new BufferedReader(new InputStreamReader(
+					urlConnection.getInputStream(), "UTF-8")));
+			return true;
+		} finally {
+			synchronized (this) {
+				m_connection = null;
+			}
+			urlConnection.disconnect();
+		}
+	}
+
+	private void read(final BufferedReader reader) throws IOException {
+		String event = null;
+		String id = null;
+		final StringBuilder data = new StringBuilder();
+		boolean hasData = false;
+		String line;
+		while ((line = reader.readLine()) != null && isRunning()) {
+			if (line.length() == 0) {
+				if (id != null) {
+					m_lastEventId = id;
+				}
+				if (hasData) {
+					dispatch(new Message(event != null ? event : DEFAULT_KEY,
+							m_lastEventId, data.toString()));
+				}
+				event = null;
+				id = null;
+				data.setLength(0);
+				hasData = false;
+				continue;
+			}
+			if (line.charAt(0) == ':') {
+				// comment or heartbeat
+				continue;
+			}
+			final int colon = line.indexOf(':');
+			final String field = colon < 0 ? line : line.substring(0, colon);
+			String value = colon < 0 ? "" : line.substring(colon + 1);
+			if (value.length() > 0 && value.charAt(0) == ' ') {
+				value = value.substring(1);
+			}
+			if ("data".equals(field)) {
+				if (hasData) {
+					data.append('\n');
+				}
+				data.append(value);
+				hasData = true;
+			} else if ("event".equals(field)) {
+				event = value;
+			} else if ("id".equals(field)) {
+				id = value;
+			} else if ("retry".equals(field) && isDigits(value)) {
+				// values that are not ASCII digits are ignored per the event
+				// stream format
+				long retry;
+				try {
+					retry = Long.parseLong(value);
+				} catch (NumberFormatException e) {
+					// too many digits
+					retry = Long.MAX_VALUE;
+				}
+				synchronized (this) {
+					m_retryMillis = Math.max(1, Math.min(retry, m_maxRetryMillis));
+				}
+			}
+		}
+	}
+
+	private void dispatch(final Message message) {
+		final List<String> prefixes;
+		synchronized (m_mapInvalidation) {
+			final List<String> list = m_mapInvalidation.get(message.key);
+			prefixes = list == null ? null : new ArrayList<String>(list);
+		}
+		final HttpResponseCache cache = HttpResponseCache.getInstalled();
+		if (prefixes != null && cache != null) {
+			for (final String prefix : prefixes) {
+				cache.removePrefix(prefix);
+			}
+		}
+		final List<PropertyChangeListener> listeners;
+		synchronized (m_mapListener) {
+			final List<PropertyChangeListener> list = m_mapListener.get(message.key);
+			if (list == null) {
+				return;
+			}
+			listeners = new ArrayList<PropertyChangeListener>(list);
+		}
+		ServiceCall.runOnUiThread(new Runnable() {
+
+			@Override
+			public void run() {
+				final PropertyChangeEvent event = new PropertyChangeEvent(
+						ServerPushChannel.this, MESSAGE, null, message);
+				for (final PropertyChangeListener listener : listeners) {
+					listener.propertyChange(event);
+				}
+			}
+		});
+	}
+}
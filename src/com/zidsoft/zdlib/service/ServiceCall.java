@@ -112,7 +112,49 @@ public abstract class ServiceCall {
 				}
 			});
     
-    private final FutureTask<ServiceCallResult> m_task;
+    /**
+     * Result returned by {@link #doInBackground()} of a service call that
+     * completes asynchronously. The pool thread is released and the call
+     * finishes when {@link #complete(ServiceCallResult)} is called.
+     */
+    protected static final ServiceCallResult RESULT_PENDING = new ServiceCallResult();
+    
+    /**
+     * Service call task that can be completed after its callable returns.
+     * While the call is pending the task stays running, and on older
+     * platforms keeps a reference to the pool thread that ran it, so a
+     * pending call is canceled without interrupting that thread.
+     */
+    private static abstract class ResultTask extends FutureTask<ServiceCallResult> {
+    	private volatile boolean m_pending = false;
+    	
+    	ResultTask(final Callable<ServiceCallResult> callable) {
+    		super(callable);
+    	}
+    	
+    	@Override
+    	protected void set(final ServiceCallResult result) {
+    		// pending result is set later by complete()
+    		if (result == RESULT_PENDING) {
+    			m_pending = true;
+    		} else {
+    			super.set(result);
+    		}
+    	}
+    	
+    	@Override
+    	public boolean cancel(final boolean mayInterruptIfRunning) {
+    		// the pool thread has moved on to other calls
+    		return super.cancel(mayInterruptIfRunning && !m_pending);
+    	}
+    	
+    	void complete(final ServiceCallResult result) {
+    		super.set(result);
+    	}
+    }
+    
+    private final ResultTask m_task;
+    private boolean m_immediate = false;
     private static final Handler m_handler = new Handler();
     
     /**
@@ -149,7 +191,7 @@ public abstract class ServiceCall {
 				} else {
 					m_client.onServiceCallFailed(ServiceCall.this, m_cmd, result);
 					if (result.exception instanceof NotConnectedToNetworkException) {
-						NoConnectivityMsgFragment.displayMessage();
+						NoConnectivityMsgFragment.postDisplayMessage(m_handler);
 					}
 				}
 				if (m_cmd != null) {
@@ -163,20 +205,14 @@ public abstract class ServiceCall {
 			@Override
 			public void run() {
 				if (result.exception instanceof NotConnectedToNetworkException) {
-					NoConnectivityMsgFragment.displayMessage();
+					NoConnectivityMsgFragment.postDisplayMessage(m_handler);
 				}				
 				m_cmd.onExecEnd();				
 			}
 		});
 	   } else {
 			if (result.exception instanceof NotConnectedToNetworkException) {
-				m_handler.post(new Runnable() {
-					
-					@Override
-					public void run() {
-						NoConnectivityMsgFragment.displayMessage();						
-					}
-				});
+				NoConnectivityMsgFragment.postDisplayMessage(m_handler);
 			}		   
 	   }
    }
@@ -207,7 +243,7 @@ public abstract class ServiceCall {
    
    public ServiceCall(final ServiceCallCommand cmd) {
 	   m_cmd = cmd;
-       m_task = new FutureTask<ServiceCallResult>(new Callable<ServiceCallResult>() {
+       m_task = new ResultTask(new Callable<ServiceCallResult>() {
 
 			@Override
 			public ServiceCallResult call() throws Exception {
@@ -257,7 +293,9 @@ public abstract class ServiceCall {
 
                 if (m_mapper != null) {
                 	try {
+                		final boolean unchanged = m_result.unchanged;
                 		m_result = m_mapper.map(m_result);
+                		m_result.unchanged = unchanged;
                 	} catch (Throwable t) {
                 		t.printStackTrace();
                 		m_result.setResult(t);
@@ -281,7 +319,8 @@ public abstract class ServiceCall {
 								m_result.setCanceled();
 								m_client.onServiceCallCanceled(ServiceCall.this, 
 										m_cmd, m_result);
-							} else {
+							} else if (!m_result.unchanged) {
+								// client already has an unchanged result
 								m_client.onServiceCallFinished(ServiceCall.this,
 										m_cmd, m_result);
 							}
@@ -358,13 +397,104 @@ public abstract class ServiceCall {
        return m_task.cancel(mayInterruptIfRunning);
    }
 
+    /**
+     * Get the stale-while-revalidate bound for the service call command.
+     * @return maximum staleness in milliseconds or -1 if not enabled
+     * @see StaleWhileRevalidatePolicy
+     */
+    protected final long getStaleWhileRevalidateMaxStale() {
+    	return m_client == null ? -1 : 
+    		StaleWhileRevalidatePolicy.getMaxStaleMillis(m_cmd);
+    }
+    
+    /**
+     * Deliver an interim stale result to the client ahead of the final result.
+     * Called from {@link #doInBackground()}. The result is transformed by the
+     * mapper, if any, and passed to the client onServiceCallFinished in the UI
+     * thread. Does nothing if the call has no client.
+     * @param result stale result
+     */
+    protected final void deliverStale(final ServiceCallResult result) {
+    	if (m_client == null) {
+    		return;
+    	}
+    	ServiceCallResult mapped = result;
+    	if (m_mapper != null) {
+    		try {
+    			mapped = m_mapper.map(result);
+    		} catch (Throwable t) {
+    			android.util.Log.w(TAG, "Failed to map stale result", t);
+    			return;
+    		}
+    	}
+    	mapped.stale = true;
+    	final ServiceCallResult staleResult = mapped;
+    	m_handler.post(new Runnable() {
+			
+			@Override
+			public void run() {
+				if (!isStraggler()) {
+					m_client.onServiceCallFinished(ServiceCall.this, m_cmd, 
+							staleResult);
+				}
+			}
+		});
+    }
+    
+    /**
+     * Whether the service call is executed in the calling thread with
+     * {@link #execImmediate()}. Such a call cannot complete asynchronously.
+     * @return
+     */
+    protected final boolean isImmediate() {
+    	return m_immediate;
+    }
+    
+    /**
+     * Complete a service call whose {@link #doInBackground()} returned
+     * {@link #RESULT_PENDING}. May be called from any thread; does nothing if
+     * the call was canceled.
+     * @param result
+     */
+    protected final void complete(final ServiceCallResult result) {
+    	m_task.complete(result);
+    }
+    
+    /**
+     * Start the service call pool core threads ahead of the first service
+     * call.
+     * @return number of threads started
+     */
+    public static int prestartCoreThreads() {
+    	return m_executor.prestartAllCoreThreads();
+    }
+    
+    /**
+     * Post a runnable to the UI thread.
+     * @param runnable
+     */
+    protected static void runOnUiThread(final Runnable runnable) {
+    	m_handler.post(runnable);
+    }
+    
+    /**
+     * Run a continuation of an asynchronous service call, or other service
+     * work that must not run on the UI thread, in the service call thread
+     * pool.
+     * @param runnable
+     */
+    public static void executeInBackground(final Runnable runnable) {
+    	m_executor.execute(runnable);
+    }
+    
     /**
      * Override this method to perform a computation on a background thread. 
      *
      * This method can call {@link #publishProgress(Object[])} to publish updates
      * on the UI thread.
      *
-     * @return A result, defined by the subclass of this task.
+     * @return A result, defined by the subclass of this task, or
+     * {@link #RESULT_PENDING} if the call completes asynchronously.
      *
      * @see #onPreExecute()
      * @see #onPostExecute(Object)
@@ -453,6 +583,7 @@ public abstract class ServiceCall {
             }
         }
         m_client = null;
+        m_immediate = true;
         m_status = Status.RUNNING;
        	addActive(m_cmd, this);
 
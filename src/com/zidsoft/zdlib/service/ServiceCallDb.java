@@ -24,13 +24,29 @@
 
 package com.zidsoft.zdlib.service;
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
-import java.util.zip.InflaterInputStream;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
+import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
 
+import com.zidsoft.zdlib.app.ZDApplication;
 import com.zidsoft.zdlib.util.ZDDateUtils;
 import com.zidsoft.zdlib.util.ZDStringUtils;
 
@@ -46,6 +62,32 @@ public abstract class ServiceCallDb extends ServiceCall {
 
 	public static class ColAttr {
 		public static final int COMPRESSED = 0x0001;
+		/**
+		 * Column is never null, so it is not checked for null.
+		 */
+		public static final int NOT_NULL = 0x0002;
+	}
+	
+	/**
+	 * Marker in the sql of {@link #queryInList} replaced with the parameter
+	 * list of each chunk of keys.
+	 */
+	public static final String IN_LIST = "{IN}";
+	/**
+	 * Default maximum number of host parameters of a SQLite statement.
+	 */
+	public static final int MAX_PARAMS_DEFAULT = 999;
+	private static final int READER_THREADS = 4;
+	
+	private static final ConcurrentHashMap<Integer, String> m_mapParamList =
+			new ConcurrentHashMap<Integer, String>();
+	private static ExecutorService m_readerPool;
+	
+	/**
+	 * Gets the key a row of an IN-list query was selected by.
+	 */
+	public interface KeyOf<T, K> {
+		K getKey(T row);
 	}
 	
 	public ServiceCallDb(ServiceCallCommand command) {
@@ -55,19 +97,55 @@ public abstract class ServiceCallDb extends ServiceCall {
 	public ServiceCallDb() {
 	}
 
+	/**
+	 * Get the charset of text columns.
+	 * @return
+	 */
+	protected String getCharsetName() {
+		return BlobCompression.CHARSET_DEFAULT;
+	}
+
+	/**
+	 * Decode a compressed text column.
+	 * @param blob
+	 * @return
+	 * @throws IOException
+	 * @see BlobCompression
+	 */
 	protected String deflateBlob(final byte[] blob) throws IOException {
-		final InflaterInputStream in = new InflaterInputStream(
-				new ByteArrayInputStream(blob));
-		final ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
-		int oneByte;
-		while ((oneByte = in.read()) > 0) {
-			out.write(oneByte);
-		}
-		final String text = out.toString();
-		out.close();
-		in.close();
-		return text;		
+		return BlobCompression.decodeString(blob, getCharsetName());
+	}
+	
+	/**
+	 * Get the codec compressed columns are written with.
+	 * @return
+	 */
+	protected BlobCodec getBlobCodec() {
+		return BlobCodec.DEFLATE;
+	}
+	
+	/**
+	 * Get the dictionary compressed columns are written with. The
+	 * dictionary must be registered with
+	 * {@link BlobCompression#registerDictionary(BlobDictionary)}.
+	 * @return dictionary or null for none
+	 */
+	protected BlobDictionary getBlobDictionary() {
+		return null;
+	}
+	
+	/**
+	 * Compress a text column with the call's codec and dictionary.
+	 * @param text
+	 * @return
+	 * @throws IOException
+	 * @see #deflateBlob(byte[])
+	 */
+	protected byte[] compressBlob(final String text) throws IOException {
+		return BlobCompression.encodeString(text, getCharsetName(), getBlobCodec(),
+				getBlobDictionary());
 	}
+	
 	protected byte[] getBlob(final Cursor cur, final int index) {
 		return cur.isNull(index) ? null : cur.getBlob(index);
 	}
@@ -84,13 +162,234 @@ public abstract class ServiceCallDb extends ServiceCall {
 		final byte[] blob = getBlob(cur, col);
 		return blob == null ? null :
 			(flags & ColAttr.COMPRESSED) != 0 ? deflateBlob(blob) :
-				new String(blob);
+				new String(blob, getCharsetName());
+	}
+	
+	/**
+	 * Get a reader of a long text column, decoding compressed columns as
+	 * they are read. Close the reader when done.
+	 * @param cur
+	 * @param col
+	 * @param flags
+	 * @return reader or null if the column is null
+	 * @throws IOException
+	 */
+	protected Reader getLongStringReader(final Cursor cur, final IResultsetCol col,
+			final int flags) throws IOException {
+		final byte[] blob = getBlob(cur, col);
+		return blob == null ? null :
+			(flags & ColAttr.COMPRESSED) != 0 ?
+					BlobCompression.openReader(blob, getCharsetName()) :
+						new InputStreamReader(new ByteArrayInputStream(blob),
+								getCharsetName());
 	}
 	protected String getLongString(final Cursor cur, final IResultsetCol col)
 			throws IOException {
 		return getLongString(cur, col, 0);
 	}
 	
+	/**
+	 * Put a long text column value, compressed if the flags have
+	 * {@link ColAttr#COMPRESSED}, to be read with
+	 * {@link #getLongString(Cursor, IResultsetCol, int)}.
+	 * @param values
+	 * @param column
+	 * @param text
+	 * @param flags
+	 * @throws IOException
+	 */
+	protected void putLongString(final ContentValues values, final String column,
+			final String text, final int flags) throws IOException {
+		if (text == null) {
+			values.putNull(column);
+		} else {
+			values.put(column, (flags & ColAttr.COMPRESSED) != 0 ? compressBlob(text) :
+				text.getBytes(getCharsetName()));
+		}
+	}
+	
+	/**
+	 * Map the remaining rows of the cursor.
+	 * @param cur
+	 * @param mapper
+	 * @return
+	 */
+	protected <T> List<T> mapRows(final Cursor cur, final CursorRowMapper<T> mapper) {
+		return mapper.mapAll(cur);
+	}
+	
+	/**
+	 * Read the remaining rows of the cursor by column.
+	 * @param cur
+	 * @param builder
+	 * @return
+	 * @see ServiceCallColumnarResult
+	 */
+	protected ColumnarResult readColumnar(final Cursor cur,
+			final ColumnarResult.Builder builder) {
+		return builder.read(cur);
+	}
+	
+	/**
+	 * Get the maximum number of host parameters of a statement.
+	 * @return
+	 */
+	protected int getMaxParams() {
+		return MAX_PARAMS_DEFAULT;
+	}
+	
+	/**
+	 * Get the parameter list for the number of parameters, cached since
+	 * chunks mostly have the same size.
+	 * @param size
+	 * @return
+	 */
+	private static String getParamList(final int size) {
+		String paramList = m_mapParamList.get(size);
+		if (paramList == null) {
+			paramList = ZDStringUtils.createParamList(size);
+			m_mapParamList.putIfAbsent(size, paramList);
+		}
+		return paramList;
+	}
+	
+	private static synchronized ExecutorService getReaderPool() {
+		if (m_readerPool == null) {
+			m_readerPool = Executors.newFixedThreadPool(READER_THREADS,
+					new ThreadFactory() {
+
+				@Override
+				public Thread newThread(final Runnable r) {
+					final Thread thread = new Thread(r,
+							ServiceCallDb.class.getSimpleName() + ".reader");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return m_readerPool;
+	}
+	
+	/**
+	 * Query the rows for a set of keys of any size. The keys are split into
+	 * chunks within the parameter limit, the query is run for each chunk and
+	 * the rows are returned in the order of the keys.
+	 * <p>Sequential chunks run in one transaction, non-exclusive on Honeycomb
+	 * and above, so they read the same data without blocking other readers.
+	 * Parallel chunks run on a reader pool and each reads the data as of its
+	 * own start; they only run concurrently when the database has write-ahead
+	 * logging enabled. Chunks always run sequentially when the calling
+	 * thread is in a transaction.</p>
+	 * @param db
+	 * @param sql query with the {@link #IN_LIST} marker, for example
+	 * "select * from item where type = ? and id in {IN}"
+	 * @param args parameters preceding the IN list or null
+	 * @param keys keys to select; duplicates are queried once
+	 * @param mapper
+	 * @param keyOf gets the key of a row
+	 * @param parallel whether to run the chunks on the reader pool
+	 * @return rows grouped by key in the order of the keys
+	 * @throws InterruptedException
+	 */
+	protected <K, T> List<T> queryInList(final SQLiteDatabase db, final String sql,
+			final String[] args, final Collection<K> keys,
+			final CursorRowMapper<T> mapper, final KeyOf<T, K> keyOf,
+			final boolean parallel) throws InterruptedException {
+		final List<K> distinct = new ArrayList<K>(new LinkedHashSet<K>(keys));
+		final String[] leading = args == null ? new String[0] : args;
+		final int chunkSize = getMaxParams() - leading.length;
+		if (chunkSize <= 0) {
+			throw new IllegalArgumentException("Too many parameters: " + leading.length);
+		}
+		final List<List<K>> chunks = new ArrayList<List<K>>();
+		for (int i = 0; i < distinct.size(); i += chunkSize) {
+			chunks.add(distinct.subList(i, Math.min(i + chunkSize, distinct.size())));
+		}
+		final List<List<T>> chunkRows = new ArrayList<List<T>>(chunks.size());
+		// the pool threads would wait for the connection held by a transaction
+		// on this thread
+		if (parallel && chunks.size() > 1 && !db.inTransaction()) {
+			final List<Future<List<T>>> futures =
+					new ArrayList<Future<List<T>>>(chunks.size());
+			for (final List<K> chunk : chunks) {
+				futures.add(getReaderPool().submit(new Callable<List<T>>() {
+	
+					@Override
+					public List<T> call() {
+						return queryChunk(db, sql, leading, chunk, mapper);
+					}
+				}));
+			}
+			try {
+				for (final Future<List<T>> future : futures) {
+					chunkRows.add(future.get());
+				}
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof RuntimeException) {
+					throw (RuntimeException) e.getCause();
+				}
+				throw new RuntimeException(e.getCause());
+			} finally {
+				for (final Future<List<T>> future : futures) {
+					future.cancel(false);
+				}
+			}
+		} else {
+			if (ZDApplication.isHoneycombOrAbove()) {
+				db.beginTransactionNonExclusive();
+			} else {
+				db.beginTransaction();
+			}
+			try {
+				for (final List<K> chunk : chunks) {
+					chunkRows.add(queryChunk(db, sql, leading, chunk, mapper));
+				}
+				db.setTransactionSuccessful();
+			} finally {
+				db.endTransaction();
+			}
+		}
+		final Map<K, List<T>> mapRows = new HashMap<K, List<T>>(distinct.size()*2);
+		int count = 0;
+		for (final List<T> rows : chunkRows) {
+			for (final T row : rows) {
+				final K key = keyOf.getKey(row);
+				List<T> keyRows = mapRows.get(key);
+				if (keyRows == null) {
+					keyRows = new ArrayList<T>(1);
+					mapRows.put(key, keyRows);
+				}
+				keyRows.add(row);
+			}
+			count += rows.size();
+		}
+		final List<T> merged = new ArrayList<T>(count);
+		for (final K key : distinct) {
+			final List<T> keyRows = mapRows.get(key);
+			if (keyRows != null) {
+				merged.addAll(keyRows);
+			}
+		}
+		return merged;
+	}
+	
+	private static <K, T> List<T> queryChunk(final SQLiteDatabase db,
+			final String sql, final String[] leading, final List<K> chunk,
+			final CursorRowMapper<T> mapper) {
+		final String[] params = new String[leading.length + chunk.size()];
+		System.arraycopy(leading, 0, params, 0, leading.length);
+		for (int i = 0; i < chunk.size(); ++i) {
+			params[leading.length + i] = String.valueOf(chunk.get(i));
+		}
+		final Cursor cur = db.rawQuery(sql.replace(IN_LIST,
+				getParamList(chunk.size())), params);
+		try {
+			return mapper.mapAll(cur);
+		} finally {
+			cur.close();
+		}
+	}
+	
 	protected Integer getInteger(final Cursor cur, final IResultsetCol col) {
 		return cur.isNull(col.getIndex()) ? null :
 			cur.getInt(col.getIndex());
@@ -0,0 +1,737 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2013 Zidsoft LLC
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.zidsoft.zdlib.service;
+
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.util.Log;
+
+import com.zidsoft.zdlib.common.BufferPool;
+import com.zidsoft.zdlib.common.NotConnectedToNetworkException;
+
+/**
+ * Service call that downloads a resource to a file. The body is streamed to
+ * disk instead of memory. A large resource is split into range segments
+ * downloaded in parallel on separate connections into one file. Progress is
+ * saved next to the file so a failed or interrupted download resumes with
+ * range requests when the call is executed again. The file is moved into
+ * place only after all the bytes are received and the checksum, if any,
+ * is verified.
+ * <p>Requires the server to support byte range requests for parallel and
+ * resumed downloads; otherwise the file is downloaded in one stream.</p>
+ *
+ * @author faridz
+ *
+ */
+public abstract class ServiceCallDownload extends ServiceCallHttp {
+	/**
+	 * Progress property name. Event old and new values are the previously
+	 * reported and the current number of bytes downloaded.
+	 */
+	public static final String PROGRESS = ServiceCallDownload.class.getSimpleName()
+			+ ".Progress";
+	public static final int MAX_SEGMENTS_DEFAULT = 4;
+	public static final long MIN_SEGMENT_SIZE_DEFAULT = 4*1024*1024;
+	public static final int MAX_ATTEMPTS_DEFAULT = 3;
+	private static final String PART_SUFFIX = ".part";
+	private static final String STATE_SUFFIX = ".part.state";
+	private static final int STATE_VERSION = 1;
+	private static final int BUFFER_SIZE = 64*1024;
+	/**
+	 * Number of bytes downloaded between saves of the resume state.
+	 */
+	private static final long STATE_SAVE_INTERVAL = 4*1024*1024;
+	private static final long RETRY_DELAY_MILLIS = 1000;
+
+	private static final ExecutorService m_segmentExecutor =
+			Executors.newCachedThreadPool();
+
+	/**
+	 * Destination file.
+	 */
+	protected final File file;
+	private final AtomicLong m_bytesDownloaded = new AtomicLong();
+	private volatile long m_contentLength = -1;
+	private PropertyChangeListener m_progressListener;
+	private final AtomicBoolean m_progressPosted = new AtomicBoolean();
+	private long m_progressReported = 0;
+
+	/**
+	 * Byte range of the resource downloaded on one connection.
+	 */
+	private static class Segment {
+		/**
+		 * Offset of the next byte to download.
+		 */
+		volatile long position;
+		/**
+		 * Offset of the last byte of the segment, inclusive.
+		 */
+		final long end;
+
+		Segment(final long position, final long end) {
+			this.position = position;
+			this.end = end;
+		}
+	}
+
+	/**
+	 * Download plan and progress, saved to resume the download.
+	 */
+	private static class State {
+		final String url;
+		/**
+		 * ETag or Last-Modified of the resource, sent with If-Range.
+		 */
+		final String validator;
+		/**
+		 * Resource length or -1 if not known.
+		 */
+		final long length;
+		/**
+		 * Whether the server accepts range requests.
+		 */
+		final boolean ranges;
+		final List<Segment> segments = new ArrayList<Segment>();
+
+		State(final String url, final String validator, final long length,
+				final boolean ranges) {
+			this.url = url;
+			this.validator = validator;
+			this.length = length;
+			this.ranges = ranges;
+		}
+
+		long getDownloaded() {
+			long count = 0;
+			long start = 0;
+			for (final Segment segment : segments) {
+				count += segment.position - start;
+				start = segment.end + 1;
+			}
+			return count;
+		}
+	}
+
+	/**
+	 * Response to a range request that no longer matches the saved download.
+	 */
+	private static class ResourceChangedException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		ResourceChangedException() {
+			super("Resource changed since the download started");
+		}
+	}
+
+	/**
+	 * Thrown by a segment stopped because another segment failed or the call
+	 * was canceled.
+	 */
+	private static class DownloadStoppedException extends InterruptedIOException {
+		private static final long serialVersionUID = 1L;
+
+		DownloadStoppedException() {
+			super("Download stopped");
+		}
+	}
+
+	public ServiceCallDownload(final String servicePath, final String serviceName,
+			final File file) {
+		super(servicePath, serviceName);
+		this.file = file;
+	}
+
+	public ServiceCallDownload(final ServiceCallCommand cmd,
+			final String servicePath, final String serviceName, final File file) {
+		super(cmd, servicePath, serviceName);
+		this.file = file;
+	}
+
+	/**
+	 * Get the maximum number of segments downloaded in parallel.
+	 * @return
+	 */
+	protected int getMaxSegments() { return MAX_SEGMENTS_DEFAULT; }
+
+	/**
+	 * Get the minimum segment size. Resources smaller than twice this size
+	 * are downloaded in one segment.
+	 * @return
+	 */
+	protected long getMinSegmentSize() { return MIN_SEGMENT_SIZE_DEFAULT; }
+
+	/**
+	 * Get the number of attempts to download a segment before the download
+	 * fails.
+	 * @return
+	 */
+	protected int getMaxAttempts() { return MAX_ATTEMPTS_DEFAULT; }
+
+	/**
+	 * Get the {@link MessageDigest} algorithm of the checksum.
+	 * @return
+	 */
+	protected String getChecksumAlgorithm() { return "MD5"; }
+
+	/**
+	 * Get the expected checksum of the file. Override in descendants to
+	 * verify the download.
+	 * @return hex checksum or null to not verify the file
+	 */
+	protected String getExpectedChecksum() { return null; }
+
+	/**
+	 * Set the listener notified of {@link #PROGRESS} in the UI thread.
+	 * Notifications are coalesced.
+	 * @param listener
+	 */
+	public void setProgressListener(final PropertyChangeListener listener) {
+		m_progressListener = listener;
+	}
+
+	/**
+	 * Get the number of bytes downloaded so far, including bytes downloaded
+	 * before the download was resumed.
+	 * @return
+	 */
+	public long getBytesDownloaded() {
+		return m_bytesDownloaded.get();
+	}
+
+	/**
+	 * Get the length of the resource.
+	 * @return length or -1 if not known yet
+	 */
+	public long getContentLength() {
+		return m_contentLength;
+	}
+
+	@Override
+	protected ServiceCallHttpResult createResult() {
+		return new ServiceCallDownloadResult();
+	}
+
+	@Override
+	public final boolean isPost() {
+		return false;
+	}
+
+	private File getPartFile() {
+		return new File(file.getPath() + PART_SUFFIX);
+	}
+
+	private File getStateFile() {
+		return new File(file.getPath() + STATE_SUFFIX);
+	}
+
+	private void onProgress(final long count) {
+		m_bytesDownloaded.addAndGet(count);
+		if (m_progressListener == null || !m_progressPosted.compareAndSet(false, true)) {
+			return;
+		}
+		runOnUiThread(new Runnable() {
+
+			@Override
+			public void run() {
+				m_progressPosted.set(false);
+				final PropertyChangeListener listener = m_progressListener;
+				final long current = m_bytesDownloaded.get();
+				if (listener != null && current != m_progressReported) {
+					listener.propertyChange(new PropertyChangeEvent(
+							ServiceCallDownload.this, PROGRESS,
+							Long.valueOf(m_progressReported), Long.valueOf(current)));
+					m_progressReported = current;
+				}
+			}
+		});
+	}
+
+	private State loadState(final String url) {
+		final File stateFile = getStateFile();
+		if (!stateFile.exists() || !getPartFile().exists()) {
+			return null;
+		}
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new FileInputStream(stateFile));
+			if (in.readInt() != STATE_VERSION) {
+				return null;
+			}
+			final State state = new State(in.readUTF(), in.readUTF(),
+					in.readLong(), true);
+			if (!state.url.equals(url)) {
+				return null;
+			}
+			final int count = in.readInt();
+			for (int i = 0; i < count; ++i) {
+				state.segments.add(new Segment(in.readLong(), in.readLong()));
+			}
+			return state;
+		} catch (IOException e) {
+			Log.w(TAG, "Failed to read download state", e);
+			return null;
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					// ignore
+				}
+			}
+		}
+	}
+
+	/**
+	 * Save the resume state. The segment positions are read before the part
+	 * file is forced to disk, so the state never claims bytes that were
+	 * written after the force.
+	 * @param state
+	 * @param channel part file channel
+	 * @throws IOException
+	 */
+	private synchronized void saveState(final State state,
+			final FileChannel channel) throws IOException {
+		if (!state.ranges) {
+			return;
+		}
+		final long[] positions = new long[state.segments.size()];
+		for (int i = 0; i < positions.length; ++i) {
+			positions[i] = state.segments.get(i).position;
+		}
+		channel.force(false);
+		final File temp = new File(getStateFile().getPath() + ".tmp");
+		final DataOutputStream out = new DataOutputStream(new FileOutputStream(temp));
+		try {
+			out.writeInt(STATE_VERSION);
+			out.writeUTF(state.url);
+			out.writeUTF(state.validator == null ? "" : state.validator);
+			out.writeLong(state.length);
+			out.writeInt(positions.length);
+			for (int i = 0; i < positions.length; ++i) {
+				out.writeLong(positions[i]);
+				out.writeLong(state.segments.get(i).end);
+			}
+		} finally {
+			out.close();
+		}
+		if (!temp.renameTo(getStateFile())) {
+			throw new IOException("Failed to save download state");
+		}
+	}
+
+	private void discardState() {
+		getStateFile().delete();
+		getPartFile().delete();
+	}
+
+	/**
+	 * Open a connection for a range of the resource.
+	 * @param url
+	 * @param range range header value or null to request the whole resource
+	 * @param validator If-Range validator or null
+	 * @return connected connection
+	 * @throws Exception
+	 */
+	private HttpURLConnection openConnection(final URL url, final String range,
+			final String validator) throws Exception {
+		final HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
+		urlConnection.setConnectTimeout(m_connectTimeout);
+		urlConnection.setReadTimeout(m_readTimeout);
+		// byte ranges refer to the unencoded resource
+		urlConnection.setRequestProperty("Accept-Encoding", "identity");
+		configureRequestProperties(urlConnection);
+		if (range != null) {
+			urlConnection.setRequestProperty("Range", range);
+			if (validator != null && validator.length() > 0) {
+				urlConnection.setRequestProperty("If-Range", validator);
+			}
+		}
+		urlConnection.connect();
+		return urlConnection;
+	}
+
+	/**
+	 * Parse the complete length from a Content-Range header.
+	 * @param contentRange example: bytes 0-1023/146515
+	 * @return complete length or -1 if not known
+	 */
+	private static long parseCompleteLength(final String contentRange) {
+		final int slash = contentRange == null ? -1 : contentRange.indexOf('/');
+		if (slash < 0) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(contentRange.substring(slash + 1).trim());
+		} catch (NumberFormatException e) {
+			// unknown length: bytes 0-1023/*
+			return -1;
+		}
+	}
+
+	/**
+	 * Parse the first byte offset from a Content-Range header.
+	 * @param contentRange
+	 * @return first byte offset or -1 if not valid
+	 */
+	private static long parseRangeStart(final String contentRange) {
+		if (contentRange == null || !contentRange.startsWith("bytes ")) {
+			return -1;
+		}
+		final int dash = contentRange.indexOf('-');
+		try {
+			return dash < 0 ? -1 : Long.parseLong(contentRange.substring(6, dash).trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Download one segment, retrying failed transfers from the last byte
+	 * received.
+	 * @param url
+	 * @param state
+	 * @param segment
+	 * @param urlConnection already open connection positioned at the segment
+	 * start or null to open one
+	 * @param channel part file channel
+	 * @param failed set by a failed segment to stop the others
+	 * @throws Exception
+	 */
+	private void download(final URL url, final State state, final Segment segment,
+			HttpURLConnection urlConnection, final FileChannel channel,
+			final AtomicBoolean failed) throws Exception {
+		final HttpConnectionPool pool = getConnectionPool();
+		final byte[] buffer = BufferPool.acquire(BUFFER_SIZE);
+		int attempt = 0;
+		try {
+			while (segment.position <= segment.end) {
+				boolean acquired = false;
+				try {
+					if (urlConnection == null) {
+						if (!state.ranges && segment.position > 0) {
+							throw new IOException("Server does not support resuming the download");
+						}
+						pool.acquire(url);
+						acquired = true;
+						urlConnection = openConnection(url, "bytes=" + segment.position +
+								"-" + (state.length < 0 ? "" : String.valueOf(segment.end)),
+								state.validator);
+						final int responseCode = urlConnection.getResponseCode();
+						if (responseCode == HttpURLConnection.HTTP_OK) {
+							throw new ResourceChangedException();
+						}
+						if (responseCode != HttpURLConnection.HTTP_PARTIAL ||
+								parseRangeStart(urlConnection.getHeaderField(
+										"Content-Range")) != segment.position) {
+							throw new IOException("Unexpected range response: " +
+									responseCode);
+						}
+					}
+					final InputStream in = urlConnection.getInputStream();
+					long unsaved = 0;
+					while (segment.position <= segment.end) {
+						if (failed.get() || isCancelled()) {
+							throw new DownloadStoppedException();
+						}
+						final int count = in.read(buffer, 0, (int) (Math.min(
+								buffer.length - 1, segment.end - segment.position) + 1));
+						if (count == -1) {
+							if (state.length < 0) {
+								// length not known; end of stream ends the resource
+								return;
+							}
+							throw new IOException("Unexpected end of stream");
+						}
+						final ByteBuffer src = ByteBuffer.wrap(buffer, 0, count);
+						long position = segment.position;
+						while (src.hasRemaining()) {
+							position += channel.write(src, position);
+						}
+						segment.position = position;
+						onProgress(count);
+						unsaved += count;
+						if (unsaved >= STATE_SAVE_INTERVAL) {
+							saveState(state, channel);
+							unsaved = 0;
+						}
+					}
+				} catch (ResourceChangedException e) {
+					throw e;
+				} catch (DownloadStoppedException e) {
+					throw e;
+				} catch (IOException e) {
+					if (++attempt >= getMaxAttempts() || failed.get()) {
+						throw e;
+					}
+					Log.w(TAG, "Segment download failed; retrying", e);
+					Thread.sleep(RETRY_DELAY_MILLIS*attempt);
+				} finally {
+					if (urlConnection != null) {
+						// stop the transfer of the rest of an open ended range
+						urlConnection.disconnect();
+						urlConnection = null;
+					}
+					if (acquired) {
+						pool.release(url, false);
+					}
+				}
+			}
+		} finally {
+			BufferPool.release(buffer);
+		}
+	}
+
+	/**
+	 * Compute the checksum of a file.
+	 * @param channel
+	 * @param length
+	 * @return hex checksum
+	 * @throws Exception
+	 */
+	private String checksum(final FileChannel channel, final long length)
+			throws Exception {
+		final MessageDigest digest = MessageDigest.getInstance(getChecksumAlgorithm());
+		final ByteBuffer buffer = BufferPool.acquireBuffer(BUFFER_SIZE, false);
+		try {
+			long position = 0;
+			while (position < length) {
+				buffer.clear();
+				final int count = channel.read(buffer, position);
+				if (count == -1) {
+					break;
+				}
+				digest.update(buffer.array(), buffer.arrayOffset(), count);
+				position += count;
+			}
+		} finally {
+			BufferPool.release(buffer);
+		}
+		final StringBuilder hex = new StringBuilder();
+		for (final byte b : digest.digest()) {
+			hex.append(Character.forDigit((b >> 4) & 0xf, 16))
+				.append(Character.forDigit(b & 0xf, 16));
+		}
+		return hex.toString();
+	}
+
+	/**
+	 * Plan the download from the response to the first request.
+	 * @param url
+	 * @param urlConnection response to a request for the whole resource
+	 * @return download state
+	 */
+	private State plan(final String url, final HttpURLConnection urlConnection)
+			throws IOException {
+		final boolean ranges = urlConnection.getResponseCode() ==
+				HttpURLConnection.HTTP_PARTIAL;
+		final long length = ranges ?
+				parseCompleteLength(urlConnection.getHeaderField("Content-Range")) :
+					urlConnection.getContentLength();
+		String validator = urlConnection.getHeaderField("ETag");
+		if (validator == null || validator.startsWith("W/")) {
+			// weak validators cannot be used with If-Range
+			validator = urlConnection.getHeaderField("Last-Modified");
+		}
+		final State state = new State(url, validator, length, ranges && length >= 0);
+		int count = 1;
+		if (state.ranges) {
+			count = (int) Math.max(1, Math.min(getMaxSegments(),
+					length/getMinSegmentSize()));
+		}
+		final long segmentSize = length < 0 ? -1 : (length + count - 1)/count;
+		for (int i = 0; i < count; ++i) {
+			state.segments.add(length < 0 ? new Segment(0, Long.MAX_VALUE) :
+				new Segment(i*segmentSize, Math.min(length, (i + 1)*segmentSize) - 1));
+		}
+		return state;
+	}
+
+	@Override
+	protected ServiceCallResult doInBackground() {
+		final ServiceCallDownloadResult result =
+				(ServiceCallDownloadResult) createResult();
+		try {
+			if (!isConnectedToNetwork()) {
+				throw new NotConnectedToNetworkException();
+			}
+			final URL url = getURL();
+			try {
+				download(url, result);
+			} catch (ResourceChangedException e) {
+				// start over
+				Log.w(TAG, e.getMessage());
+				discardState();
+				m_bytesDownloaded.set(0);
+				download(url, result);
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			result.setResult(e);
+		}
+		return result;
+	}
+
+	private void download(final URL url, final ServiceCallDownloadResult result)
+			throws Exception {
+		State state = loadState(url.toString());
+		HttpURLConnection first = null;
+		final HttpConnectionPool pool = getConnectionPool();
+		if (state == null) {
+			discardState();
+			pool.acquire(url);
+			try {
+				first = openConnection(url, "bytes=0-", null);
+				result.responseCode = first.getResponseCode();
+				if (result.responseCode != HttpURLConnection.HTTP_OK &&
+						result.responseCode != HttpURLConnection.HTTP_PARTIAL) {
+					HttpConnectionPool.drain(first.getErrorStream());
+					result.returnInfo = result.new ReturnInfo(
+							new ServiceCallHttpResult.ResponseCode(result.responseCode),
+							first.getResponseMessage());
+					first.disconnect();
+					return;
+				}
+				state = plan(url.toString(), first);
+			} catch (Exception e) {
+				if (first != null) {
+					first.disconnect();
+				}
+				throw e;
+			} finally {
+				pool.release(url, false);
+			}
+		} else {
+			result.resumed = true;
+			result.responseCode = HttpURLConnection.HTTP_PARTIAL;
+		}
+		result.returnInfo = result.new ReturnInfo(
+				new ServiceCallHttpResult.ResponseCode(result.responseCode), null);
+		m_contentLength = state.length;
+		m_bytesDownloaded.set(state.getDownloaded());
+		final RandomAccessFile raf = new RandomAccessFile(getPartFile(), "rw");
+		final FileChannel channel = raf.getChannel();
+		final State downloadState = state;
+		try {
+			if (state.length >= 0 && raf.length() != state.length) {
+				raf.setLength(state.length);
+			}
+			saveState(state, channel);
+			final AtomicBoolean failed = new AtomicBoolean();
+			final List<Future<Void>> futures = new ArrayList<Future<Void>>();
+			for (int i = 1; i < state.segments.size(); ++i) {
+				final Segment segment = state.segments.get(i);
+				futures.add(m_segmentExecutor.submit(new Callable<Void>() {
+
+					@Override
+					public Void call() throws Exception {
+						try {
+							download(url, downloadState, segment, null, channel, failed);
+						} catch (Exception e) {
+							failed.set(true);
+							throw e;
+						}
+						return null;
+					}
+				}));
+			}
+			Exception failure = null;
+			try {
+				// the first segment continues on the first connection
+				download(url, state, state.segments.get(0), first, channel, failed);
+			} catch (Exception e) {
+				failed.set(true);
+				failure = e;
+			}
+			for (final Future<Void> future : futures) {
+				try {
+					future.get();
+				} catch (ExecutionException e) {
+					if (failure == null || failure instanceof DownloadStoppedException) {
+						failure = (Exception) e.getCause();
+					}
+				}
+			}
+			if (failure != null) {
+				throw failure;
+			}
+			final long length = state.length >= 0 ? state.length : raf.length();
+			result.checksum = checksum(channel, length);
+			final String expected = getExpectedChecksum();
+			if (expected != null && !expected.equalsIgnoreCase(result.checksum)) {
+				channel.close();
+				discardState();
+				throw new IOException("Checksum mismatch: expected " + expected +
+						", actual " + result.checksum);
+			}
+			result.length = length;
+			result.segmentCount = state.segments.size();
+		} finally {
+			if (channel.isOpen()) {
+				try {
+					saveState(state, channel);
+				} catch (IOException e) {
+					Log.w(TAG, "Failed to save download state", e);
+				}
+				channel.close();
+			}
+			raf.close();
+		}
+		if (file.exists() && !file.delete()) {
+			throw new IOException("Failed to replace " + file);
+		}
+		if (!getPartFile().renameTo(file)) {
+			throw new IOException("Failed to rename download to " + file);
+		}
+		getStateFile().delete();
+		result.file = file;
+		result.contentLength = result.length;
+		result.responseBytes = result.length;
+	}
+}
@@ -0,0 +1,55 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2013 Zidsoft LLC
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.zidsoft.zdlib.service;
+
+import java.io.File;
+
+/**
+ * {@link ServiceCallDownload} result.
+ * @author faridz
+ *
+ */
+public class ServiceCallDownloadResult extends ServiceCallHttpResult {
+	/**
+	 * Downloaded file. Set only when the download completed.
+	 */
+	public File file;
+	/**
+	 * Length of the downloaded file.
+	 */
+	public long length;
+	/**
+	 * Hex checksum of the downloaded file or null if not computed.
+	 */
+	public String checksum;
+	/**
+	 * Number of range segments the file was downloaded in.
+	 */
+	public int segmentCount;
+	/**
+	 * Whether the download resumed a previously interrupted transfer.
+	 */
+	public boolean resumed;
+}
@@ -24,16 +24,19 @@
 
 package com.zidsoft.zdlib.service;
 import java.io.BufferedInputStream;
-import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
 import java.net.URL;
-import java.net.URLEncoder;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+
+import javax.net.ssl.HttpsURLConnection;
 
 import android.text.TextUtils;
 import android.util.Log;
@@ -64,6 +67,28 @@ public abstract class ServiceCallHttp extends ServiceCall {
 	protected static int READ_TIMEOUT_DEFAULT = 60*1000;		// 60 seconds
 	protected int m_connectTimeout = CONNECT_TIMEOUT_DEFAULT;
 	protected int m_readTimeout = READ_TIMEOUT_DEFAULT;
+	/**
+	 * Whether the call is sent on its own after being handed to a batcher.
+	 */
+	private boolean m_unbatched = false;
+	/**
+	 * Endpoint selected for the current attempt of a balanced call.
+	 */
+	private HttpEndpointBalancer.Endpoint m_endpoint;
+	/**
+	 * Time the current attempt started sending the request to the endpoint,
+	 * or 0 if it did not, for example when it was served from the cache.
+	 */
+	private long m_endpointStart;
+	/**
+	 * Stale result delivered to the client ahead of the revalidated result.
+	 */
+	private ServiceCallHttpResult m_staleResult;
+	/**
+	 * Auth token sent with the call.
+	 */
+	private String m_token;
+	private boolean m_reauthorized = false;
 	
 	protected class Param {
 		final String name;
@@ -94,6 +119,109 @@ public abstract class ServiceCallHttp extends ServiceCall {
 		return ZDApplication.getInstance().getServerBaseUrl();
 	}
 	
+	/**
+	 * Get the balancer that spreads the call across equivalent servers.
+	 * Only calls sent with {@link HttpURLConnection} are balanced; the
+	 * balanced endpoint replaces the {@link #getServerBaseUrl()} prefix of
+	 * the request url. The response cache is keyed by the unbalanced url.
+	 * @return balancer or null to send the call to the server base url
+	 */
+	protected HttpEndpointBalancer getEndpointBalancer() {
+		final ZDApplication application = ZDApplication.getInstance();
+		// calls to other servers are not balanced
+		return application != null &&
+				application.getServerBaseUrl().equals(getServerBaseUrl()) ?
+				application.getEndpointBalancer() : null;
+	}
+	
+	/**
+	 * Determine whether the device is connected to a network.
+	 * @return true if connected
+	 * @see ZDApplication#isConnectedToNetwork()
+	 */
+	protected boolean isConnectedToNetwork() {
+		return ZDApplication.getInstance().isConnectedToNetwork();
+	}
+	
+	/**
+	 * Get the non-blocking transport for the service call. A call on the
+	 * transport releases its pool thread while it waits for the response, so
+	 * the number of concurrent calls is not limited by the thread pool size.
+	 * The response body is buffered in memory and {@link #readStream} is
+	 * called with a null connection. The response cache is not used. Calls
+	 * made with {@link #execImmediate()} always use
+	 * {@link HttpURLConnection}.
+	 * @return transport or null to use {@link HttpURLConnection}. Default is
+	 * the installed {@link HttpReplayTransport}, if any.
+	 */
+	protected NioHttpTransport getTransport() {
+		return HttpReplayTransport.getInstalled();
+	}
+	
+	/**
+	 * Get the archive the call's request and response are recorded to. A
+	 * recorded call is not served from the response cache, so the archive
+	 * holds the full response instead of a 304.
+	 * @return archive or null to not record the call. Default is the archive
+	 * being recorded, if any.
+	 */
+	protected HttpTrafficArchive getTrafficArchive() {
+		return HttpTrafficArchive.getRecording();
+	}
+	
+	/**
+	 * Get the batcher that combines this call with other calls to the same
+	 * batch endpoint. Only GET calls are batched. A batched call does not use
+	 * the response cache and {@link #readStream} is called with a null
+	 * connection.
+	 * @return batcher or null to send the call on its own
+	 */
+	protected HttpBatcher getBatcher() {
+		return null;
+	}
+	
+	/**
+	 * Get the connection pool that limits and tracks the connections used by
+	 * the service call.
+	 * @return
+	 */
+	protected HttpConnectionPool getConnectionPool() {
+		return HttpConnectionPool.getInstance();
+	}
+	
+	/**
+	 * Get the TLS context for https calls. The shared context caches TLS
+	 * sessions across connections and records the handshake time and
+	 * session resumption in the call result.
+	 * @return TLS context or null to use the platform default socket factory
+	 */
+	protected HttpTlsContext getTlsContext() {
+		return HttpTlsContext.getInstance();
+	}
+	
+	/**
+	 * Get the provider of the auth token sent with the call. A call rejected
+	 * with 401 Unauthorized waits, without holding a pool thread, for the
+	 * provider to refresh the token and is then sent once more with the new
+	 * token.
+	 * @return credential provider or null if the call is not authorized
+	 */
+	protected HttpCredentialProvider getCredentialProvider() {
+		return null;
+	}
+	
+	/**
+	 * Add the credentials and the custom request properties.
+	 * @param urlConnection
+	 */
+	private void configureRequest(final HttpURLConnection urlConnection) {
+		final HttpCredentialProvider credentials = getCredentialProvider();
+		if (credentials != null) {
+			m_token = credentials.apply(urlConnection);
+		}
+		configureRequestProperties(urlConnection);
+	}
+	
 	/**
 	 * Add/set request properties. Implement in descendants as applicable to 
 	 * set and add custom headers or properties for the request.
@@ -102,6 +230,18 @@ public abstract class ServiceCallHttp extends ServiceCall {
 	protected void configureRequestProperties(
 			final HttpURLConnection urlConnection) {}
 	
+	/**
+	 * Get the adaptive timeouts that lower the connect and read timeouts of
+	 * the call to a multiple of the service's observed latency. Applies to
+	 * calls sent with {@link HttpURLConnection}. Adaptive timeouts never
+	 * exceed the timeouts set with {@link #setConnectTimeout(int)} and
+	 * {@link #setReadTimeout(int)}.
+	 * @return adaptive timeouts or null to use the call's timeouts as is
+	 */
+	protected HttpAdaptiveTimeouts getAdaptiveTimeouts() {
+		return null;
+	}
+	
 	/**
 	 * Set the connect timeout. 
 	 * @see HttpURLConnection#setConnectTimeout(int)
@@ -124,6 +264,31 @@ public abstract class ServiceCallHttp extends ServiceCall {
 	
 	public boolean isPost() { return false; };
 	
+	/**
+	 * Whether to accept gzip and deflate encoded responses. Encoded responses
+	 * are decoded before {@link #readStream} is called.
+	 * @return
+	 */
+	protected boolean isResponseCompressionAccepted() { return true; }
+	
+	/**
+	 * Get the minimum post payload length for gzip compressing the request
+	 * body. Compression is off by default since the server must support 
+	 * gzip encoded requests.
+	 * @return minimum payload length or -1 to not compress the request body
+	 */
+	protected int getRequestCompressionThreshold() { return -1; }
+	
+	/**
+	 * Whether the request should be saved to the {@link ServiceCallJournal}
+	 * and replayed later when it cannot be delivered because the device is
+	 * offline or the request failed with a retryable error. Intended for write
+	 * calls; override in descendants to opt in. Journaled requests may be
+	 * delivered more than once and should be idempotent on the server.
+	 * @return
+	 */
+	protected boolean isJournaled() { return false; }
+	
 	/**
 	 * Get payload for post method. Default implementation returns query parameters.
 	 * Override in descendants that use POST method, as necessary.
@@ -134,6 +299,65 @@ public abstract class ServiceCallHttp extends ServiceCall {
 		return getQuery();
 	}
 	
+	/**
+	 * Get the body for post method. Default implementation returns the
+	 * {@link #getPostPayload()} string encoded in UTF-8. Override in 
+	 * descendants to stream a large body to the connection without building
+	 * it in memory.
+	 * @return request body or null for an empty body
+	 * @throws Exception
+	 */
+	protected HttpRequestBody getRequestBody() throws Exception {
+		final String payload = getPostPayload();
+		if (payload == null) {
+			return null;
+		}
+		Log.i(TAG + " Post Payload", payload);
+		return HttpRequestBody.create(payload.getBytes(UTF8));
+	}
+	
+	/**
+	 * Write the request body to the connection. Uses fixed length streaming
+	 * mode when the body length is known and chunked streaming mode otherwise.
+	 * @param urlConnection
+	 * @param body request body, may be null
+	 * @param result result object to record the body size in
+	 * @throws Exception
+	 */
+	private void writeRequestBody(final HttpURLConnection urlConnection,
+			final HttpRequestBody body, final ServiceCallHttpResult result)
+					throws Exception {
+		final long length = body == null ? 0 : body.getContentLength();
+		final int threshold = getRequestCompressionThreshold();
+		final boolean compress = body != null && threshold >= 0 &&
+				(length < 0 || length >= threshold);
+		if (compress) {
+			// compressed length is not known until the body is written
+			urlConnection.setRequestProperty("Content-Encoding", 
+					HttpCompression.GZIP);
+			urlConnection.setChunkedStreamingMode(0);
+		} else if (length >= 0 && length <= Integer.MAX_VALUE) {
+			urlConnection.setFixedLengthStreamingMode((int) length);
+		} else {
+			urlConnection.setChunkedStreamingMode(0);
+		}
+		final HttpCompression.CountingOutputStream wire = 
+				new HttpCompression.CountingOutputStream(
+						urlConnection.getOutputStream());
+		final HttpCompression.CountingOutputStream out = 
+				new HttpCompression.CountingOutputStream(compress ?
+						new HttpCompression.GzipOutputStream(wire) : wire);
+		try {
+			if (body != null) {
+				body.writeTo(out);
+			}
+		} finally {
+			out.close();
+		}
+		result.requestBytes = out.getCount();
+		result.requestWireBytes = wire.getCount();
+	}
+	
 	/**
 	 * Get the list of parameters for the request.
 	 * @return
@@ -151,105 +375,697 @@ public abstract class ServiceCallHttp extends ServiceCall {
 		if (params == null || params.isEmpty()) {
 			return null;
 		}
-		final ArrayList<String> pieces = new ArrayList<String>(params.size());
-		for (final Param param : params) {
-			final String value = param.value == null ? "" : param.value;
-			final String piece = URLEncoder.encode(param.name, UTF8)
-					+ "=" + URLEncoder.encode(value, UTF8);
-			pieces.add(piece);
-		}
-		return TextUtils.join("&", pieces);
+		final StringBuilder query = new StringBuilder(params.size()*16);
+		HttpRequestTemplate.appendQuery(params, query);
+		return query.toString();
 	}
 	
+	/**
+	 * Get the compiled url template for the call class.
+	 * @return
+	 * @throws MalformedURLException
+	 */
+	protected HttpRequestTemplate getRequestTemplate() throws MalformedURLException {
+		return HttpRequestTemplate.forCall(this);
+	}
+	
+	/**
+	 * Get the request url: server base url, service path, service name and, 
+	 * for GET calls, the query. Built from the compiled
+	 * {@link HttpRequestTemplate}.
+	 * @return
+	 * @throws Exception
+	 */
 	protected URL getURL() throws Exception {
-		final String query = isPost() ? null : getQuery();
-		final String url =  getServerBaseUrl() +
-				servicePath + "/" + serviceName +
-				(query == null ? "" : "?" + query);
-		return new URL(url);
+		return getRequestTemplate().buildURL(this);
+	}
+	
+	/**
+	 * Get the consumer for the response body. Override in descendants to
+	 * process the body as a stream instead of reading it into 
+	 * {@link ServiceCallHttpResult#responseString}.
+	 * @return body consumer or null to read the body into a string
+	 */
+	protected HttpBodyConsumer getBodyConsumer() {
+		return null;
 	}
 	
 	/**
 	 * Default implementation of reading input stream reads in stream into
-	 * a string. You may override this method in you service object to read
+	 * a string, or passes the stream to the body consumer if there is one.
+	 * You may override this method in you service object to read
 	 * a different contents.
 	 * @param urlConnection Not used here, but provided to allow descendants
 	 * that override this method access to request headers, etc. You should
 	 * handle this reference as read only and attempt to alter the connection.
+	 * Null when the response is read from the cache without a request or
+	 * received on the {@link NioHttpTransport}.
 	 * @param result result object
 	 * @throws IOException 
+	 * @see #getBodyConsumer()
 	 */
 	protected void readStream(final HttpURLConnection urlConnection,
 			final ServiceCallHttpResult result) throws Exception {
 		if (result.in != null) {
-			final StringBuilder builder = new StringBuilder();
-			final BufferedReader reader = new BufferedReader(
-					new InputStreamReader(result.in, UTF8));
-			String line;
-			while ((line = reader.readLine()) != null) {
-				builder.append(line);
+			final HttpResponseBody body = new HttpResponseBody(result.in,
+					result.contentLength);
+			final HttpBodyConsumer consumer = getBodyConsumer();
+			if (consumer != null) {
+				consumer.consume(body, result);
+			} else {
+				result.responseString = body.string(UTF8);
+			}
+		}
+	}
+	
+	/**
+	 * Get the request headers of the call without connecting, for sending it
+	 * other than with {@link HttpURLConnection}.
+	 * @param url
+	 * @param credentials whether to add the credentials
+	 * @return request headers by name
+	 * @throws IOException
+	 */
+	private Map<String, String> getRequestHeaders(final URL url,
+			final boolean credentials) throws IOException {
+		final HttpURLConnection urlConnection =
+				(HttpURLConnection) url.openConnection();
+		if (credentials) {
+			configureRequest(urlConnection);
+		} else {
+			configureRequestProperties(urlConnection);
+		}
+		final Map<String, String> headers = new LinkedHashMap<String, String>();
+		for (final Map.Entry<String, List<String>> property :
+			urlConnection.getRequestProperties().entrySet()) {
+			if (property.getKey() != null && !property.getValue().isEmpty()) {
+				headers.put(property.getKey(),
+						TextUtils.join(",", property.getValue()));
+			}
+		}
+		return headers;
+	}
+	
+	/**
+	 * Journal the request if the response code is retryable, otherwise
+	 * deliver any journaled calls since the server is reachable.
+	 * @param result result object with the response code
+	 */
+	private void onResponseCode(final ServiceCallHttpResult result) {
+		if (ServiceCallJournal.isRetryable(result.responseCode)) {
+			journal(result);
+		} else {
+			final ServiceCallJournal journal = ServiceCallJournal.peekInstance();
+			if (journal != null) {
+				journal.replay();
+			}
+		}
+	}
+	
+	/**
+	 * Save the request to the journal for later replay, if the service call
+	 * is journaled.
+	 * @param result result object to flag as journaled
+	 */
+	protected void journal(final ServiceCallHttpResult result) {
+		if (!isJournaled() || result.journaled) {
+			return;
+		}
+		try {
+			final URL url = getURL();
+			// credentials are added when the journaled call is replayed
+			final Map<String, String> headers = getRequestHeaders(url, false);
+			final HttpRequestBody body = isPost() ? getRequestBody() : null;
+			ServiceCallJournal.getInstance().append(url.toString(),
+					isPost() ? "POST" : "GET", headers,
+					body == null ? null : body.toByteArray());
+			result.journaled = true;
+		} catch (Exception e) {
+			Log.e(TAG, "Failed to journal service call", e);
+		}
+	}
+	
+	/**
+	 * Get the response cache for the service call. Default implementation
+	 * returns the installed cache for GET requests.
+	 * @return response cache or null if responses are not cached
+	 * @see HttpResponseCache#install(java.io.File, long)
+	 */
+	protected HttpResponseCache getResponseCache() {
+		return isPost() ? null : HttpResponseCache.getInstalled();
+	}
+	
+	/**
+	 * Get the cache policy for the service call. Override in descendants to
+	 * bypass the cache, force a cached response or accept stale responses.
+	 * @return
+	 */
+	protected HttpResponseCache.CachePolicy getCachePolicy() {
+		return HttpResponseCache.CachePolicy.DEFAULT;
+	}
+	
+	/**
+	 * Read the response body from the cache.
+	 * @param urlConnection connection that revalidated the entry or null if the
+	 * response is served without a request
+	 * @param result result object
+	 * @param cache
+	 * @param entry cached entry
+	 * @throws Exception
+	 */
+	private void readCached(final HttpURLConnection urlConnection,
+			final ServiceCallHttpResult result, final HttpResponseCache cache,
+			final HttpResponseCache.Entry entry) throws Exception {
+		result.responseCode = HttpURLConnection.HTTP_OK;
+		result.returnInfo = result.new ReturnInfo(
+				new ServiceCallHttpResult.ResponseCode(result.responseCode), null);
+		result.fromCache = true;
+		result.contentLength = entry.bodyLength;
+		result.in = new BufferedInputStream(cache.openBody(entry));
+		try {
+			readStream(urlConnection, result);
+		} finally {
+			result.in.close();
+		}
+	}
+	
+	/**
+	 * Send the request on the non-blocking transport.
+	 * @param transport
+	 * @return {@link #RESULT_PENDING} or the result if the request could not
+	 * be sent
+	 */
+	private ServiceCallResult sendAsync(final NioHttpTransport transport) {
+		final ServiceCallHttpResult result = createResult();
+		try {
+			final URL url = getURL();
+			if (!isConnectedToNetwork()) {
+				journal(result);
+				throw new NotConnectedToNetworkException();
+			}
+			final NioHttpTransport.Request request = new NioHttpTransport.Request(
+					url, isPost() ? "POST" : "GET");
+			request.connectTimeout = m_connectTimeout;
+			request.readTimeout = m_readTimeout;
+			if (isResponseCompressionAccepted()) {
+				request.headers.put("Accept-Encoding", HttpCompression.ACCEPT_ENCODING);
+			}
+			request.headers.putAll(getRequestHeaders(url, true));
+			if (isPost()) {
+				final HttpRequestBody body = getRequestBody();
+				final byte[] bytes = body == null ? new byte[0] : body.toByteArray();
+				final int threshold = getRequestCompressionThreshold();
+				if (body != null && threshold >= 0 && bytes.length >= threshold) {
+					request.headers.put("Content-Encoding", HttpCompression.GZIP);
+					request.body = HttpCompression.gzip(bytes);
+				} else {
+					request.body = bytes;
+				}
+				result.requestBytes = bytes.length;
+				result.requestWireBytes = request.body.length;
 			}
-			result.responseString = builder.toString();
+			Log.i(TAG, request.method + " " + url);
+			final HttpTrafficArchive archive = transport instanceof HttpReplayTransport ?
+					null : getTrafficArchive();
+			final HttpTrafficArchive.Capture capture = archive == null ? null :
+				new HttpTrafficArchive.Capture(archive, request.method, url.toString());
+			transport.execute(request, new NioHttpTransport.Callback() {
+				
+				@Override
+				public void onResponse(final NioHttpTransport.Response response) {
+					// time the response here, but write the archive off the
+					// selector thread
+					if (capture != null) {
+						capture.onResponseReceived();
+					}
+					executeInBackground(new Runnable() {
+						
+						@Override
+						public void run() {
+							if (capture != null) {
+								capture.onHeaders(response.code, response.message,
+										response.headers);
+								capture.onBody(response.body, response.bodyLength);
+								capture.finish();
+							}
+							completeResponse(readResponse(response, result));
+						}
+					});
+				}
+				
+				@Override
+				public void onFailure(final IOException e) {
+					executeInBackground(new Runnable() {
+						
+						@Override
+						public void run() {
+							journal(result);
+							result.setResult(e);
+							complete(result);
+						}
+					});
+				}
+			});
+			return RESULT_PENDING;
+		} catch (IOException e) {
+			e.printStackTrace();
+			journal(result);
+			result.setResult(e);
+		} catch (Exception e) {
+			e.printStackTrace();
+			result.setResult(e);
+		}
+		return result;
+	}
+	
+	/**
+	 * Read a response received on the non-blocking transport or as part of a
+	 * batch response.
+	 * @param response
+	 * @param result
+	 * @return result
+	 */
+	ServiceCallHttpResult readResponse(
+			final NioHttpTransport.Response response,
+			final ServiceCallHttpResult result) {
+		try {
+			result.responseCode = response.code;
+			result.handshakeMillis = response.handshakeMillis;
+			result.sessionResumed = response.sessionResumed;
+			result.returnInfo = result.new ReturnInfo(
+					new ServiceCallHttpResult.ResponseCode(result.responseCode),
+					response.message);
+			onResponseCode(result);
+			if (result.responseCode == 200) {
+				final String contentEncoding = response.getHeaderField("Content-Encoding");
+				final HttpCompression.CountingInputStream wire = 
+						new HttpCompression.CountingInputStream(new ByteArrayInputStream(
+								response.body, 0, response.bodyLength));
+				HttpCompression.InflatingInputStream decoded = null;
+				if (HttpCompression.isSupported(contentEncoding)) {
+					decoded = HttpCompression.decode(wire, contentEncoding);
+					result.contentLength = -1;
+					result.in = decoded;
+				} else {
+					result.contentLength = response.bodyLength;
+					result.in = wire;
+				}
+				try {
+					readStream(null, result);
+				} finally {
+					result.in.close();
+					result.responseWireBytes = wire.getCount();
+					result.responseBytes = decoded != null ?
+							decoded.getDecodedCount() : wire.getCount();
+				}
+			} else {
+				Log.e(TAG, result.getMessage("http request failed. Response Code: "
+						+ result.responseCode));
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			result.setResult(e);
+		}
+		return result;
+	}
+	
+	/**
+	 * Hand the call to the batcher.
+	 * @param batcher
+	 * @return {@link #RESULT_PENDING} or the result if the call could not be
+	 * batched
+	 */
+	private ServiceCallResult sendBatched(final HttpBatcher batcher) {
+		final ServiceCallHttpResult result = createResult();
+		try {
+			final URL url = getURL();
+			batcher.add(new HttpBatcher.Part(this, result, url,
+					getRequestHeaders(url, true)));
+			return RESULT_PENDING;
+		} catch (Exception e) {
+			e.printStackTrace();
+			result.setResult(e);
 		}
+		return result;
+	}
+	
+	/**
+	 * Send a call handed to the batcher on its own.
+	 * @return result or {@link #RESULT_PENDING}
+	 */
+	ServiceCallResult sendUnbatched() {
+		m_unbatched = true;
+		return doInBackground();
 	}
 	
 	@Override
 	protected ServiceCallResult doInBackground() {
+		final HttpBatcher batcher = isImmediate() || isPost() || m_unbatched ?
+				null : getBatcher();
+		if (batcher != null && isConnectedToNetwork()) {
+			return sendBatched(batcher);
+		}
+		final NioHttpTransport transport = isImmediate() ? null : getTransport();
+		if (transport != null) {
+			return sendAsync(transport);
+		}
+		final HttpEndpointBalancer balancer = getEndpointBalancer();
+		final ServiceCallHttpResult result = balancer != null ?
+				sendBalanced(balancer) : send();
+		return isUnauthorized(result) ? reauthorize(result) : result;
+	}
+	
+	/**
+	 * Complete the call with its response, or refresh the credentials and
+	 * send the call again if the response is 401 Unauthorized.
+	 * @param result
+	 */
+	void completeResponse(final ServiceCallHttpResult result) {
+		if (isUnauthorized(result)) {
+			final ServiceCallResult reauthorized = reauthorize(result);
+			if (reauthorized != RESULT_PENDING) {
+				complete(reauthorized);
+			}
+		} else {
+			complete(result);
+		}
+	}
+	
+	private boolean isUnauthorized(final ServiceCallHttpResult result) {
+		return result.responseCode == HttpURLConnection.HTTP_UNAUTHORIZED &&
+				!m_reauthorized && getCredentialProvider() != null;
+	}
+	
+	/**
+	 * Refresh the token the server rejected and send the call again.
+	 * @param result unauthorized result, returned if the refresh fails
+	 * @return result or {@link #RESULT_PENDING} if the call is sent again
+	 * when the token is refreshed
+	 */
+	private ServiceCallResult reauthorize(final ServiceCallHttpResult result) {
+		m_reauthorized = true;
+		final HttpCredentialProvider credentials = getCredentialProvider();
+		if (isImmediate()) {
+			try {
+				credentials.awaitRefresh(m_token);
+			} catch (Exception e) {
+				Log.e(TAG, "Failed to refresh credentials", e);
+				return result;
+			}
+			return doInBackground();
+		}
+		credentials.refresh(m_token, new HttpCredentialProvider.Callback() {
+			
+			@Override
+			public void onRefreshed(final String token) {
+				executeInBackground(new Runnable() {
+					
+					@Override
+					public void run() {
+						final ServiceCallResult resent = doInBackground();
+						if (resent != RESULT_PENDING) {
+							complete(resent);
+						}
+					}
+				});
+			}
+			
+			@Override
+			public void onRefreshFailed(final Exception e) {
+				Log.e(TAG, "Failed to refresh credentials", e);
+				complete(result);
+			}
+		});
+		return RESULT_PENDING;
+	}
+	
+	/**
+	 * Send the call to endpoints selected by the balancer. Calls other than
+	 * POST that fail on an endpoint with an I/O error or a 502, 503 or 504
+	 * response are retried once on each of the other endpoints. Calls that
+	 * do not reach the endpoint, such as cache hits, are not counted for it.
+	 * @param balancer
+	 * @return
+	 */
+	private ServiceCallHttpResult sendBalanced(final HttpEndpointBalancer balancer) {
+		final List<HttpEndpointBalancer.Endpoint> tried =
+				new ArrayList<HttpEndpointBalancer.Endpoint>(2);
+		ServiceCallHttpResult result = null;
+		HttpEndpointBalancer.Endpoint endpoint;
+		while ((endpoint = balancer.select(tried)) != null) {
+			tried.add(endpoint);
+			m_endpoint = endpoint;
+			m_endpointStart = 0;
+			balancer.onStart(endpoint);
+			try {
+				result = send();
+			} finally {
+				m_endpoint = null;
+			}
+			if (m_endpointStart == 0) {
+				// the request did not reach the endpoint
+				balancer.onCancel(endpoint);
+				break;
+			}
+			final boolean ioFailure = result.exception instanceof IOException;
+			final boolean failed = ioFailure || result.responseCode >=
+					HttpURLConnection.HTTP_INTERNAL_ERROR;
+			balancer.onComplete(endpoint, System.currentTimeMillis() - m_endpointStart,
+					failed);
+			if (isPost() || result.journaled || !(ioFailure ||
+					result.responseCode == HttpURLConnection.HTTP_BAD_GATEWAY ||
+					result.responseCode == HttpURLConnection.HTTP_UNAVAILABLE ||
+					result.responseCode == HttpURLConnection.HTTP_GATEWAY_TIMEOUT)) {
+				break;
+			}
+			Log.w(TAG, "Retrying on another endpoint after failure on " + endpoint);
+		}
+		return result;
+	}
+	
+	private ServiceCallHttpResult send() {
 		final String LOG_TAG = ServiceCallHttp.class.getSimpleName()
 				+ ".doInBackground()";
+		final HttpConnectionPool pool = getConnectionPool();
+		final HttpResponseCache cache = getResponseCache();
+		final HttpResponseCache.CachePolicy cachePolicy = getCachePolicy();
+		HttpResponseCache.Entry cached = null;
+		ServiceCallHttpResult staleResult = m_staleResult;
+		URL url = null;
 		HttpURLConnection urlConnection = null;
+		HttpTlsContext tls = null;
+		final HttpTrafficArchive archive = getTrafficArchive();
+		HttpTrafficArchive.Capture capture = null;
+		final HttpAdaptiveTimeouts timeouts = getAdaptiveTimeouts();
+		final String timeoutKey = timeouts != null ?
+				HttpAdaptiveTimeouts.getKey(this) : null;
+		int connectTimeout = m_connectTimeout;
+		int readTimeout = m_readTimeout;
+		long requestStart = 0;
+		boolean connected = false;
+		boolean responded = false;
+		boolean reusable = false;
+		boolean acquired = false;
+		HttpCompression.CountingInputStream wire = null;
+		HttpCompression.InflatingInputStream decoded = null;
 		ServiceCallHttpResult result = createResult();
 		try {
+			final URL requestUrl = getURL();
+			// while recording, always fetch the full response: cached and 304
+			// responses cannot be replayed
+			if (cache != null && !cachePolicy.noStore && archive == null) {
+				cached = cache.get(requestUrl.toString());
+				if (cached != null && (cachePolicy.forceCache || cached.isFresh(
+						System.currentTimeMillis(), cachePolicy.maxStaleMillis))) {
+					try {
+						readCached(null, result, cache, cached);
+						cache.onHit();
+						return result;
+					} catch (IOException e) {
+						// body is gone; go to the network
+						Log.w(TAG, "Failed to read cached response", e);
+						cache.remove(cached.url);
+						cached = null;
+					}
+				}
+				final long maxStale = getStaleWhileRevalidateMaxStale();
+				// delivered once per call, not again when the call is resent
+				if (staleResult == null && cached != null && maxStale >= 0 &&
+						!cachePolicy.forceCache &&
+						cached.isFresh(System.currentTimeMillis(), maxStale)) {
+					// deliver the stale response now and revalidate it
+					final ServiceCallHttpResult stale = createResult();
+					try {
+						readCached(null, stale, cache, cached);
+						cache.onHit();
+						staleResult = stale;
+						m_staleResult = stale;
+						deliverStale(stale);
+					} catch (IOException e) {
+						Log.w(TAG, "Failed to read stale response", e);
+					}
+				}
+				if (cached == null || !cached.hasValidator()) {
+					cache.onMiss();
+				}
+				if (cachePolicy.forceCache) {
+					result.responseCode = HttpURLConnection.HTTP_GATEWAY_TIMEOUT;
+					result.returnInfo = result.new ReturnInfo(
+							new ServiceCallHttpResult.ResponseCode(result.responseCode),
+							"Unsatisfiable request (only-if-cached)");
+					return result;
+				}
+			}
 			// check for network connectivity
-			if (!ZDApplication.getInstance().isConnectedToNetwork()) {
+			if (!isConnectedToNetwork()) {
+				journal(result);
 				throw new NotConnectedToNetworkException();
 			}
-			urlConnection = (HttpURLConnection) getURL().openConnection();
-			urlConnection.setConnectTimeout(m_connectTimeout);
-			urlConnection.setReadTimeout(m_readTimeout);
-			configureRequestProperties(urlConnection);
+			final HttpEndpointBalancer.Endpoint endpoint = m_endpoint;
+			url = endpoint == null ? requestUrl :
+				endpoint.rewrite(requestUrl, getServerBaseUrl());
+			pool.acquire(url);
+			acquired = true;
+			m_endpointStart = System.currentTimeMillis();
+			urlConnection = (HttpURLConnection) url.openConnection();
+			if (timeouts != null) {
+				connectTimeout = timeouts.getConnectTimeout(timeoutKey, m_connectTimeout);
+				readTimeout = timeouts.getReadTimeout(timeoutKey, m_readTimeout);
+			}
+			urlConnection.setConnectTimeout(connectTimeout);
+			urlConnection.setReadTimeout(readTimeout);
+			tls = urlConnection instanceof HttpsURLConnection ? getTlsContext() : null;
+			if (tls != null) {
+				((HttpsURLConnection) urlConnection).setSSLSocketFactory(
+						tls.getSocketFactory());
+				tls.beginCall();
+			}
+			if (isResponseCompressionAccepted()) {
+				urlConnection.setRequestProperty("Accept-Encoding",
+						HttpCompression.ACCEPT_ENCODING);
+			}
+			configureRequest(urlConnection);
+			// request properties cannot be read once connected
+			final boolean authorized = urlConnection.getRequestProperty(
+					HttpCredentialProvider.AUTHORIZATION) != null;
+			if (cached != null && cached.hasValidator()) {
+				cache.addConditionalHeaders(urlConnection, cached);
+			}
 			Log.i(LOG_TAG, urlConnection.toString());
+			if (archive != null) {
+				capture = new HttpTrafficArchive.Capture(archive,
+						isPost() ? "POST" : "GET", requestUrl.toString());
+			}
+			requestStart = System.currentTimeMillis();
 			if (isPost()) {
 				urlConnection.setDoOutput(true);
 				urlConnection.setRequestMethod("POST");
-				final String payload = getPostPayload();
-				Log.i(LOG_TAG + " Post Payload", payload);
-//				urlConnection.setFixedLengthStreamingMode(payload.getBytes().length);
-				final OutputStreamWriter out = new OutputStreamWriter(urlConnection.getOutputStream());
-				out.write(payload);
-				out.close();
+				writeRequestBody(urlConnection, getRequestBody(), result);
 			} else {
 				urlConnection.connect();
+				if (timeouts != null) {
+					timeouts.recordConnect(timeoutKey,
+							System.currentTimeMillis() - requestStart);
+				}
 			}
+			connected = true;
 			result.responseCode = urlConnection.getResponseCode();
+			if (timeouts != null) {
+				timeouts.recordResponse(timeoutKey,
+						System.currentTimeMillis() - requestStart);
+			}
+			responded = true;
 			result.returnInfo = result.new ReturnInfo(
 					new ServiceCallHttpResult.ResponseCode(result.responseCode),
 					urlConnection.getResponseMessage());			
-			if (result.responseCode == 200) {
+			if (capture != null) {
+				capture.onHeaders(result.responseCode,
+						urlConnection.getResponseMessage(),
+						urlConnection.getHeaderFields());
+			}
+			if (tls != null) {
+				tls.endCall(result);
+			}
+			onResponseCode(result);
+			if (result.responseCode == HttpURLConnection.HTTP_NOT_MODIFIED &&
+					cached != null) {
+				// cached response is still valid
+				reusable = HttpConnectionPool.drain(urlConnection.getErrorStream());
+				readCached(urlConnection, result, cache,
+						cache.onNotModified(cached, urlConnection));
+				result.unchanged = staleResult != null;
+			} else if (result.responseCode == 200) {
 				// success
-				result.in = new BufferedInputStream(urlConnection.getInputStream());				
+				final String contentEncoding = urlConnection.getContentEncoding();
+				wire = new HttpCompression.CountingInputStream(capture != null ?
+						capture.tee(urlConnection.getInputStream()) :
+						urlConnection.getInputStream());
+				if (HttpCompression.isSupported(contentEncoding)) {
+					decoded = HttpCompression.decode(wire, contentEncoding);
+					// content length is the encoded length
+					result.contentLength = -1;
+					result.in = decoded;
+				} else {
+					result.contentLength = urlConnection.getContentLength();
+					result.in = wire;
+				}
+				if (cache != null && !cachePolicy.noStore) {
+					result.in = cache.store(requestUrl.toString(), urlConnection,
+							authorized, result.in);
+				}
+				result.in = new BufferedInputStream(result.in);				
 				try {
 					readStream(urlConnection, result);
+					// consume any unread body so the connection can be reused
+					reusable = HttpConnectionPool.drain(result.in);
+					result.unchanged = staleResult != null &&
+							staleResult.responseString != null &&
+							staleResult.responseString.equals(result.responseString);
 				} catch (IOException e) {
 					result.setResult(e);
 					return result;
 				} finally {
 					result.in.close();
+					result.responseWireBytes = wire.getCount();
+					result.responseBytes = decoded != null ? 
+							decoded.getDecodedCount() : wire.getCount();
 				}
 			} else {
+				reusable = HttpConnectionPool.drain(urlConnection.getErrorStream());
 				Log.e(TAG, result.getMessage("http request failed. Response Code: "
 						+ result.responseCode));
 			}
 		} catch (IOException e) {
 			e.printStackTrace();
+			journal(result);
 			result.setResult(e);
 		} catch (Exception e) {
 			e.printStackTrace();
 			result.setResult(e);
 		} finally {
-			if (urlConnection != null) {
+			if (urlConnection != null && !reusable) {
+				// closes the socket instead of returning it to the pool
 				urlConnection.disconnect();
 			}
+			if (acquired) {
+				pool.release(url, reusable);
+			}
+			if (capture != null) {
+				capture.finish();
+			}
+			if (timeouts != null && requestStart > 0 &&
+					result.exception instanceof SocketTimeoutException) {
+				// the timeout is the lower bound of the latency
+				if (!connected) {
+					timeouts.recordConnect(timeoutKey, connectTimeout);
+					result.adaptiveTimeout = connectTimeout < m_connectTimeout;
+				} else {
+					if (!responded) {
+						timeouts.recordResponse(timeoutKey, readTimeout);
+					}
+					result.adaptiveTimeout = readTimeout < m_readTimeout;
+				}
+			}
 		}
 		return result;
 	}
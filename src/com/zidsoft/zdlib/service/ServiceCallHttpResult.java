@@ -42,4 +42,44 @@ public abstract class ServiceCallHttpResult extends ServiceCallResult {
 	public InputStream in;	
 	public int responseCode;
 	public String responseString;
+	/**
+	 * Length of the response body or -1 if not known.
+	 */
+	public long contentLength = -1;
+	/**
+	 * Number of response body bytes received on the wire.
+	 */
+	public long responseWireBytes;
+	/**
+	 * Number of response body bytes after decoding the content encoding.
+	 */
+	public long responseBytes;
+	/**
+	 * Number of request body bytes before and after compression.
+	 */
+	public long requestBytes;
+	public long requestWireBytes;
+	/**
+	 * Whether the request was saved to the {@link ServiceCallJournal} to be
+	 * replayed when connectivity returns.
+	 */
+	public boolean journaled;
+	/**
+	 * Whether the response body was read from the {@link HttpResponseCache}.
+	 */
+	public boolean fromCache;
+	/**
+	 * TLS handshake time of the connection opened for the call or -1 if the
+	 * call reused a connection or is not https.
+	 */
+	public long handshakeMillis = -1;
+	/**
+	 * Whether the TLS handshake resumed a cached session.
+	 */
+	public boolean sessionResumed;
+	/**
+	 * Whether the call timed out on a timeout lowered by
+	 * {@link HttpAdaptiveTimeouts}.
+	 */
+	public boolean adaptiveTimeout;
 }
\ No newline at end of file
@@ -0,0 +1,514 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2013 Zidsoft LLC
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.zidsoft.zdlib.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
+import android.util.Log;
+
+import com.zidsoft.zdlib.app.ZDApplication;
+
+/**
+ * Durable journal of write service calls that could not be delivered because
+ * the device was offline or the call failed with a retryable error. Entries are
+ * appended to a log file and the file is fsync'ed in batches. When connectivity
+ * returns, {@link #replay()} resends the pending entries one at a time in
+ * journal order and compacts the journal once they are delivered.
+ * <p>Each record on disk is framed as [int length][int crc32][body] so that a
+ * torn write at the tail of the file is detected and discarded on load. Body is
+ * either an entry (the serialized request) or an acknowledgement of a
+ * previously journaled entry.</p>
+ *
+ * @author faridz
+ *
+ */
+public class ServiceCallJournal {
+	private static final String TAG = ServiceCallJournal.class.getSimpleName();
+	private static final String FILE_NAME = "zdlib_servicecall.journal";
+
+	private static final byte RECORD_ENTRY = 1;
+	private static final byte RECORD_ACK = 2;
+
+	/**
+	 * Number of appended records after which the journal is synced immediately.
+	 */
+	private static final int SYNC_BATCH_SIZE = 16;
+	/**
+	 * Maximum time an appended record waits for a batched sync.
+	 */
+	private static final long SYNC_DELAY_MILLIS = 200;
+	/**
+	 * Number of acknowledgements after which the journal is rewritten.
+	 */
+	private static final int COMPACT_THRESHOLD = 64;
+	private static final int REPLAY_TIMEOUT_MILLIS = 60*1000;
+
+	/**
+	 * Journaled request.
+	 */
+	public static class Entry {
+		public final long seq;
+		public final String url;
+		public final String method;
+		public final Map<String, String> headers;
+		public final byte[] payload;
+
+		public Entry(final long seq, final String url, final String method,
+				final Map<String, String> headers, final byte[] payload) {
+			this.seq = seq;
+			this.url = url;
+			this.method = method;
+			this.headers = headers;
+			this.payload = payload;
+		}
+	}
+
+	private static ServiceCallJournal m_instance;
+
+	private final File m_file;
+	private RandomAccessFile m_raf;
+	private FileChannel m_channel;
+	/**
+	 * Pending (unacknowledged) entries in journal order.
+	 */
+	private final LinkedHashMap<Long, Entry> m_pending = new LinkedHashMap<Long, Entry>();
+	private long m_nextSeq = 1;
+	private int m_unsyncedCount = 0;
+	private int m_ackCount = 0;
+	private ScheduledFuture<?> m_syncFuture;
+	private final AtomicBoolean m_replaying = new AtomicBoolean(false);
+
+	private final ScheduledExecutorService m_syncExecutor =
+			Executors.newSingleThreadScheduledExecutor();
+
+	private final Runnable m_syncRunnable = new Runnable() {
+
+		@Override
+		public void run() {
+			synchronized (ServiceCallJournal.this) {
+				m_syncFuture = null;
+				sync();
+			}
+		}
+	};
+
+	/**
+	 * Get the application journal. The journal is created in the application
+	 * files directory the first time it is requested.
+	 * @return
+	 */
+	public static synchronized ServiceCallJournal getInstance() throws IOException {
+		if (m_instance == null) {
+			m_instance = new ServiceCallJournal(new File(
+					ZDApplication.getInstance().getFilesDir(), FILE_NAME));
+		}
+		return m_instance;
+	}
+
+	/**
+	 * Get the application journal if it was already opened.
+	 * @return the journal or null if it has not been opened.
+	 */
+	public static synchronized ServiceCallJournal peekInstance() {
+		return m_instance;
+	}
+
+	/**
+	 * Replay the application journal if it has pending entries. Opens the
+	 * journal if it was not opened yet but a journal file exists from a
+	 * previous run.
+	 */
+	public static void replayIfPending() {
+		try {
+			ServiceCallJournal journal = peekInstance();
+			if (journal == null && new File(ZDApplication.getInstance()
+					.getFilesDir(), FILE_NAME).length() > 0) {
+				journal = getInstance();
+			}
+			if (journal != null) {
+				journal.replay();
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "Failed to open journal", e);
+		}
+	}
+
+	public ServiceCallJournal(final File file) throws IOException {
+		m_file = file;
+		open();
+	}
+
+	private void open() throws IOException {
+		m_raf = new RandomAccessFile(m_file, "rw");
+		m_channel = m_raf.getChannel();
+		final long validLength = load();
+		if (validLength < m_channel.size()) {
+			Log.w(TAG, "Discarding torn journal tail at " + validLength);
+			m_channel.truncate(validLength);
+		}
+		m_channel.position(validLength);
+	}
+
+	/**
+	 * Read the journal file and rebuild the pending entries.
+	 * @return length of the valid part of the journal file.
+	 * @throws IOException
+	 */
+	private long load() throws IOException {
+		final long size = m_channel.size();
+		final ByteBuffer header = ByteBuffer.allocate(8);
+		long position = 0;
+		final CRC32 crc = new CRC32();
+		while (position + 8 <= size) {
+			header.clear();
+			m_channel.read(header, position);
+			header.flip();
+			final int length = header.getInt();
+			final int checksum = header.getInt();
+			if (length <= 0 || position + 8 + length > size) {
+				break;
+			}
+			final ByteBuffer body = ByteBuffer.allocate(length);
+			m_channel.read(body, position + 8);
+			crc.reset();
+			crc.update(body.array(), 0, length);
+			if ((int) crc.getValue() != checksum) {
+				break;
+			}
+			readRecord(body.array());
+			position += 8 + length;
+		}
+		return position;
+	}
+
+	private void readRecord(final byte[] body) throws IOException {
+		final DataInputStream in = new DataInputStream(
+				new ByteArrayInputStream(body));
+		final byte type = in.readByte();
+		final long seq = in.readLong();
+		if (seq >= m_nextSeq) {
+			m_nextSeq = seq + 1;
+		}
+		if (type == RECORD_ACK) {
+			m_pending.remove(seq);
+			++m_ackCount;
+			return;
+		}
+		final String url = in.readUTF();
+		final String method = in.readUTF();
+		final int headerCount = in.readInt();
+		final Map<String, String> headers = new LinkedHashMap<String, String>();
+		for (int i = 0; i < headerCount; ++i) {
+			headers.put(in.readUTF(), in.readUTF());
+		}
+		final int payloadLength = in.readInt();
+		byte[] payload = null;
+		if (payloadLength >= 0) {
+			payload = new byte[payloadLength];
+			in.readFully(payload);
+		}
+		m_pending.put(seq, new Entry(seq, url, method, headers, payload));
+	}
+
+	private static byte[] toRecord(final Entry entry) throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+				256 + (entry.payload == null ? 0 : entry.payload.length));
+		final DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(RECORD_ENTRY);
+		out.writeLong(entry.seq);
+		out.writeUTF(entry.url);
+		out.writeUTF(entry.method);
+		out.writeInt(entry.headers.size());
+		for (final Map.Entry<String, String> header : entry.headers.entrySet()) {
+			out.writeUTF(header.getKey());
+			out.writeUTF(header.getValue());
+		}
+		if (entry.payload == null) {
+			out.writeInt(-1);
+		} else {
+			out.writeInt(entry.payload.length);
+			out.write(entry.payload);
+		}
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	private static byte[] toAckRecord(final long seq) {
+		final ByteBuffer body = ByteBuffer.allocate(9);
+		body.put(RECORD_ACK);
+		body.putLong(seq);
+		return body.array();
+	}
+
+	private static void writeRecord(final FileChannel channel,
+			final byte[] body) throws IOException {
+		final CRC32 crc = new CRC32();
+		crc.update(body, 0, body.length);
+		final ByteBuffer buffer = ByteBuffer.allocate(8 + body.length);
+		buffer.putInt(body.length);
+		buffer.putInt((int) crc.getValue());
+		buffer.put(body);
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	/**
+	 * Append a request to the journal.
+	 * @param url request url
+	 * @param method request method, for example POST
+	 * @param headers request properties to send on replay, may be null
+	 * @param payload request body, may be null
+	 * @return the journaled entry
+	 * @throws IOException
+	 */
+	public synchronized Entry append(final String url, final String method,
+			final Map<String, String> headers, final byte[] payload)
+					throws IOException {
+		final Entry entry = new Entry(m_nextSeq++, url, method,
+				headers == null ? new LinkedHashMap<String, String>() : headers,
+				payload);
+		writeRecord(m_channel, toRecord(entry));
+		m_pending.put(entry.seq, entry);
+		onAppended();
+		return entry;
+	}
+
+	private synchronized void acknowledge(final long seq) throws IOException {
+		if (m_pending.remove(seq) == null) {
+			return;
+		}
+		writeRecord(m_channel, toAckRecord(seq));
+		++m_ackCount;
+		onAppended();
+		if (m_ackCount >= COMPACT_THRESHOLD) {
+			compact();
+		}
+	}
+
+	/**
+	 * Group commit: sync when enough records accumulated, otherwise make sure a
+	 * delayed sync is scheduled.
+	 */
+	private void onAppended() {
+		++m_unsyncedCount;
+		if (m_unsyncedCount >= SYNC_BATCH_SIZE) {
+			sync();
+		} else if (m_syncFuture == null) {
+			m_syncFuture = m_syncExecutor.schedule(m_syncRunnable,
+					SYNC_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private void sync() {
+		if (m_unsyncedCount == 0) {
+			return;
+		}
+		try {
+			m_channel.force(false);
+			m_unsyncedCount = 0;
+		} catch (IOException e) {
+			Log.e(TAG, "Journal sync failed", e);
+		}
+	}
+
+	/**
+	 * Rewrite the journal so that it contains only the pending entries.
+	 * @throws IOException
+	 */
+	public synchronized void compact() throws IOException {
+		final File tmpFile = new File(m_file.getPath() + ".tmp");
+		final RandomAccessFile tmpRaf = new RandomAccessFile(tmpFile, "rw");
+		try {
+			final FileChannel tmpChannel = tmpRaf.getChannel();
+			tmpChannel.truncate(0);
+			for (final Entry entry : m_pending.values()) {
+				writeRecord(tmpChannel, toRecord(entry));
+			}
+			tmpChannel.force(true);
+		} finally {
+			tmpRaf.close();
+		}
+		// the journal stays open for appends if the rename fails
+		if (!tmpFile.renameTo(m_file)) {
+			tmpFile.delete();
+			throw new IOException("Failed to replace journal " + m_file);
+		}
+		m_raf.close();
+		m_pending.clear();
+		m_ackCount = 0;
+		m_unsyncedCount = 0;
+		open();
+	}
+
+	public synchronized int getPendingCount() {
+		return m_pending.size();
+	}
+
+	public synchronized List<Entry> getPendingEntries() {
+		return new ArrayList<Entry>(m_pending.values());
+	}
+
+	/**
+	 * Replay pending entries in the background. Entries are sent one at a
+	 * time in journal order, so writes are never reordered.
+	 * Replay stops at the first retryable failure since the remaining entries
+	 * would most likely fail the same way. Does nothing if a replay is already
+	 * in progress or there are no pending entries.
+	 */
+	public void replay() {
+		if (getPendingCount() == 0 || !m_replaying.compareAndSet(false, true)) {
+			return;
+		}
+		new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					replayPending();
+				} finally {
+					m_replaying.set(false);
+				}
+			}
+		}, TAG).start();
+	}
+
+	private void replayPending() {
+		for (final Entry entry : getPendingEntries()) {
+			if (!replayEntry(entry)) {
+				break;
+			}
+		}
+		// drop acknowledged records
+		synchronized (this) {
+			if (m_ackCount > 0) {
+				try {
+					compact();
+				} catch (IOException e) {
+					Log.e(TAG, "Journal compaction failed", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Send an entry.
+	 * @param entry
+	 * @return false if the entry failed and should be retried later
+	 */
+	private boolean replayEntry(final Entry entry) {
+		try {
+			final int responseCode = send(entry);
+			if (isRetryable(responseCode)) {
+				Log.w(TAG, "Replay of journal entry " + entry.seq +
+						" failed with response code " + responseCode);
+				return false;
+			}
+			if (responseCode / 100 != 2) {
+				// the request will never succeed; drop it
+				Log.e(TAG, "Dropping journal entry " + entry.seq +
+						" rejected with response code " + responseCode);
+			}
+			acknowledge(entry.seq);
+			return true;
+		} catch (IOException e) {
+			Log.w(TAG, "Replay of journal entry " + entry.seq + " failed", e);
+			return false;
+		}
+	}
+
+	private static int send(final Entry entry) throws IOException {
+		final HttpURLConnection urlConnection = (HttpURLConnection)
+				new URL(entry.url).openConnection();
+		boolean reusable = false;
+		try {
+			urlConnection.setConnectTimeout(REPLAY_TIMEOUT_MILLIS);
+			urlConnection.setReadTimeout(REPLAY_TIMEOUT_MILLIS);
+			urlConnection.setRequestMethod(entry.method);
+			for (final Map.Entry<String, String> header : entry.headers.entrySet()) {
+				urlConnection.setRequestProperty(header.getKey(), header.getValue());
+			}
+			if (entry.payload != null) {
+				urlConnection.setDoOutput(true);
+				urlConnection.setFixedLengthStreamingMode(entry.payload.length);
+				final OutputStream out = urlConnection.getOutputStream();
+				out.write(entry.payload);
+				out.close();
+			}
+			final int responseCode = urlConnection.getResponseCode();
+			final InputStream in = responseCode >= 400 ?
+					urlConnection.getErrorStream() : urlConnection.getInputStream();
+			reusable = HttpConnectionPool.drain(in);
+			return responseCode;
+		} finally {
+			if (!reusable) {
+				urlConnection.disconnect();
+			}
+		}
+	}
+
+	/**
+	 * Determine whether an http response code indicates a transient failure
+	 * worth retrying later.
+	 * @param responseCode
+	 * @return
+	 */
+	public static boolean isRetryable(final int responseCode) {
+		switch (responseCode) {
+		case 408:	// request timeout
+		case 429:	// too many requests
+		case 500:
+		case 502:
+		case 503:
+		case 504:
+			return true;
+		default:
+			return false;
+		}
+	}
+}
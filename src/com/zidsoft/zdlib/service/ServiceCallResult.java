@@ -178,6 +178,17 @@ public class ServiceCallResult {
 	
 	public Exception exception = null;
 	public ReturnInfo returnInfo;
+	/**
+	 * Whether the result was delivered from a cached response ahead of its
+	 * revalidation. A fresh result follows if the content changed.
+	 * @see StaleWhileRevalidatePolicy
+	 */
+	public boolean stale;
+	/**
+	 * Whether the result is the same as the stale result already delivered to
+	 * the client. Unchanged results are not delivered to the client again.
+	 */
+	public boolean unchanged;
 	
 	public ServiceCallResult() {
 		this.exception = null;
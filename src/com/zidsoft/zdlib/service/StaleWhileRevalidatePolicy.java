@@ -0,0 +1,78 @@
+/*
+ * The MIT License (MIT)
+ * 
+ * Copyright (c) 2013 Zidsoft LLC
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.zidsoft.zdlib.service;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of commands that use stale-while-revalidate result delivery. When
+ * a command key is registered and its service call has a cached response that
+ * is stale by no more than the registered bound, the cached result is 
+ * delivered to the client immediately, marked as stale, and the response is 
+ * then revalidated. The fresh result is delivered only if it differs from the
+ * stale result.
+ * 
+ * @author faridz
+ *
+ * @see ServiceCallResult#stale
+ * @see ServiceCallResult#unchanged
+ */
+public class StaleWhileRevalidatePolicy {
+	
+	private static final Map<String, Long> m_mapMaxStale = 
+			new ConcurrentHashMap<String, Long>();
+	
+	private StaleWhileRevalidatePolicy() {}
+	
+	/**
+	 * Enable stale-while-revalidate for the given command key.
+	 * @param key command key
+	 * @param maxStaleMillis maximum staleness of a cached response that may be
+	 * delivered before revalidation
+	 * @see ServiceCallCommand#getKey()
+	 */
+	public static void set(final String key, final long maxStaleMillis) {
+		m_mapMaxStale.put(key, maxStaleMillis);
+	}
+	
+	public static void remove(final String key) {
+		m_mapMaxStale.remove(key);
+	}
+	
+	/**
+	 * Get the stale bound for the command.
+	 * @param cmd command, may be null
+	 * @return maximum staleness in milliseconds or -1 if stale-while-revalidate
+	 * is not enabled for the command
+	 */
+	public static long getMaxStaleMillis(final ServiceCallCommand<?> cmd) {
+		if (cmd == null) {
+			return -1;
+		}
+		final Long maxStale = m_mapMaxStale.get(cmd.getKey());
+		return maxStale == null ? -1 : maxStale.longValue();
+	}
+}